@@ -23,7 +23,7 @@ import java.util.concurrent.Callable;
  * database, accurate {@link #close()} logic with right support for finalize() and some more neat featires sadly missing
  * in the {@link Connection}.
  * <p>
- * It is advised to have separate {@link Db} instances in in different threads using {@link #instance()}.
+ * The instance is not thread safe. It is advised to share connections between threads with {@link DbPool}.
  * <p>
  * This is simplfied and enhanced for better performance version of Db class used in other iCodici projects, it does not
  * rely on Record/Table infrastructure anymore so could run faster with plain cached SQL prepared statements. We
@@ -81,7 +81,9 @@ public class Db implements Cloneable {
      * Get (and create as need) an instance with separate connection for the current thread.
      *
      * @return ready instance local for the calling thread
+     * @deprecated connections are never closed when threads die, so pooled threads leak them. Use {@link DbPool}.
      */
+    @Deprecated
     public Db instance() {
         return localInstance.get();
     }
@@ -285,6 +287,23 @@ public class Db implements Cloneable {
         return statement;
     }
 
+    /**
+     * Close and forget the cached statement for the sqlText, if any. Should be called when the statement fails, as the
+     * driver could leave it unusable (SQLite one does it on constraint violations).
+     *
+     * @param sqlText the statement was created with
+     */
+    public void dropStatement(String sqlText) {
+        PreparedStatement statement = cachedStatements.remove(sqlText);
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // it is already broken, nothing to do
+            }
+        }
+    }
+
     public ResultSet queryRow(String sqlText, Object... args) throws SQLException {
         ResultSet rs = statement(sqlText, args).executeQuery();
         if (rs.next()) {
@@ -303,9 +322,11 @@ public class Db implements Cloneable {
      * @throws SQLException
      */
     public <T> T queryOne(String sqlText, Object... args) throws SQLException {
-        ResultSet rs = statement(sqlText, args).executeQuery();
-        if (rs.next()) {
-            return (T) rs.getObject(1);
+        // close the cursor at once, an open one keeps the database locked for other connections
+        try (ResultSet rs = statement(sqlText, args).executeQuery()) {
+            if (rs.next()) {
+                return (T) rs.getObject(1);
+            }
         }
         return null;
     }
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.db;
+
+import net.sergeych.utils.LogPrinter;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Bounded pool of {@link Db} instances, each with its own connection and prepared statements cache, to use instead of
+ * per-thread {@link Db#instance()} that leaks connections when threads come and go.
+ * <p>
+ * The thread checks out the instance with {@link #checkout()} and must return it with {@link #checkin(Db)}, or better
+ * use {@link #execute(Task)} that does both. Checkouts are re-entrant: the thread that already holds an instance gets
+ * the same one again, so the transaction started on it sees all nested operations of the same thread. The instance is
+ * returned to the pool when the outermost checkout is checked in.
+ * <p>
+ * When all instances are in use, the caller waits up to {@link #getCheckoutTimeout()} milliseconds. Pool usage is
+ * reported by {@link #getActive()}, {@link #getIdle()}, {@link #getWaits()} and {@link #getWaitMillis()}.
+ */
+public class DbPool implements AutoCloseable {
+
+    /**
+     * Default time to wait for the free instance, milliseconds.
+     */
+    public static final long DEFAULT_CHECKOUT_TIMEOUT = 30000;
+
+    private static LogPrinter log = new LogPrinter("DBPL");
+
+    /**
+     * Operation to perform with the checked out {@link Db}.
+     */
+    public interface Task<T> {
+        T perform(Db db) throws Exception;
+    }
+
+    private static class Lease {
+        final Db db;
+        int depth = 1;
+
+        Lease(Db db) {
+            this.db = db;
+        }
+    }
+
+    private final String connectionString;
+    private final Properties properties;
+    private final int maxSize;
+    private final Task<?> initializer;
+    private long checkoutTimeout = DEFAULT_CHECKOUT_TIMEOUT;
+
+    private final ArrayDeque<Db> idle = new ArrayDeque<>();
+    private final List<Db> all = new ArrayList<>();
+    private final ThreadLocal<Lease> leases = new ThreadLocal<>();
+    private boolean closed = false;
+
+    private long checkouts;
+    private long waits;
+    private long waitNanos;
+
+    /**
+     * Create the pool and its first {@link Db} instance, applying migrations if need.
+     *
+     * @param connectionString   jdbc connection string
+     * @param properties         connection properties or null
+     * @param migrationsResource migrations resource prefix as in {@link Db#Db(String, Properties, String)}, or null
+     * @param maxSize            maximum number of connections
+     * @throws SQLException if the first connection can not be opened
+     */
+    public DbPool(String connectionString, Properties properties, String migrationsResource, int maxSize)
+            throws SQLException {
+        this(connectionString, properties, migrationsResource, maxSize, null);
+    }
+
+    /**
+     * Create the pool and its first {@link Db} instance, applying migrations if need.
+     *
+     * @param connectionString   jdbc connection string
+     * @param properties         connection properties or null
+     * @param migrationsResource migrations resource prefix as in {@link Db#Db(String, Properties, String)}, or null
+     * @param maxSize            maximum number of connections
+     * @param initializer        task to perform on each new connection, e.g. to set up PRAGMAs that can't be passed
+     *                           with properties, or null
+     * @throws SQLException if the first connection can not be opened or initialized
+     */
+    public DbPool(String connectionString, Properties properties, String migrationsResource, int maxSize,
+                  Task<?> initializer) throws SQLException {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("pool size must be positive");
+        this.connectionString = connectionString;
+        this.properties = properties;
+        this.maxSize = maxSize;
+        this.initializer = initializer;
+        Db first = new Db(connectionString, properties, migrationsResource);
+        initialize(first);
+        all.add(first);
+        idle.add(first);
+    }
+
+    /**
+     * Get the instance for the calling thread, waiting for the free one if need. If the thread already holds the
+     * instance, it is returned again. Each call must be paired with {@link #checkin(Db)}.
+     *
+     * @return checked out instance
+     * @throws SQLException if the new connection fails, if timed out or interrupted while waiting, or if the pool is
+     *                      closed
+     */
+    public Db checkout() throws SQLException {
+        Lease lease = leases.get();
+        if (lease != null) {
+            lease.depth++;
+            return lease.db;
+        }
+        Db db = take();
+        leases.set(new Lease(db));
+        return db;
+    }
+
+    /**
+     * Return the instance obtained with {@link #checkout()}. The instance becomes available to other threads when the
+     * outermost checkout of the calling thread is checked in.
+     *
+     * @param db instance to return
+     */
+    public void checkin(Db db) {
+        Lease lease = leases.get();
+        if (lease == null || lease.db != db)
+            throw new IllegalStateException("the instance is not checked out by this thread");
+        if (--lease.depth > 0)
+            return;
+        leases.remove();
+        synchronized (this) {
+            if (closed || db.isClosed()) {
+                all.remove(db);
+                db.close();
+            } else
+                idle.push(db);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Perform the task with the checked out instance and check it in.
+     *
+     * @return what the task returns
+     */
+    public <T> T execute(Task<T> task) throws Exception {
+        Db db = checkout();
+        try {
+            return task.perform(db);
+        } finally {
+            checkin(db);
+        }
+    }
+
+    private synchronized Db take() throws SQLException {
+        checkouts++;
+        long started = 0;
+        try {
+            while (true) {
+                if (closed)
+                    throw new SQLException("pool is closed");
+                Db db = idle.poll();
+                if (db != null)
+                    return db;
+                if (all.size() < maxSize) {
+                    db = new Db(connectionString, properties);
+                    initialize(db);
+                    all.add(db);
+                    return db;
+                }
+                if (started == 0) {
+                    started = System.nanoTime();
+                    waits++;
+                }
+                long left = checkoutTimeout - (System.nanoTime() - started) / 1000000;
+                if (left <= 0)
+                    throw new SQLException("timed out waiting for the free connection, pool size " + maxSize);
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("interrupted waiting for the free connection");
+                }
+            }
+        } finally {
+            if (started != 0)
+                waitNanos += System.nanoTime() - started;
+        }
+    }
+
+    private void initialize(Db db) throws SQLException {
+        if (initializer != null) {
+            try {
+                initializer.perform(db);
+            } catch (SQLException e) {
+                db.close();
+                throw e;
+            } catch (Exception e) {
+                db.close();
+                throw new SQLException("failed to initialize the connection", e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the calling thread has checked out an instance and has not yet returned it
+     */
+    public boolean isHeldByCurrentThread() {
+        return leases.get() != null;
+    }
+
+    /**
+     * Close all idle instances and prevent further checkouts. Instances that are checked out are closed when returned.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            for (Db db : idle) {
+                all.remove(db);
+                db.close();
+            }
+            idle.clear();
+            if (!all.isEmpty())
+                log.d("pool closed with " + all.size() + " connections in use");
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of instances currently checked out
+     */
+    public synchronized int getActive() {
+        return all.size() - idle.size();
+    }
+
+    /**
+     * @return number of open instances that are not in use
+     */
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return number of checkouts, not counting re-entrant ones
+     */
+    public synchronized long getCheckouts() {
+        return checkouts;
+    }
+
+    /**
+     * @return number of checkouts that had to wait for the free instance
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * @return total time spent waiting for the free instance, milliseconds
+     */
+    public synchronized long getWaitMillis() {
+        return waitNanos / 1000000;
+    }
+
+    public long getCheckoutTimeout() {
+        return checkoutTimeout;
+    }
+
+    public void setCheckoutTimeout(long checkoutTimeout) {
+        this.checkoutTimeout = checkoutTimeout;
+    }
+
+    public String getConnectionString() {
+        return connectionString;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DbPool<" + connectionString + " active:" + getActive() + " idle:" + idle.size() + "/" + maxSize +
+                " waits:" + waits + " " + getWaitMillis() + "ms>";
+    }
+}
@@ -687,7 +687,8 @@ public class Boss {
                     return (T) h.smallestNumber(true);
                 case TYPE_BIN:
                 case TYPE_TEXT: {
-                    Bytes bb = new Bytes(in, (int) h.value);
+                    // Bytes(in, 0) would read the rest of the stream
+                    Bytes bb = h.value == 0 ? new Bytes(0) : new Bytes(in, (int) h.value);
                     if (h.code == TYPE_TEXT) {
                         String s = bb.toString();
                         cacheObject(s);
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class DbPoolTest {
+
+    private static final String FILE_NAME = "testpool.db";
+    private DbPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        new File(FILE_NAME).delete();
+        pool = new DbPool("jdbc:sqlite:" + FILE_NAME, null, "/com/icodici/db/migrate_", 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        new File(FILE_NAME).delete();
+    }
+
+    @Test
+    public void reentrantCheckout() throws Exception {
+        Db db = pool.checkout();
+        assertSame(db, pool.checkout());
+        assertEquals(1, pool.getActive());
+        pool.checkin(db);
+        assertEquals(1, pool.getActive());
+        pool.checkin(db);
+        assertEquals(0, pool.getActive());
+        assertEquals(1, pool.getIdle());
+        // migrations are applied once by the pool
+        assertEquals(1, (int) pool.execute(d -> d.getIntParam("version")));
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        List<Future<Db>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(es.submit(() -> pool.execute(db -> {
+                assertEquals(1, (int) db.getIntParam("version"));
+                Thread.sleep(10);
+                return db;
+            })));
+        }
+        for (Future<Db> f : futures)
+            assertNotNull(f.get());
+        es.shutdown();
+        assertEquals(0, pool.getActive());
+        assertEquals(2, pool.getIdle());
+        assertEquals(16, pool.getCheckouts());
+        assertTrue(pool.getWaits() > 0);
+        assertTrue(pool.getWaitMillis() > 0);
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        pool.setCheckoutTimeout(50);
+        CountDownLatch taken = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        for (int i = 0; i < 2; i++) {
+            es.submit(() -> pool.execute(db -> {
+                taken.countDown();
+                release.await();
+                return null;
+            }));
+        }
+        taken.await();
+        assertEquals(2, pool.getActive());
+        try {
+            pool.checkout();
+            fail("must time out");
+        } catch (SQLException e) {
+            assertEquals(1, pool.getWaits());
+        }
+        release.countDown();
+        es.shutdown();
+        es.awaitTermination(1, TimeUnit.SECONDS);
+        assertEquals(2, pool.getIdle());
+    }
+
+    @Test
+    public void close() throws Exception {
+        Db db = pool.checkout();
+        pool.close();
+        assertFalse(db.isClosed());
+        pool.checkin(db);
+        assertTrue(db.isClosed());
+        try {
+            pool.checkout();
+            fail("closed pool must not give connections");
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -134,6 +134,12 @@ public class TestBoss {
 		
 		// Should pach utf8
 		assertEquals("Абвгд", Boss.load(Boss.dump("Абвгд")));
+
+		// empty ones must not consume the rest of the stream
+		Object[] empty = Boss.load(Boss.dump(new Object[] { new byte[0], "", 7 }));
+		assertEquals(0, ((Bytes) empty[0]).size());
+		assertEquals("", empty[1]);
+		assertEquals(7, ((Number) empty[2]).intValue());
 	}
 
 	@Test
@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.utils.LogPrinter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cold storage for ledger records that are not going to change anymore, e.g. revoked and declined ones, see {@link
+ * SqlLedger#enableArchive(String)}.
+ * <p>
+ * Records are written by batches into immutable segment files, sorted by id. The segment consists of deflated blocks
+ * of {@link #BLOCK_RECORDS} records, the sparse index with the first id and the location of each block, the Bloom
+ * filter of all ids and the footer. Only the index and the filter are kept in memory, so the lookup of the missing id
+ * usually costs nothing, and of the present one costs one block read.
+ * <p>
+ * Records can't be changed in place, so the record that is changed or destroyed later is hidden with the tombstone,
+ * which is kept in memory and appended to the tombstones file. The tombstone hides the record in segments that existed
+ * when it was made, so the same record could be archived again. Segments where all records have expired are deleted
+ * as a whole by {@link #dropExpired(long)}.
+ */
+public class ArchiveTier implements Closeable {
+
+    /**
+     * Records per compressed block.
+     */
+    public static final int BLOCK_RECORDS = 32;
+    private static final int BLOOM_BITS_PER_RECORD = 10;
+    private static final int BLOOM_HASHES = 7;
+    private static final int MAGIC = 0x55415243;
+    private static final int VERSION = 1;
+    // index offset, record count, max expiration, magic, version
+    private static final int FOOTER_SIZE = 8 + 8 + 8 + 4 + 4;
+    private static final String SEGMENT_PREFIX = "archive-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TOMBSTONES = "tombstones.log";
+
+    // record id, state, created, expires, locked by, after the digest
+    private static final int RECORD_TAIL = 8 + 1 + 8 + 8 + 8;
+    // native inflater is expensive to create for each block read
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private static LogPrinter log = new LogPrinter("ARCH");
+
+    private final Path directory;
+    // newest first, as the record archived again is in the newer segment
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    // id -> number of the newest segment it hides the id in
+    private final ConcurrentHashMap<HashId, Integer> tombstones = new ConcurrentHashMap<>();
+    private DataOutputStream tombstonesOut;
+    private int lastSegment;
+
+    /**
+     * Open the archive in the directory, creating it if need.
+     */
+    public ArchiveTier(String directory) throws IOException {
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                                             name.length() - SEGMENT_SUFFIX.length()));
+                found.add(new Segment(number, p));
+            }
+        }
+        found.sort((a, b) -> Integer.compare(b.number, a.number));
+        segments.addAll(found);
+        lastSegment = found.isEmpty() ? 0 : found.get(0).number;
+        loadTombstones();
+    }
+
+    private void loadTombstones() throws IOException {
+        Path path = directory.resolve(TOMBSTONES);
+        if (Files.exists(path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                while (true) {
+                    byte[] digest;
+                    int segment;
+                    try {
+                        segment = in.readInt();
+                        digest = new byte[in.readShort()];
+                        in.readFully(digest);
+                    } catch (EOFException e) {
+                        // the incomplete last entry is lost, as the change it belongs to was not acknowledged
+                        break;
+                    }
+                    tombstones.merge(HashId.withDigest(digest), segment, Math::max);
+                }
+            }
+        }
+        rewriteTombstones();
+    }
+
+    /**
+     * Write the new segment with the records, which must not be in the archive already (unless hidden with
+     * tombstones). The segment file is synced to the disk before it is used.
+     *
+     * @return number of the new segment
+     */
+    public synchronized int write(Collection<LedgerSnapshot.Record> records) throws IOException {
+        List<LedgerSnapshot.Record> sorted = new ArrayList<>(records);
+        sorted.sort((a, b) -> compareDigests(a.id.getDigest(), b.id.getDigest()));
+        int number = lastSegment + 1;
+        Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        Path temp = directory.resolve(path.getFileName() + ".tmp");
+        long maxExpires = 0;
+        long[] bloom = new long[Math.max(1, (sorted.size() * BLOOM_BITS_PER_RECORD + 63) / 64)];
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(index);
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            DataOutputStream blockOut = new DataOutputStream(block);
+            Deflater deflater = new Deflater();
+            byte[] buffer = new byte[64 * 1024];
+            long offset = 0;
+            int blocks = 0;
+            for (int from = 0; from < sorted.size(); from += BLOCK_RECORDS) {
+                List<LedgerSnapshot.Record> part = sorted.subList(from, Math.min(sorted.size(), from + BLOCK_RECORDS));
+                block.reset();
+                for (LedgerSnapshot.Record r : part) {
+                    writeRecord(blockOut, r);
+                    addToBloom(bloom, r.id);
+                    maxExpires = r.expiresAt == 0 ? Long.MAX_VALUE : Math.max(maxExpires, r.expiresAt);
+                }
+                deflater.reset();
+                deflater.setInput(block.toByteArray());
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                    length += n;
+                }
+                byte[] first = part.get(0).id.getDigest();
+                indexOut.writeShort(first.length);
+                indexOut.write(first);
+                indexOut.writeLong(offset);
+                indexOut.writeInt(length);
+                offset += length;
+                blocks++;
+            }
+            deflater.end();
+            DataOutputStream tail = new DataOutputStream(out);
+            tail.writeInt(blocks);
+            index.writeTo(tail);
+            tail.writeInt(bloom.length);
+            for (long w : bloom)
+                tail.writeLong(w);
+            tail.writeLong(offset);
+            tail.writeLong(sorted.size());
+            tail.writeLong(maxExpires);
+            tail.writeInt(MAGIC);
+            tail.writeInt(VERSION);
+            tail.flush();
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        segments.add(0, new Segment(number, path));
+        lastSegment = number;
+        return number;
+    }
+
+    /**
+     * Delete the segment, e.g. if the records written to it could not be removed from the ledger.
+     */
+    public synchronized void deleteSegment(int number) throws IOException {
+        for (Segment s : segments) {
+            if (s.number == number) {
+                segments.remove(s);
+                s.close();
+                Files.deleteIfExists(s.path);
+            }
+        }
+    }
+
+    /**
+     * Find the record.
+     *
+     * @return found record or null if it is not in the archive or is hidden
+     */
+    public LedgerSnapshot.Record get(HashId id) throws IOException {
+        for (Segment s : segments) {
+            if (s.mightContain(id)) {
+                LedgerSnapshot.Record r = s.get(id);
+                if (r != null)
+                    return isHidden(id, s.number) ? null : r;
+            }
+        }
+        return null;
+    }
+
+    private boolean isHidden(HashId id, int segment) {
+        Integer hiddenUpTo = tombstones.get(id);
+        return hiddenUpTo != null && hiddenUpTo >= segment;
+    }
+
+    /**
+     * Hide the record from the archive, as it is destroyed or moved back to the ledger. Returns after the tombstone is
+     * written to the disk.
+     */
+    public synchronized void hide(HashId id) throws IOException {
+        if (segments.isEmpty())
+            return;
+        int segment = lastSegment;
+        byte[] digest = id.getDigest();
+        tombstonesOut.writeInt(segment);
+        tombstonesOut.writeShort(digest.length);
+        tombstonesOut.write(digest);
+        tombstonesOut.flush();
+        tombstones.merge(id, segment, Math::max);
+    }
+
+    /**
+     * Pass visible records with ids between from (inclusive) and to (exclusive) to the consumer, in no particular
+     * order.
+     *
+     * @param from smallest id digest or its prefix
+     * @param to   id digest or its prefix to stop at, null to scan to the end
+     */
+    public void scan(byte[] from, byte[] to, Consumer<LedgerSnapshot.Record> consumer) throws IOException {
+        for (Segment s : segments) {
+            for (LedgerSnapshot.Record r : s.range(from, to)) {
+                if (isVisible(r.id, s))
+                    consumer.accept(r);
+            }
+        }
+    }
+
+    /**
+     * Pass all visible records to the consumer, segment by segment.
+     */
+    public void forEach(Consumer<LedgerSnapshot.Record> consumer) throws IOException {
+        scan(new byte[0], null, consumer);
+    }
+
+    // the newest segment having the record wins
+    private boolean isVisible(HashId id, Segment segment) throws IOException {
+        if (isHidden(id, segment.number))
+            return false;
+        for (Segment s : segments) {
+            if (s == segment)
+                return true;
+            if (s.mightContain(id) && s.get(id) != null)
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * Delete segments where all records have expired.
+     *
+     * @param now current time as returned by {@link StateRecord#unixTime(java.time.LocalDateTime)}
+     * @return records in the deleted segments that were not hidden
+     */
+    public synchronized List<LedgerSnapshot.Record> dropExpired(long now) throws IOException {
+        List<LedgerSnapshot.Record> dropped = new ArrayList<>();
+        List<HashId> all = new ArrayList<>();
+        for (Segment s : segments) {
+            if (s.maxExpiresAt < now) {
+                for (LedgerSnapshot.Record r : s.range(new byte[0], null)) {
+                    all.add(r.id);
+                    if (!isHidden(r.id, s.number))
+                        dropped.add(r);
+                }
+                segments.remove(s);
+                s.close();
+                Files.deleteIfExists(s.path);
+                log.d("dropped expired archive segment " + s.path.getFileName() + " of " + s.records + " records");
+            }
+        }
+        if (!all.isEmpty()) {
+            // tombstones of records that are gone are not needed anymore
+            for (HashId id : all)
+                if (!mightHave(id))
+                    tombstones.remove(id);
+            rewriteTombstones();
+        }
+        return dropped;
+    }
+
+    private boolean mightHave(HashId id) {
+        for (Segment s : segments)
+            if (s.mightContain(id))
+                return true;
+        return false;
+    }
+
+    private void rewriteTombstones() throws IOException {
+        if (tombstonesOut != null)
+            tombstonesOut.close();
+        Path path = directory.resolve(TOMBSTONES);
+        Path temp = directory.resolve(TOMBSTONES + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            for (Map.Entry<HashId, Integer> e : tombstones.entrySet()) {
+                byte[] digest = e.getKey().getDigest();
+                out.writeInt(e.getValue());
+                out.writeShort(digest.length);
+                out.write(digest);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        tombstonesOut = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.APPEND)));
+    }
+
+    /**
+     * @return number of records in all segments, hidden ones included
+     */
+    public long size() {
+        long total = 0;
+        for (Segment s : segments)
+            total += s.records;
+        return total;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return number of ids hidden with tombstones
+     */
+    public int getTombstoneCount() {
+        return tombstones.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment s : segments)
+            s.close();
+        segments.clear();
+        if (tombstonesOut != null) {
+            tombstonesOut.close();
+            tombstonesOut = null;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, LedgerSnapshot.Record r) throws IOException {
+        byte[] digest = r.id.getDigest();
+        out.writeShort(digest.length);
+        out.write(digest);
+        out.writeLong(r.recordId);
+        out.writeByte(r.state.ordinal());
+        out.writeLong(r.createdAt);
+        out.writeLong(r.expiresAt);
+        out.writeLong(r.lockedByRecordId);
+    }
+
+    private static LedgerSnapshot.Record readRecord(DataInputStream in) throws IOException {
+        byte[] digest = new byte[in.readShort()];
+        in.readFully(digest);
+        long recordId = in.readLong();
+        ItemState state = ItemState.values()[in.readByte()];
+        return new LedgerSnapshot.Record(recordId, HashId.withDigest(digest), state, in.readLong(), in.readLong(),
+                                         in.readLong());
+    }
+
+    private static long bloomHash(HashId id) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : id.getDigest())
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        return h;
+    }
+
+    private static void addToBloom(long[] bloom, HashId id) {
+        long h = bloomHash(id);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        long bits = bloom.length * 64L;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7FFFFFFFL) % bits;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean bloomContains(long[] bloom, HashId id) {
+        long h = bloomHash(id);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        long bits = bloom.length * 64L;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7FFFFFFFL) % bits;
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compare digests as unsigned bytes, shorter prefix goes first.
+     */
+    static int compareDigests(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int x = a[i] & 0xFF, y = b[i] & 0xFF;
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    private static class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        final byte[][] firstIds;
+        final long[] offsets;
+        final int[] lengths;
+        final long[] bloom;
+        final long records;
+        final long maxExpiresAt;
+
+        Segment(int number, Path path) throws IOException {
+            this.number = number;
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            ByteBuffer footer = readAt(channel.size() - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            records = footer.getLong();
+            maxExpiresAt = footer.getLong();
+            if (footer.getInt() != MAGIC || footer.getInt() != VERSION) {
+                channel.close();
+                throw new IOException("bad archive segment: " + path);
+            }
+            ByteBuffer tail = readAt(indexOffset, (int) (channel.size() - FOOTER_SIZE - indexOffset));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(tail.array()));
+            int blocks = in.readInt();
+            firstIds = new byte[blocks][];
+            offsets = new long[blocks];
+            lengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstIds[i] = new byte[in.readShort()];
+                in.readFully(firstIds[i]);
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+            }
+            bloom = new long[in.readInt()];
+            for (int i = 0; i < bloom.length; i++)
+                bloom[i] = in.readLong();
+        }
+
+        private ByteBuffer readAt(long position, int length) throws IOException {
+            ByteBuffer bb = ByteBuffer.allocate(length);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, position + bb.position()) < 0)
+                    throw new EOFException("archive segment is truncated: " + path);
+            }
+            bb.flip();
+            return bb;
+        }
+
+        boolean mightContain(HashId id) {
+            return bloomContains(bloom, id);
+        }
+
+        /**
+         * @return index of the last block with the first id not greater than the digest, or -1
+         */
+        private int blockOf(byte[] digest) {
+            int lo = 0, hi = firstIds.length - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareDigests(firstIds[mid], digest) <= 0) {
+                    found = mid;
+                    lo = mid + 1;
+                } else
+                    hi = mid - 1;
+            }
+            return found;
+        }
+
+        private byte[] inflateBlock(int block) throws IOException {
+            byte[] packed = readAt(offsets[block], lengths[block]).array();
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(packed.length * 3);
+            try {
+                inflater.setInput(packed);
+                byte[] buffer = new byte[16 * 1024];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && inflater.needsInput())
+                        throw new IOException("archive block is truncated: " + path);
+                    bos.write(buffer, 0, n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("archive block is corrupted: " + path, e);
+            }
+            return bos.toByteArray();
+        }
+
+        private List<LedgerSnapshot.Record> readBlock(int block) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflateBlock(block)));
+            List<LedgerSnapshot.Record> result = new ArrayList<>(BLOCK_RECORDS);
+            while (in.available() > 0)
+                result.add(readRecord(in));
+            return result;
+        }
+
+        LedgerSnapshot.Record get(HashId id) throws IOException {
+            byte[] digest = id.getDigest();
+            int block = blockOf(digest);
+            if (block < 0)
+                return null;
+            // compare digests in place, only the found record is unpacked
+            ByteBuffer bb = ByteBuffer.wrap(inflateBlock(block));
+            while (bb.hasRemaining()) {
+                int start = bb.position();
+                int length = bb.getShort();
+                boolean same = length == digest.length;
+                for (int i = 0; same && i < length; i++)
+                    same = bb.get(start + 2 + i) == digest[i];
+                if (same) {
+                    bb.position(start);
+                    byte[] rest = new byte[RECORD_TAIL + 2 + length];
+                    bb.get(rest);
+                    return readRecord(new DataInputStream(new ByteArrayInputStream(rest)));
+                }
+                bb.position(start + 2 + length + RECORD_TAIL);
+            }
+            return null;
+        }
+
+        List<LedgerSnapshot.Record> range(byte[] from, byte[] to) throws IOException {
+            List<LedgerSnapshot.Record> result = new ArrayList<>();
+            for (int block = Math.max(0, blockOf(from)); block < firstIds.length; block++) {
+                if (to != null && compareDigests(firstIds[block], to) >= 0)
+                    break;
+                for (LedgerSnapshot.Record r : readBlock(block)) {
+                    byte[] d = r.id.getDigest();
+                    if (compareDigests(d, from) >= 0 && (to == null || compareDigests(d, to) < 0))
+                        result.add(r);
+                }
+            }
+            return result;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
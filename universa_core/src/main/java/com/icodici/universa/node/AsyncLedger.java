@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous facade of the {@link Ledger}: calls are queued to the bounded pool of I/O threads and return {@link
+ * CompletableFuture}, so the caller could chain the ledger work instead of parking its own thread while the storage
+ * is busy.
+ * <p>
+ * Concurrent {@link #getRecord(HashId)} calls for the same id, as well as {@link #findOrCreate(HashId)} ones, are
+ * coalesced: while the lookup is queued or running, others get the same future. The lookup that has joined the one
+ * started before some {@link #save(StateRecord)} completed could see the record as it was before the save, so chain
+ * the lookup on the save future if it matters.
+ * <p>
+ * If the queue is full, the call returns the future failed with {@link Ledger.Failure} at once, rather than blocking
+ * the caller. Non-async stages chained on returned futures run in the I/O thread that completes them, so they should
+ * be short.
+ */
+public class AsyncLedger {
+
+    public static final int DEFAULT_THREADS = SqlLedger.DEFAULT_READERS;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private final Ledger ledger;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<HashId, CompletableFuture<StateRecord>> lookups = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<HashId, CompletableFuture<StateRecord>> creations = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create facade with {@link #DEFAULT_THREADS} and {@link #DEFAULT_QUEUE_SIZE}.
+     */
+    public AsyncLedger(Ledger ledger) {
+        this(ledger, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Create facade. Threads are started on demand and stop when idle.
+     *
+     * @param ledger    to call, it is not closed by {@link #close()}
+     * @param threads   number of I/O threads
+     * @param queueSize maximum number of calls waiting for the thread
+     */
+    public AsyncLedger(Ledger ledger, int threads, int queueSize) {
+        if (threads < 1 || queueSize < 1)
+            throw new IllegalArgumentException("threads and queue size must be positive");
+        this.ledger = ledger;
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r, "ledger-io-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public Ledger getLedger() {
+        return ledger;
+    }
+
+    /**
+     * @see Ledger#getRecord(HashId)
+     */
+    public CompletableFuture<StateRecord> getRecord(HashId id) {
+        return coalesce(lookups, id, () -> ledger.getRecord(id));
+    }
+
+    /**
+     * @see Ledger#findOrCreate(HashId)
+     */
+    public CompletableFuture<StateRecord> findOrCreate(HashId id) {
+        return coalesce(creations, id, () -> ledger.findOrCreate(id));
+    }
+
+    /**
+     * @see Ledger#getRecords(Collection)
+     */
+    public CompletableFuture<Map<HashId, StateRecord>> getRecords(Collection<HashId> ids) {
+        return submit(() -> ledger.getRecords(ids));
+    }
+
+    /**
+     * Save the record.
+     *
+     * @return future of the saved record
+     * @see Ledger#save(StateRecord)
+     */
+    public CompletableFuture<StateRecord> save(StateRecord record) {
+        return afterChange(record.getId(), submit(() -> {
+            ledger.save(record);
+            return record;
+        }));
+    }
+
+    /**
+     * @see Ledger#destroy(StateRecord)
+     */
+    public CompletableFuture<Void> destroy(StateRecord record) {
+        return afterChange(record.getId(), submit(() -> {
+            ledger.destroy(record);
+            return null;
+        }));
+    }
+
+    /**
+     * Perform the callable in the ledger transaction in the I/O thread.
+     *
+     * @see Ledger#transaction(Callable)
+     */
+    public <T> CompletableFuture<T> transaction(Callable<T> callable) {
+        return submit(() -> ledger.transaction(callable));
+    }
+
+    /**
+     * Stop I/O threads once queued calls are done. Does not close the ledger.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private CompletableFuture<StateRecord> coalesce(ConcurrentHashMap<HashId, CompletableFuture<StateRecord>> inFlight,
+                                                    HashId id, Callable<StateRecord> call) {
+        CompletableFuture<StateRecord> future = inFlight.get(id);
+        if (future == null) {
+            CompletableFuture<StateRecord> created = new CompletableFuture<>();
+            future = inFlight.putIfAbsent(id, created);
+            if (future == null) {
+                created.whenComplete((r, e) -> inFlight.remove(id, created));
+                return submit(created, call);
+            }
+        }
+        coalesced.incrementAndGet();
+        return future;
+    }
+
+    /**
+     * Lookups started before the change is complete must not be joined anymore.
+     */
+    private <T> CompletableFuture<T> afterChange(HashId id, CompletableFuture<T> change) {
+        change.whenComplete((r, e) -> {
+            lookups.remove(id);
+            creations.remove(id);
+        });
+        return change;
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> call) {
+        return submit(new CompletableFuture<>(), call);
+    }
+
+    private <T> CompletableFuture<T> submit(CompletableFuture<T> future, Callable<T> call) {
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+            submitted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(new Ledger.Failure("ledger I/O queue is full", e));
+        }
+        return future;
+    }
+
+    /**
+     * @return number of calls passed to I/O threads
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return number of lookups that have joined the one already in flight
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return number of calls failed as the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of calls waiting for the I/O thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncLedger<submitted:" + submitted + " coalesced:" + coalesced + " rejected:" + rejected + ">";
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counting Bloom filter over {@link HashId} values, used by the ledgers to answer "definitely not there" without
+ * touching the storage. It never gives false negatives for ids that were added and not removed, and gives false
+ * positives with the probability that depends on the fill, see {@link #getExpectedFalsePositiveRate()}.
+ * <p>
+ * Counters are 4 bits wide, packed 16 per long and updated with CAS, so all methods are thread-safe and lock-free. The
+ * counter that reaches 15 sticks there forever, so removals never cause false negatives, at the cost of a few more
+ * false positives.
+ * <p>
+ * Indexes are taken from the digest itself with the double hashing, as {@link HashId} digests are already uniformly
+ * distributed.
+ */
+public class CountingBloomFilter {
+
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray cells;
+    private final long mask;
+    private final int hashes;
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    /**
+     * Create the filter sized for the expected number of ids.
+     *
+     * @param expectedItems     number of ids the filter will hold
+     * @param falsePositiveRate wanted false positive probability when it holds expectedItems
+     */
+    public CountingBloomFilter(long expectedItems, double falsePositiveRate) {
+        if (expectedItems < 1)
+            throw new IllegalArgumentException("expectedItems must be positive");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("falsePositiveRate must be in (0,1) range");
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedItems * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long size = Math.max(64, Long.highestOneBit(bits - 1) << 1);
+        if (size / 16 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("filter is too large");
+        mask = size - 1;
+        cells = new AtomicLongArray((int) (size / 16));
+        hashes = Math.max(1, (int) Math.round((double) size / expectedItems * ln2));
+    }
+
+    /**
+     * Add the id to the filter.
+     */
+    public void add(HashId id) {
+        long h1 = hash1(id), h2 = hash2(id);
+        for (int i = 0; i < hashes; i++)
+            update((h1 + i * h2) & mask, 1);
+        count.incrementAndGet();
+    }
+
+    /**
+     * Remove the id that was previously added. Removing an id that was not added could cause false negatives for
+     * other ids, so the caller must be sure it was added.
+     */
+    public void remove(HashId id) {
+        long h1 = hash1(id), h2 = hash2(id);
+        for (int i = 0; i < hashes; i++)
+            update((h1 + i * h2) & mask, -1);
+        count.decrementAndGet();
+    }
+
+    /**
+     * Check the id. Updates the checks and negatives counters.
+     *
+     * @return false if the id is definitely not in the filter, true if it might be there.
+     */
+    public boolean mightContain(HashId id) {
+        checks.incrementAndGet();
+        long h1 = hash1(id), h2 = hash2(id);
+        for (int i = 0; i < hashes; i++) {
+            if (get((h1 + i * h2) & mask) == 0) {
+                negatives.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Should be called by the user when {@link #mightContain(HashId)} returned true but the id was not found in the
+     * storage, to collect the {@link #getFalsePositiveRate()} metric.
+     */
+    public void reportFalsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    /**
+     * @return number of ids currently in the filter
+     */
+    public long size() {
+        return count.get();
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * @return number of counters
+     */
+    public long getCapacity() {
+        return mask + 1;
+    }
+
+    public long getChecks() {
+        return checks.get();
+    }
+
+    public long getNegatives() {
+        return negatives.get();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    /**
+     * Observed false positive rate: the share of reported false positives among all checks of missing ids.
+     *
+     * @return rate, 0 if there were no checks of missing ids yet
+     */
+    public double getFalsePositiveRate() {
+        long fp = falsePositives.get();
+        long total = fp + negatives.get();
+        return total == 0 ? 0 : (double) fp / total;
+    }
+
+    /**
+     * @return theoretical false positive probability for the current number of ids
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashes * count.get() / (mask + 1)), hashes);
+    }
+
+    @Override
+    public String toString() {
+        return "CountingBloomFilter<" + count + " ids, " + (mask + 1) + "x" + hashes + " checks:" + checks +
+                " negatives:" + negatives + " fp:" + falsePositives + ">";
+    }
+
+    private int get(long index) {
+        return (int) (cells.get((int) (index >>> 4)) >>> ((index & 15) << 2)) & 15;
+    }
+
+    private void update(long index, int delta) {
+        int cell = (int) (index >>> 4);
+        int shift = (int) (index & 15) << 2;
+        while (true) {
+            long value = cells.get(cell);
+            int c = (int) (value >>> shift) & 15;
+            // saturated counters are never changed, and we never go below zero
+            if (c == MAX_COUNT || (c == 0 && delta < 0))
+                return;
+            long updated = (value & ~(15L << shift)) | ((long) (c + delta) << shift);
+            if (cells.compareAndSet(cell, value, updated))
+                return;
+        }
+    }
+
+    private static long hash1(HashId id) {
+        byte[] d = id.getDigest();
+        return d.length >= 8 ? readLong(d, 0) : Arrays.hashCode(d);
+    }
+
+    private static long hash2(HashId id) {
+        byte[] d = id.getDigest();
+        long h = d.length >= 16 ? readLong(d, 8) : Long.rotateLeft(hash1(id) * 0x9E3779B97F4A7C15L, 31);
+        // odd step visits all counters before repeating
+        return h | 1;
+    }
+
+    private static long readLong(byte[] d, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++)
+            result = (result << 8) | (d[i] & 0xFF);
+        return result;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ElectionsScheduler} that runs each task in its own thread, reusing idle ones, so tasks blocked on slow nodes
+ * or the ledger never delay others. Delays are counted by the single timer thread that only hands tasks over.
+ */
+public class ElasticElectionsScheduler implements ElectionsScheduler {
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final ExecutorService workers;
+    private final AtomicLong taskCount = new AtomicLong();
+
+    public ElasticElectionsScheduler() {
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "elections-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        AtomicInteger counter = new AtomicInteger();
+        workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "elections-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        taskCount.incrementAndGet();
+        workers.execute(task);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return timer.schedule(() -> execute(task), delay, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return number of tasks run so far
+     */
+    public long getTaskCount() {
+        return taskCount.get();
+    }
+}
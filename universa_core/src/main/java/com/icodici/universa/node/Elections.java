@@ -14,6 +14,7 @@ import net.sergeych.tools.AsyncEvent;
 import net.sergeych.utils.LogPrinter;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.*;
@@ -40,18 +41,26 @@ class Elections {
         return record.getState();
     }
 
-    private boolean stop = false;
+    private volatile boolean stop = false;
 
-    // Important. number of threads in the pool must be at least 2 to allow download thread to wait for sources
-    // otherwise it can block forever. In the test environment it should be greater than the number of voting
-    // local nodes + 1
-    static ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(16);
+    // No task waits for another, e.g. the download is tried when a source is known and the approval is finished when
+    // the item is downloaded, so the scheduler never deadlocks, see ElectionsScheduler
+    private ElectionsScheduler scheduler;
 
     private BlockingQueue<Node> itemSources = new LinkedBlockingQueue<>();
+    // guarded by itemSources
+    private boolean downloadStarted = false;
+    private boolean downloading = false;
     private Set<Poller> pollers = Collections.newSetFromMap(new ConcurrentHashMap<Poller, Boolean>());
     private Set<Node> positiveNodes = Collections.newSetFromMap(new ConcurrentHashMap<Node, Boolean>());
     private Set<Node> negativeNodes = Collections.newSetFromMap(new ConcurrentHashMap<Node, Boolean>());
-    private Future<?> downloader;
+    // nodes to push our vote to, guarded by itself
+    private final Set<Node> subscribers = new HashSet<>();
+    private boolean votePushed = false;
+    // guarded by itemLock
+    private boolean committed = false;
+    // not null if nodes are polled for the whole block, see Network#getBlockSize()
+    private ElectionsBlock block;
     private LocalNode localNode;
     private StateRecord record;
     private Object itemLock = new Object();
@@ -91,6 +100,7 @@ class Elections {
         this.localNode = localNode;
         this.ledger = localNode.getLedger();
         this.network = localNode.getNetwork();
+        this.scheduler = network.getScheduler();
 
         record = ledger.findOrCreate(itemId);
         if (record.getExpiresAt() == null)
@@ -126,9 +136,16 @@ class Elections {
                 // Too bad: we will not process it further
                 checkPassed = false;
             } else {
+                // fetch all the records we need in one go; it also warms up the ledger cache for the locking below
+                Set<HashId> ids = new HashSet<>(item.getReferencedItems());
+                item.getRevokingItems().forEach(a -> ids.add(a.getId()));
+                item.getNewItems().forEach(a -> ids.add(a.getId()));
+                Map<HashId, StateRecord> known = ledger.getRecords(ids);
+
                 // check the referenced items
                 for (HashId id : item.getReferencedItems()) {
-                    if (!ledger.isApproved(id)) {
+                    StateRecord r = known.get(id);
+                    if (r == null || !r.getState().isApproved()) {
                         item.addError(Errors.BAD_REF, id.toString(), "reference not approved");
                         checkPassed = false;
                     }
@@ -164,57 +181,83 @@ class Elections {
 
             record.setState(checkPassed ? ItemState.PENDING_POSITIVE : ItemState.PENDING_NEGATIVE);
             record.save();
+            pushVote();
 //            log.d(localNode.toString()+" checked item "+itemId+" : "+getState());
         }
     }
 
 
     private void startDownload() {
-        if (downloader != null)
+        synchronized (itemSources) {
+            downloadStarted = true;
+        }
+        downloadNext();
+    }
+
+    /**
+     * Try to download the item from the next known source, unless it is being downloaded or is here already. It is
+     * called again when a new source is added, so no thread waits for the sources.
+     */
+    private void downloadNext() {
+        synchronized (itemSources) {
+            if (!downloadStarted || downloading || item != null || stop || itemSources.isEmpty())
+                return;
+            downloading = true;
+        }
+        scheduler.execute(this::download);
+    }
+
+    private void download() {
+        if (localNode.lateDownload && !getState().consensusFound()) {
+            log.d("--------------------------------------------------- late download active");
+            scheduler.schedule(this::download, 20, TimeUnit.MILLISECONDS);
             return;
-        downloader = pool.submit(() -> {
-            log.d(localNode + " starts download thread");
-            while (item == null && !stop) {
-//                log.d(localNode.toString()+" attempt to download "+itemId);
-                Node node = itemSources.take();
-                log.d(localNode + " has a source: " + node);
-                if (localNode.lateDownload) {
-                    log.d("--------------------------------------------------- late download active");
-                    while (!getState().consensusFound())
-                        Thread.sleep(20);
-                    log.d("---------------------------------------------------  consensu found, we can download");
-                }
-                try {
-                    item = node.getItem(itemId);
-                    // null means this node has no item at hand, so we check others
-                    if (item != null) {
-                        log.d(localNode + " downloaded " + itemId + " from " + node);
-                        itemDownloaded.fire(null);
-                        checkItem();
-                        break;
-                    }
-                    else {
-                        log.i("strange: item not found at "+node+", in queue: "+itemSources.size());
-                    }
-                } catch (IOException ex) {
-                    // IOException means that we can retry
-                    log.i("exception loading item: "+node);
-                    itemSources.add(node);
+        }
+        Node node = itemSources.poll();
+        log.d(localNode + " has a source: " + node);
+        boolean retry = false;
+        try {
+            if (node != null && item == null && !stop) {
+                Approvable downloaded = node.getItem(itemId);
+                // null means this node has no item at hand, so we check others
+                if (downloaded != null) {
+                    item = downloaded;
+                    log.d(localNode + " downloaded " + itemId + " from " + node);
+                    itemDownloaded.fire(null);
+                    checkItem();
+                    return;
                 }
+                log.i("strange: item not found at " + node + ", in queue: " + itemSources.size());
+            }
+        } catch (IOException ex) {
+            // IOException means that we can retry, a bit later
+            log.i("exception loading item: " + node);
+            itemSources.add(node);
+            retry = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            log.e(localNode + " failed to download " + itemId + " from " + node + ": " + e);
+        } finally {
+            synchronized (itemSources) {
+                downloading = false;
             }
-            return null;
-        });
+        }
+        if (retry)
+            scheduler.schedule(this::downloadNext, network.getRequeryPause().toMillis(), TimeUnit.MILLISECONDS);
+        else
+            downloadNext();
     }
 
     synchronized public void close() {
         synchronized (itemLock) {
             if (!stop) {
                 stop = true;
-                if (downloader != null)
-                    downloader.cancel(true);
                 // the pollers collection can not be mutated at this point as all pollers are created in the constructor.
                 // If later this behavior will be changed, this should be rewritten to sync with stop field changes
-                pool.execute(() -> pollers.forEach(x -> x.close()));
+                if (!pollers.isEmpty())
+                    scheduler.execute(() -> pollers.forEach(x -> x.close()));
 //                try {
 //                    pool.awaitTermination(500,TimeUnit.MILLISECONDS);
 //                } catch (InterruptedException e) {
@@ -230,6 +273,11 @@ class Elections {
     }
 
     private void startVoting() {
+        if (network.getBlockSize() > 0) {
+            // the block polls all nodes for all its items at once
+            block = localNode.addToBlock(this);
+            return;
+        }
         // Shuffle nodes and start polling
         List<Node> nodes = new ArrayList<>(network.getAllNodes());
         Collections.shuffle(nodes);
@@ -260,22 +308,114 @@ class Elections {
                     conesnusFound = true;
                 }
                 if (conesnusFound) {
-                    // close elections, save the result.
-                    if (positive)
+                    // close elections, save the result. Subscribers that are still waiting for our vote learn the
+                    // result at once
+                    if (positive) {
+                        // closes when the ledger is updated, that could wait for the download
                         commitAndApprove();
-                    else
+                    } else {
                         rollbackChanges(ItemState.DECLINED, LocalDateTime.now().plus(network.getDeclinedExpiration()));
-                    close();
+                        pushVote();
+                        close();
+                    }
                 }
             }
         }
     }
 
+    /**
+     * Register the node to push our vote to, see {@link Node#voteItem(Node, HashId, ItemState)}, when we decide. If
+     * we have already decided, the node is not registered, as it gets our state in the reply to the current call.
+     */
+    public void subscribe(Node node) {
+        synchronized (subscribers) {
+            if (!votePushed)
+                subscribers.add(node);
+        }
+    }
+
+    /**
+     * Push the current state to all subscribers, once. Pushes are sent in the background and failures are ignored:
+     * subscribers poll the nodes that are silent for too long anyway.
+     */
+    private void pushVote() {
+        ItemState state = getState();
+        List<Node> nodes;
+        synchronized (subscribers) {
+            if (votePushed)
+                return;
+            votePushed = true;
+            nodes = new ArrayList<>(subscribers);
+            subscribers.clear();
+        }
+        for (Node node : nodes) {
+            scheduler.execute(() -> {
+                try {
+                    node.voteItem(localNode, itemId, state);
+                } catch (Exception e) {
+                    log.d(localNode + " failed to push vote on " + itemId + " to " + node + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop polling the node, e.g. when it has pushed its vote.
+     */
+    public void stopPolling(Node node) {
+        for (Poller p : pollers) {
+            if (p.node.equals(node))
+                p.close();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Fail the elections if there are no more nodes to poll and no consensus is found, or if they have expired.
+     */
+    synchronized void checkFailure() {
+        // approved elections that wait for the download are not failed, see commitAndApprove()
+        if (!stop && getState().isPending() && ((block == null && pollers.size() == 0) || record.isExpired()))
+            fail();
+    }
+
+    /**
+     * Fail the elections if no consensus is found, e.g. when all nodes polled by the block have voted.
+     */
+    synchronized void failIfPending() {
+        if (!stop && getState().isPending())
+            fail();
+    }
+
+    private void fail() {
+        log.d(localNode.toString() + " failing elections, pollers: " + pollers.size());
+        rollbackChanges(ItemState.UNDEFINED, LocalDateTime.now().plusSeconds(5));
+        close();
+    }
+
+    /**
+     * @return true if the node has voted in these elections
+     */
+    boolean hasVote(Node node) {
+        return positiveNodes.contains(node) || negativeNodes.contains(node);
+    }
+
+    /**
+     * @return true if the elections are done, either the consensus is found or they have failed
+     */
+    boolean isClosed() {
+        return stop;
+    }
+
     /**
      * Mark this record as apporved, revoke and create all referenced items in a transaction. Thread-safe method. There
      * is a trick: some records could be in conflict state, these should be overriden. It tries to maintain ledger
      * "iterable integrity", e.g. each new consenus should bring local ledger closer to the state shared by the
      * network.
+     * <p>
+     * It may happen that consensus is found earlier than the item is downloaded, and we still need the item to fix all
+     * its relations. Then the ledger is updated and the elections are closed when it is downloaded or the elections
+     * time is over, not blocking the caller.
      */
     private void commitAndApprove() {
         synchronized (itemLock) {
@@ -283,42 +423,89 @@ class Elections {
             log.d(localNode.toString() + " approved: " + itemId);
             // first we need to flag our state as approved
             record.setState(ItemState.APPROVED);
-            // it may happen that consensu is found earlier than item is download
-            // we still need item to fix all its relations:
-            if (item == null) {
-                try {
-                    long millisLeft = getMillisLeft();
-                    if( millisLeft > 0 )
-                        itemDownloaded.await(millisLeft);
-                } catch (TimeoutException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (item != null) {
+            // others learn our vote at once, so it must be in the ledger even if the item never arrives
+            if (item == null)
                 record.save();
-                // We use the caching capability of ledger so we do not get records from
-                // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
-                // yields. We jsu clean them up afterwards:
-                for (Approvable a : item.getRevokingItems()) {
-                    // The record may not exist due to ledger desync, so we create it if need
-                    StateRecord r = ledger.findOrCreate(a.getId());
-                    r.setState(ItemState.REVOKED);
-                    r.setExpiresAt(LocalDateTime.now().plus(network.getArchiveExpiration()));
-                    r.save();
-                }
-                for (Approvable item : item.getNewItems()) {
-                    // The record may not exist due to ledger desync too, so we create it if need
-                    StateRecord r = ledger.findOrCreate(item.getId());
-                    r.setState(ItemState.APPROVED);
-                    r.setExpiresAt(LocalDateTime.now().plus(network.getApprovedExpiration()));
-                    r.save();
-                }
-                lockedToCreate.clear();
-                lockedToRevoke.clear();
+        }
+        if (item != null) {
+            try {
+                finishApproval();
+            } finally {
+                pushVote();
             }
+        } else {
+            pushVote();
+            itemDownloaded.addConsumer(x -> finishApproval());
+            scheduler.schedule(this::approvalTimeout, Math.max(getMillisLeft(), 0), TimeUnit.MILLISECONDS);
         }
     }
 
+    /**
+     * Finish the approval without the item once the elections time is over, unless the download is in progress: then
+     * it either brings the item, or the timeout is checked again later.
+     */
+    private void approvalTimeout() {
+        synchronized (itemSources) {
+            if (downloading) {
+                scheduler.schedule(this::approvalTimeout, network.getRequeryPause().toMillis(),
+                                   TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        finishApproval();
+    }
+
+    /**
+     * Update the ledger with the approved item, if it is downloaded, and close the elections. Only the first call
+     * does it. The item record and records of its revoking and new items are saved in one transaction, so the ledger
+     * is never left with only a part of them, and the elections are closed even if it fails.
+     */
+    private void finishApproval() {
+        synchronized (itemLock) {
+            if (committed)
+                return;
+            committed = true;
+        }
+        try {
+            synchronized (itemLock) {
+                if (item != null) {
+                    ledger.transaction(() -> {
+                        record.save();
+                        // We use the caching capability of ledger so we do not get records from
+                        // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
+                        // yields. We jsu clean them up afterwards:
+                        for (Approvable a : item.getRevokingItems()) {
+                            // The record may not exist due to ledger desync, so we create it if need
+                            updateRecord(a.getId(), ItemState.REVOKED,
+                                         LocalDateTime.now().plus(network.getArchiveExpiration()));
+                        }
+                        for (Approvable item : item.getNewItems()) {
+                            // The record may not exist due to ledger desync too, so we create it if need
+                            updateRecord(item.getId(), ItemState.APPROVED,
+                                         LocalDateTime.now().plus(network.getApprovedExpiration()));
+                        }
+                        return null;
+                    });
+                    lockedToCreate.clear();
+                    lockedToRevoke.clear();
+                } else
+                    log.e(localNode + " approved item is not downloaded in time: " + itemId);
+            }
+        } catch (RuntimeException e) {
+            log.e(localNode + " failed to save approved item " + itemId + ": " + e);
+            throw e;
+        } finally {
+            close();
+        }
+    }
+
+    private void updateRecord(HashId id, ItemState state, LocalDateTime expiresAt) {
+        StateRecord r = ledger.findOrCreate(id);
+        r.setState(state);
+        r.setExpiresAt(expiresAt);
+        r.save();
+    }
+
     /**
      * Mark this item as {@link ItemState#DECLINED} and update ledger, unlocking and removing connected records in a
      * transaction. Thread safe method.
@@ -346,12 +533,17 @@ class Elections {
     public void addSourceNode(Node caller) {
         // todo: do not add same node twice - backup nodes that were once added
         itemSources.add(caller);
+        downloadNext();
     }
 
     public StateRecord getRecord() {
         return record;
     }
 
+    public HashId getItemId() {
+        return itemId;
+    }
+
     public Approvable getItem() {
         return item;
     }
@@ -398,7 +590,10 @@ class Elections {
         }
 
         public void start() {
-            future = pool.submit(this);
+            // the first step could reschedule itself before the future is assigned otherwise
+            synchronized (this) {
+                future = scheduler.schedule(this, 0, TimeUnit.MILLISECONDS);
+            }
         }
 
 
@@ -418,7 +613,7 @@ class Elections {
          * Close poller, unregister it from outer class and cancel it's future (e.g. stop polling)
          */
         public void close() {
-            synchronized (future) {
+            synchronized (this) {
                 // get rid of node != null
                 if (future != null) {
                     future.cancel(false);
@@ -435,12 +630,13 @@ class Elections {
         @Override
         public void run() {
             if (!stop) {
+                if (positiveNodes.contains(node) || negativeNodes.contains(node)) {
+                    // the node has already voted, e.g. pushed its vote, don't poll it
+                    pollers.remove(this);
+                    checkFailure();
+                    return;
+                }
                 try {
-                    if (positiveNodes.contains(node) || negativeNodes.contains(node)) {
-                        // the node has already voted, don't poll it
-                        pollers.remove(this);
-                        return;
-                    }
                     ItemResult result = node.checkItem(localNode, itemId, getState(), item != null);
                     if (result == null) {
                         throw new IOException("failed to read checkitem result");
@@ -451,8 +647,9 @@ class Elections {
                     switch (result.state) {
                         case PENDING:
                         case UNDEFINED:
-                            // no result, being processed/wait, not removing self from pollers:
-                            reschedule();
+                            // no result, being processed. The node pushes its vote when it decides, so we only
+                            // poll it again if it is silent for too long, not removing self from pollers:
+                            reschedule(network.getVotePollingPause());
                             break;
                         case PENDING_POSITIVE:
                         case LOCKED:
@@ -474,20 +671,17 @@ class Elections {
                 } catch (Exception e) {
 //                    log.e("failed to check item " + itemId + " from node " + node + ": " + e.getMessage() + ", retrying");
 //                    e.printStackTrace();
-                    reschedule();
-                }
-                if ((pollers.size() == 0 && getState().isPending()) || LocalDateTime.now().isAfter(record.getExpiresAt())) {
-                    log.d(localNode.toString() + " failing elections, pollers: " + pollers.size());
-                    rollbackChanges(ItemState.UNDEFINED, LocalDateTime.now().plusSeconds(5));
-                    Elections.this.close();
+                    reschedule(network.getRequeryPause());
                 }
+                checkFailure();
             }
         }
 
-        private void reschedule() {
-            if( !stop )
-                future = pool.schedule(this, network.getRequeryPause().toMillis(), TimeUnit.MILLISECONDS);
-
+        private void reschedule(Duration pause) {
+            synchronized (this) {
+                if (!stop && future != null)
+                    future = scheduler.schedule(this, pause.toMillis(), TimeUnit.MILLISECONDS);
+            }
         }
     }
 
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import net.sergeych.utils.LogPrinter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elections of many items at once, used if {@link Network#getBlockSize()} is set. New {@link Elections} are collected
+ * into the block for {@link Network#getBlockTime()} or until it is full. Then each node is polled for all undecided
+ * items of the block with one {@link Node#checkItems(Node, List)} call per round, so the number of calls and scheduled
+ * tasks depends on the number of blocks, not items. Each item is still checked, voted and reported to its consumers by
+ * its own {@link Elections}.
+ * <p>
+ * Not for direct usage, see {@link LocalNode}.
+ */
+class ElectionsBlock {
+
+    static private LogPrinter log = new LogPrinter("ELSB");
+
+    private final LocalNode localNode;
+    private final Network network;
+    private final ElectionsScheduler scheduler;
+    // not modified once sealed
+    private final List<Elections> elections = new ArrayList<>();
+    private boolean sealed = false;
+    private final Set<Poller> pollers = Collections.newSetFromMap(new ConcurrentHashMap<Poller, Boolean>());
+
+    ElectionsBlock(LocalNode localNode) {
+        this.localNode = localNode;
+        network = localNode.getNetwork();
+        scheduler = network.getScheduler();
+        scheduler.schedule(this::seal, network.getBlockTime().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add elections to the block, unless it is sealed already.
+     *
+     * @return false if the block is sealed, so the elections should go to the new one
+     */
+    synchronized boolean add(Elections e) {
+        if (sealed)
+            return false;
+        elections.add(e);
+        if (elections.size() >= network.getBlockSize())
+            seal();
+        return true;
+    }
+
+    /**
+     * Stop collecting items and start polling nodes.
+     */
+    private void seal() {
+        synchronized (this) {
+            if (sealed)
+                return;
+            sealed = true;
+        }
+        log.d(localNode + " elects block of " + elections.size() + " items");
+        List<Node> nodes = new ArrayList<>(network.getAllNodes());
+        Collections.shuffle(nodes);
+        // like in Elections, all pollers are registered before any is started to avoid false no quorum error
+        nodes.forEach(node -> pollers.add(new Poller(node)));
+        pollers.forEach(Poller::start);
+    }
+
+    /**
+     * Polls one node for all items of the block it has not voted on yet, and reschedules itself while there are such
+     * items. When all pollers are done, items that have not got the consensus fail.
+     */
+    private class Poller implements Runnable {
+
+        private final Node node;
+
+        Poller(Node node) {
+            this.node = node;
+        }
+
+        void start() {
+            scheduler.execute(this);
+        }
+
+        @Override
+        public void run() {
+            List<Elections> asked = new ArrayList<>();
+            List<ItemQuery> queries = new ArrayList<>();
+            for (Elections e : elections) {
+                if (!e.isClosed() && !e.hasVote(node)) {
+                    asked.add(e);
+                    queries.add(new ItemQuery(e.getItemId(), e.getState(), e.getItem() != null));
+                }
+            }
+            if (asked.isEmpty()) {
+                done();
+                return;
+            }
+            try {
+                List<ItemResult> results = node.checkItems(localNode, queries);
+                for (int i = 0; i < asked.size(); i++) {
+                    Elections e = asked.get(i);
+                    ItemResult result = results.get(i);
+                    if (e.getItem() == null && result.haveCopy)
+                        e.addSourceNode(node);
+                    switch (result.state) {
+                        case PENDING:
+                        case UNDEFINED:
+                            // being processed, will ask again
+                            break;
+                        case PENDING_POSITIVE:
+                        case LOCKED:
+                        case APPROVED:
+                            e.registerVote(node, true);
+                            break;
+                        default:
+                            e.registerVote(node, false);
+                            break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.d(localNode + " stop polling block, interrupted");
+                done();
+                return;
+            } catch (Exception e) {
+                // retry later, as Elections poller does
+            }
+            // fail expired items
+            asked.forEach(Elections::checkFailure);
+            scheduler.schedule(this, network.getRequeryPause().toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        private void done() {
+            if (pollers.remove(this) && pollers.isEmpty())
+                elections.forEach(Elections::failIfPending);
+        }
+
+        @Override
+        public int hashCode() {
+            return node.getId().hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Poller)
+                return node.getId().equals(((Poller) obj).node.getId());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of the {@link LocalNode}: limits the number of {@link Elections} in progress, so a burst of items
+ * is processed at the pace the network can sustain instead of slowing all of them past {@link
+ * Network#getMaxElectionsTime()}.
+ * <p>
+ * Items registered by clients and items learned from other nodes have separate quotas, {@link
+ * Network#getMaxClientElections()} and {@link Network#getMaxPeerElections()}, so clients can't stop the node from
+ * voting on the items of other nodes. When the client quota is exhausted, the caller either gets {@link Overloaded} at
+ * once or waits for a free slot, see {@link Network#getAdmissionPolicy()}. Other nodes are never made waiting: they get
+ * {@link ItemState#PENDING} and ask again later, as they do while the item is being processed.
+ * <p>
+ * Limits are read from the {@link Network} on each call, so they could be changed at any time.
+ */
+public class ElectionsBudget {
+
+    /**
+     * What to do with the client item when the client quota is exhausted.
+     */
+    public enum Policy {
+        /**
+         * Throw {@link Overloaded} at once.
+         */
+        REJECT,
+        /**
+         * Wait for a free slot up to {@link Network#getAdmissionTimeout()}, then throw {@link Overloaded}. No more
+         * callers could wait than the client quota, the rest are rejected at once.
+         */
+        BLOCK
+    }
+
+    // smoothing factor of the average elections time
+    private static final double ALPHA = 0.1;
+
+    private final Network network;
+    // guarded by this
+    private int clientElections = 0;
+    private int peerElections = 0;
+    private int waiting = 0;
+    private double averageMillis = 0;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+
+    public ElectionsBudget(Network network) {
+        this.network = network;
+    }
+
+    /**
+     * Take a slot for new elections of the client item, waiting for it if the policy says so. The slot must be freed
+     * with {@link #release(boolean, long)} or {@link #cancel(boolean)}.
+     *
+     * @throws Overloaded            if there are no free slots
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    synchronized void acquireClient() throws IOException {
+        int max = network.getMaxClientElections();
+        if (max > 0 && clientElections >= max) {
+            if (network.getAdmissionPolicy() != Policy.BLOCK || waiting >= max)
+                throw reject();
+            long deadline = System.currentTimeMillis() + network.getAdmissionTimeout().toMillis();
+            waited.incrementAndGet();
+            waiting++;
+            try {
+                while ((max = network.getMaxClientElections()) > 0 && clientElections >= max) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0)
+                        throw reject();
+                    wait(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the elections slot");
+            } finally {
+                waiting--;
+            }
+        }
+        clientElections++;
+    }
+
+    /**
+     * Take a slot for new elections of the item learned from another node, if there is a free one.
+     *
+     * @return false if there are no free slots
+     */
+    synchronized boolean tryAcquirePeer() {
+        int max = network.getMaxPeerElections();
+        if (max > 0 && peerElections >= max) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        peerElections++;
+        return true;
+    }
+
+    /**
+     * Free the slot of finished elections.
+     *
+     * @param fromClient    true if the slot was taken with {@link #acquireClient()}
+     * @param startedMillis time the elections were started
+     */
+    synchronized void release(boolean fromClient, long startedMillis) {
+        long millis = System.currentTimeMillis() - startedMillis;
+        averageMillis = averageMillis == 0 ? millis : averageMillis + ALPHA * (millis - averageMillis);
+        cancel(fromClient);
+    }
+
+    /**
+     * Free the slot that was not used, e.g. the elections have been started by someone else meanwhile.
+     */
+    synchronized void cancel(boolean fromClient) {
+        if (fromClient)
+            clientElections--;
+        else
+            peerElections--;
+        notifyAll();
+    }
+
+    private Overloaded reject() {
+        rejected.incrementAndGet();
+        return new Overloaded(getRetryAfter());
+    }
+
+    /**
+     * @return suggested pause before the rejected item is registered again: the average elections time, as a slot is
+     * likely to be free by then, but not less than {@link Network#getRequeryPause()}
+     */
+    public synchronized Duration getRetryAfter() {
+        return Duration.ofMillis(Math.max((long) averageMillis, network.getRequeryPause().toMillis()));
+    }
+
+    public synchronized int getClientElections() {
+        return clientElections;
+    }
+
+    public synchronized int getPeerElections() {
+        return peerElections;
+    }
+
+    /**
+     * @return number of rejections so far, of clients and of other nodes
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of clients that have waited for the slot, see {@link Policy#BLOCK}
+     */
+    public long getWaited() {
+        return waited.get();
+    }
+
+    /**
+     * The node has too many elections in progress to accept new item now. It should be registered again after {@link
+     * #getRetryAfter()}.
+     */
+    public static class Overloaded extends IOException {
+        private final Duration retryAfter;
+
+        public Overloaded(Duration retryAfter) {
+            super("too many elections in progress, retry after " + retryAfter.toMillis() + "ms");
+            this.retryAfter = retryAfter;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+    }
+}
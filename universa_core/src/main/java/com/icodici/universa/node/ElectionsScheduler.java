@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the tasks of {@link Elections} and {@link ElectionsBlock}: polling nodes, downloading items, pushing votes.
+ * Tasks never wait for each other, the waits are continuations on events, so no scheduler could deadlock them however
+ * many elections are running. Tasks still can block on network and ledger calls.
+ * <p>
+ * Set it with {@link Network#setScheduler(ElectionsScheduler)}. There are two implementations: {@link
+ * FixedElectionsScheduler}, the default, runs everything in a fixed pool and {@link ElasticElectionsScheduler} runs
+ * each task in its own thread.
+ */
+public interface ElectionsScheduler {
+
+    /**
+     * Run the task as soon as possible.
+     */
+    void execute(Runnable task);
+
+    /**
+     * Run the task after the delay.
+     *
+     * @return the future to cancel the task
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * Stop running tasks. Scheduled tasks are dropped.
+     */
+    void shutdown();
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import net.sergeych.utils.LogPrinter;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background task that removes expired records from the {@link SqlLedger}, so declined, revoked and other stale
+ * records do not pile up until someone happens to read them.
+ * <p>
+ * Each run deletes at most one batch of the oldest expired records, see {@link SqlLedger#sweepExpired(int)}, so the
+ * sweeper never removes more than batchSize rows per interval and never holds the ledger connection for long.
+ * <p>
+ * If the ledger has the archive enabled, each run also moves revoked and declined records there once at least {@link
+ * #ARCHIVE_MIN_RECORDS} of them are collected, see {@link SqlLedger#archiveRecords(int, int)}.
+ * <p>
+ * Once per {@link #STATS_CHECKPOINT_INTERVAL} the sweeper also saves ledger statistics, see {@link
+ * SqlLedger#checkpointStats()}.
+ * <p>
+ * Reclaimed rows count and time spent are collected and could be read at any time.
+ */
+public class ExpirationSweeper {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final Duration DEFAULT_INTERVAL = Duration.ofSeconds(1);
+    /**
+     * Minimal number of records to write the archive segment.
+     */
+    public static final int ARCHIVE_MIN_RECORDS = 10000;
+    /**
+     * Maximum number of records archived by one run.
+     */
+    public static final int ARCHIVE_MAX_RECORDS = 100000;
+    public static final Duration STATS_CHECKPOINT_INTERVAL = LedgerStats.INTERVAL;
+
+    private static LogPrinter log = new LogPrinter("SWPR");
+
+    private final SqlLedger ledger;
+    private final int batchSize;
+    private final Duration interval;
+    private ScheduledExecutorService executor;
+
+    private final AtomicLong rowsReclaimed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rowsArchived = new AtomicLong();
+    private final AtomicLong sweepMillis = new AtomicLong();
+    private volatile long lastSweepMillis;
+    private long lastCheckpointAt = System.currentTimeMillis();
+
+    /**
+     * Create sweeper with {@link #DEFAULT_BATCH_SIZE} and {@link #DEFAULT_INTERVAL}.
+     */
+    public ExpirationSweeper(SqlLedger ledger) {
+        this(ledger, DEFAULT_BATCH_SIZE, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Create sweeper. It does nothing until {@link #start()} is called.
+     *
+     * @param ledger    to sweep
+     * @param batchSize maximum number of records to delete in one run
+     * @param interval  pause between runs
+     */
+    public ExpirationSweeper(SqlLedger ledger, int batchSize, Duration interval) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        this.ledger = ledger;
+        this.batchSize = batchSize;
+        this.interval = interval;
+    }
+
+    /**
+     * Start periodic sweeping in the own daemon thread.
+     */
+    public synchronized void start() {
+        if (executor != null)
+            return;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ledger-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long millis = interval.toMillis();
+        executor.scheduleWithFixedDelay(this::runSafely, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sweeping. The batch that is being deleted now will be finished.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+    }
+
+    /**
+     * Delete one batch of expired records now.
+     *
+     * @return number of deleted records
+     */
+    public int sweep() {
+        long started = System.currentTimeMillis();
+        int count = ledger.sweepExpired(batchSize);
+        long millis = System.currentTimeMillis() - started;
+        lastSweepMillis = millis;
+        sweepMillis.addAndGet(millis);
+        batches.incrementAndGet();
+        rowsReclaimed.addAndGet(count);
+        if (count > 0)
+            log.d("reclaimed " + count + " expired records in " + millis + "ms");
+        if (ledger.getArchive() != null)
+            rowsArchived.addAndGet(ledger.archiveRecords(ARCHIVE_MIN_RECORDS, ARCHIVE_MAX_RECORDS));
+        if (System.currentTimeMillis() - lastCheckpointAt >= STATS_CHECKPOINT_INTERVAL.toMillis()) {
+            lastCheckpointAt = System.currentTimeMillis();
+            ledger.checkpointStats();
+        }
+        return count;
+    }
+
+    private void runSafely() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            // the sweeper must survive e.g. temporary database lock, it will retry next time
+            log.e("sweep failed: " + e);
+        }
+    }
+
+    public long getRowsReclaimed() {
+        return rowsReclaimed.get();
+    }
+
+    /**
+     * @return number of records moved to the archive
+     */
+    public long getRowsArchived() {
+        return rowsArchived.get();
+    }
+
+    /**
+     * @return number of sweep runs done
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return total time spent deleting, milliseconds
+     */
+    public long getSweepMillis() {
+        return sweepMillis.get();
+    }
+
+    public long getLastSweepMillis() {
+        return lastSweepMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpirationSweeper<reclaimed:" + rowsReclaimed + " batches:" + batches + " time:" + sweepMillis + "ms>";
+    }
+}
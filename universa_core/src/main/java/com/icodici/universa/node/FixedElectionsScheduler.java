@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ElectionsScheduler} that runs all tasks in a fixed pool of daemon threads. Good when tasks are short, that is
+ * nodes and the ledger answer fast: the pool size limits only how many calls are made at once, not how many elections
+ * run.
+ */
+public class FixedElectionsScheduler implements ElectionsScheduler {
+
+    public static final int DEFAULT_THREADS = 16;
+
+    private final ScheduledThreadPoolExecutor pool;
+
+    /**
+     * Create scheduler with {@link #DEFAULT_THREADS}.
+     */
+    public FixedElectionsScheduler() {
+        this(DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads number of threads in the pool
+     */
+    public FixedElectionsScheduler(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+        AtomicInteger counter = new AtomicInteger();
+        pool = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "elections-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return pool.schedule(task, delay, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * @return number of tasks run or scheduled so far
+     */
+    public long getTaskCount() {
+        return pool.getTaskCount();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+/**
+ * Parameters of the {@link Node#checkItem(Node, HashId, ItemState, boolean)} call, to check many items at once with
+ * {@link Node#checkItems(Node, java.util.List)}. It is a "structure" of final members, like {@link ItemResult}.
+ */
+public class ItemQuery {
+    /**
+     * The item in question
+     */
+    public final HashId itemId;
+    /**
+     * State of the item at the caller
+     */
+    public final ItemState state;
+    /**
+     * true if the caller has a copy of the item
+     */
+    public final boolean haveCopy;
+
+    public ItemQuery(HashId itemId, ItemState state, boolean haveCopy) {
+        this.itemId = itemId;
+        this.state = state;
+        this.haveCopy = haveCopy;
+    }
+
+    @Override
+    public String toString() {
+        return "ItemQuery<" + itemId + " " + state + (haveCopy ? " copy" : "") + ">";
+    }
+}
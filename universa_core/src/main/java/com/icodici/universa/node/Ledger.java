@@ -10,6 +10,9 @@ package com.icodici.universa.node;
 import com.icodici.db.Db;
 import com.icodici.universa.HashId;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 /**
@@ -29,6 +32,23 @@ public interface Ledger {
      */
     StateRecord getRecord(HashId id);
 
+    /**
+     * Get records for many ids at once. Implementations should do it in less round trips to the storage than the
+     * sequence of {@link #getRecord(HashId)} calls; default implementation just calls it for each id.
+     *
+     * @param ids to retrieve
+     * @return map of found records by their ids; missing ids are not included
+     */
+    default Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        for (HashId id : ids) {
+            StateRecord r = getRecord(id);
+            if (r != null)
+                result.put(id, r);
+        }
+        return result;
+    }
+
     /**
      * Create a record in {@link ItemState#LOCKED_FOR_CREATION} state locked by creatorRecordId. Does not check
      * anything, the business logic of it is in the {@link StateRecord}. Still, if a database logic prevents creation of
@@ -97,6 +117,48 @@ public interface Ledger {
 
     default void close() {}
 
+    /**
+     * Enable or disable caching of the {@link StateRecord} instances, if the implementation supports it. Caching
+     * implementation returns the same instance for the same id while it is cached. Default implementation does
+     * nothing.
+     *
+     * @param enable
+     */
+    default void enableCache(boolean enable) {}
+
+    /**
+     * Get the digest of the ledger contents used to find records that differ from other nodes, see {@link
+     * LocalNode#reconcile(Node)}. Default implementation does not support it.
+     *
+     * @return digest instance kept up to date by the ledger, or null if not supported
+     */
+    default LedgerDigest getDigest() {
+        return null;
+    }
+
+    /**
+     * Get live statistics of records, which are cheap to read. Default implementation does not support it.
+     *
+     * @return statistics kept up to date by the ledger, or null if not supported
+     */
+    default LedgerStats getStats() {
+        return null;
+    }
+
+    /**
+     * Resolve records left by elections that were interrupted, e.g. by the crash, which otherwise block new elections
+     * of the same items until expired: {@link ItemState#PENDING} records are destroyed, so the item could be elected
+     * again, and records locked by them are unlocked as {@link StateRecord#unlock()} does. Records that hold this
+     * node's vote, {@link ItemState#PENDING_POSITIVE} and {@link ItemState#PENDING_NEGATIVE}, are kept with the records
+     * they lock, as other nodes could have already counted the vote; they expire as usual. Must be called on start,
+     * before any elections are run with this ledger, as all unfinished records are considered orphans.
+     *
+     * @return number of resolved records
+     */
+    default int recoverOrphans() {
+        return 0;
+    }
+
     public static class Rollback extends Db.RollbackException {
     }
 
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Digest of the ledger contents, to find records that differ between two nodes with the traffic proportional to the
+ * number of differences rather than to the ledger size.
+ * <p>
+ * Records are split into {@link #BUCKETS} buckets by the first two bytes of the id. The bucket digest is the XOR of
+ * 64-bit hashes of (id, state) of its records, so it does not depend on the order records were added in. Buckets
+ * are the leaves of the tree with {@link #FANOUT} children per node and {@link #LEVELS} levels, where the node digest
+ * is the XOR of digests of its buckets. Nodes compare the tree level by level, going down only into the subtrees that
+ * differ, then exchange the contents of differing buckets only, see {@link LocalNode#reconcile(Node)}.
+ * <p>
+ * The ledger calls {@link #invalidate(HashId)} once the change of a record is visible to the {@link BucketSource}, and
+ * the bucket is rescanned next time its digest is needed, so keeping the digest costs nothing on writes.
+ */
+public class LedgerDigest {
+
+    /**
+     * Children per tree node.
+     */
+    public static final int FANOUT = 16;
+    /**
+     * Number of tree levels, the last one are the buckets.
+     */
+    public static final int LEVELS = 4;
+    /**
+     * Number of buckets, by the first 2 bytes of the id.
+     */
+    public static final int BUCKETS = 65536;
+
+    /**
+     * Reads records of a bucket from the ledger storage.
+     */
+    public interface BucketSource {
+        /**
+         * @param bucket   the bucket to scan
+         * @param expired  true to include records that have expired but are still in the storage
+         * @param consumer receives id and state of each record
+         */
+        void scanBucket(int bucket, boolean expired, Consumer consumer) throws Exception;
+    }
+
+    public interface Consumer {
+        void accept(HashId id, ItemState state);
+    }
+
+    private final BucketSource source;
+    private final long[] buckets = new long[BUCKETS];
+    private final AtomicIntegerArray dirty = new AtomicIntegerArray(BUCKETS);
+    private long rescans;
+
+    /**
+     * Create digest with all buckets to be scanned on the first use, or set with {@link #reset(long[])}.
+     */
+    public LedgerDigest(BucketSource source) {
+        this.source = source;
+        for (int i = 0; i < BUCKETS; i++)
+            dirty.set(i, 1);
+    }
+
+    public static int bucketOf(HashId id) {
+        byte[] d = id.getDigest();
+        return ((d[0] & 0xFF) << 8) | (d[1] & 0xFF);
+    }
+
+    /**
+     * Get the smallest id digest of the bucket, to select its records by range.
+     *
+     * @return the first bytes of ids in the bucket, or null for bucket number {@link #BUCKETS}
+     */
+    public static byte[] bucketStart(int bucket) {
+        if (bucket >= BUCKETS)
+            return null;
+        return new byte[]{(byte) (bucket >> 8), (byte) bucket};
+    }
+
+    /**
+     * 64-bit hash of the record as it is combined into the bucket digest.
+     */
+    public static long hashOf(HashId id, ItemState state) {
+        // FNV-1a over the digest and the state, then the murmur3 finalizer to spread the bits
+        long h = 0xcbf29ce484222325L;
+        for (byte b : id.getDigest())
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        h = (h ^ state.ordinal()) * 0x100000001b3L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Mark the bucket of the id as changed.
+     */
+    public void invalidate(HashId id) {
+        dirty.set(bucketOf(id), 1);
+    }
+
+    /**
+     * Set all bucket digests at once, e.g. computed by the full scan of the ledger. Changes made during the scan must be
+     * blocked until it is done.
+     */
+    public synchronized void reset(long[] digests) {
+        if (digests.length != BUCKETS)
+            throw new IllegalArgumentException("wrong number of buckets: " + digests.length);
+        System.arraycopy(digests, 0, buckets, 0, BUCKETS);
+        for (int i = 0; i < BUCKETS; i++)
+            dirty.set(i, 0);
+    }
+
+    private void refresh(int fromBucket, int toBucket) throws Exception {
+        for (int b = fromBucket; b < toBucket; b++) {
+            // cleared before the scan, so changes made during it mark the bucket again
+            if (dirty.getAndSet(b, 0) != 0) {
+                long[] digest = new long[1];
+                source.scanBucket(b, true, (id, state) -> digest[0] ^= hashOf(id, state));
+                buckets[b] = digest[0];
+                rescans++;
+            }
+        }
+    }
+
+    /**
+     * Get digests of the tree nodes. Level 0 has {@link #FANOUT} nodes, each next level has FANOUT times more, and the
+     * last level, LEVELS-1, are the buckets.
+     *
+     * @param level   level to get digests from
+     * @param parents indexes of nodes of the previous level to get digests of their children, ignored for level 0, at
+     *                most as many as there are nodes in the previous level
+     * @return FANOUT digests for each parent, in the order of parents, children of the parent p being p*FANOUT+i
+     * @throws IllegalArgumentException if the level, some parent index or the number of parents is out of range
+     * @throws Ledger.Failure           if the ledger can't be read
+     */
+    public synchronized long[] getDigests(int level, int[] parents) {
+        if (level < 0 || level >= LEVELS)
+            throw new IllegalArgumentException("bad digest level: " + level);
+        if (level == 0)
+            parents = new int[]{0};
+        // requests come from the network, so they are checked before doing anything
+        int parentNodes = BUCKETS / (bucketsPerNode(level) * FANOUT);
+        if (parents == null || parents.length > parentNodes)
+            throw new IllegalArgumentException("bad number of parent nodes");
+        for (int parent : parents)
+            if (parent < 0 || parent >= parentNodes)
+                throw new IllegalArgumentException("bad node index: " + parent);
+        int span = bucketsPerNode(level);
+        long[] result = new long[parents.length * FANOUT];
+        try {
+            for (int p = 0; p < parents.length; p++) {
+                for (int c = 0; c < FANOUT; c++) {
+                    int first = (parents[p] * FANOUT + c) * span;
+                    refresh(first, first + span);
+                    long d = 0;
+                    for (int b = first; b < first + span; b++)
+                        d ^= buckets[b];
+                    result[p * FANOUT + c] = d;
+                }
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Ledger.Failure("failed to compute ledger digest: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    private static int bucketsPerNode(int level) {
+        int span = 1;
+        for (int i = level + 1; i < LEVELS; i++)
+            span *= FANOUT;
+        return span;
+    }
+
+    /**
+     * Get not expired records of the bucket.
+     *
+     * @return states of records by their ids
+     * @throws Ledger.Failure if the ledger can't be read
+     */
+    public Map<HashId, ItemState> getBucket(int bucket) {
+        if (bucket < 0 || bucket >= BUCKETS)
+            throw new IllegalArgumentException("bad bucket: " + bucket);
+        Map<HashId, ItemState> records = new HashMap<>();
+        try {
+            source.scanBucket(bucket, false, records::put);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Ledger.Failure("failed to read ledger bucket: " + e.getMessage(), e);
+        }
+        return records;
+    }
+
+    /**
+     * @return number of bucket scans made to update the digest, e.g. to see how much does it cost
+     */
+    public synchronized long getRescans() {
+        return rescans;
+    }
+
+    /**
+     * Pack digests to transfer them to another node.
+     */
+    public static byte[] packDigests(long[] digests) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(digests.length * 8);
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            for (long d : digests)
+                out.writeLong(d);
+        } catch (IOException e) {
+            throw new IllegalStateException("can't happen", e);
+        }
+        return bos.toByteArray();
+    }
+
+    public static long[] unpackDigests(byte[] packed) throws IOException {
+        if (packed.length % 8 != 0)
+            throw new IOException("bad packed digests size: " + packed.length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+        long[] digests = new long[packed.length / 8];
+        for (int i = 0; i < digests.length; i++)
+            digests[i] = in.readLong();
+        return digests;
+    }
+
+    /**
+     * Pack the bucket contents returned by {@link #getBucket(int)} to transfer it to another node.
+     */
+    public static byte[] packBucket(Map<HashId, ItemState> records) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            for (Map.Entry<HashId, ItemState> e : records.entrySet()) {
+                byte[] digest = e.getKey().getDigest();
+                out.writeShort(digest.length);
+                out.write(digest);
+                out.writeByte(e.getValue().ordinal());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("can't happen", e);
+        }
+        return bos.toByteArray();
+    }
+
+    public static Map<HashId, ItemState> unpackBucket(byte[] packed) throws IOException {
+        Map<HashId, ItemState> records = new HashMap<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+        ItemState[] states = ItemState.values();
+        while (in.available() > 0) {
+            byte[] digest = new byte[in.readShort()];
+            in.readFully(digest);
+            int state = in.readByte();
+            if (state < 0 || state >= states.length)
+                throw new IOException("bad item state in the bucket: " + state);
+            records.put(HashId.withDigest(digest), states[state]);
+        }
+        return records;
+    }
+}
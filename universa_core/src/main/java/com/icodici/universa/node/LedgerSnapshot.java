@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Streaming ledger snapshot format, used to bootstrap the new node from the ledger of the existing one, see {@link
+ * SqlLedger#exportSnapshot(OutputStream, LedgerSnapshot.Progress)}.
+ * <p>
+ * The snapshot is a Boss stream (in stream mode, so nothing is cached): the header binder, then chunks of up to chunk
+ * size records, each being the binder with the packed records, their count and CRC32 of the packed data, and the
+ * trailer with the total number of records. Both writer and reader keep only one chunk in memory, so any number of
+ * records could be passed.
+ */
+public class LedgerSnapshot {
+
+    public static final String FORMAT = "universa.ledger.snapshot";
+    public static final int VERSION = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+    /**
+     * Progress callback, called after each chunk.
+     */
+    public interface Progress {
+        /**
+         * @param records        number of records processed so far
+         * @param estimatedTotal number of records expected, as known when the export has started
+         */
+        void onProgress(long records, long estimatedTotal);
+    }
+
+    /**
+     * The record as stored in the snapshot.
+     */
+    public static class Record {
+        public final long recordId;
+        public final HashId id;
+        public final ItemState state;
+        // times are as returned by StateRecord.unixTime()
+        public final long createdAt;
+        public final long expiresAt;
+        public final long lockedByRecordId;
+
+        public Record(long recordId, HashId id, ItemState state, long createdAt, long expiresAt,
+                      long lockedByRecordId) {
+            this.recordId = recordId;
+            this.id = id;
+            this.state = state;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+            this.lockedByRecordId = lockedByRecordId;
+        }
+    }
+
+    /**
+     * Snapshot writer. Records are buffered and written by chunks; {@link #finish()} must be called at the end.
+     */
+    public static class Writer {
+        private final Boss.Writer boss;
+        private final OutputStream out;
+        private final int chunkSize;
+        private final ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+        private final DataOutputStream chunk = new DataOutputStream(chunkBytes);
+        private int chunkCount;
+        private long total;
+
+        /**
+         * Start the snapshot with the header.
+         *
+         * @param out            where to write to, it is not closed by the writer
+         * @param estimatedTotal expected number of records, for the importer's progress
+         * @param chunkSize      records per chunk
+         */
+        public Writer(OutputStream out, long estimatedTotal, int chunkSize) throws IOException {
+            if (chunkSize < 1)
+                throw new IllegalArgumentException("chunk size must be positive");
+            this.out = out;
+            this.chunkSize = chunkSize;
+            boss = new Boss.Writer(out);
+            boss.setStreamMode();
+            boss.write(Binder.fromKeysValues("format", FORMAT, "version", VERSION,
+                                             "estimated_total", estimatedTotal, "chunk_size", chunkSize));
+        }
+
+        public void write(Record r) throws IOException {
+            byte[] digest = r.id.getDigest();
+            chunk.writeLong(r.recordId);
+            chunk.writeShort(digest.length);
+            chunk.write(digest);
+            chunk.writeByte(r.state.ordinal());
+            chunk.writeLong(r.createdAt);
+            chunk.writeLong(r.expiresAt);
+            chunk.writeLong(r.lockedByRecordId);
+            if (++chunkCount == chunkSize)
+                flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (chunkCount == 0)
+                return;
+            byte[] data = chunkBytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            boss.write(Binder.fromKeysValues("count", chunkCount, "data", data, "crc", crc.getValue()));
+            total += chunkCount;
+            chunkCount = 0;
+            chunkBytes.reset();
+        }
+
+        /**
+         * Write the last chunk and the trailer, and flush the stream.
+         *
+         * @return total number of written records
+         */
+        public long finish() throws IOException {
+            flushChunk();
+            boss.write(Binder.fromKeysValues("end", true, "total", total));
+            out.flush();
+            return total;
+        }
+
+        /**
+         * @return number of records written so far, buffered ones included
+         */
+        public long getTotal() {
+            return total + chunkCount;
+        }
+    }
+
+    /**
+     * Snapshot reader, which checks the header on creation and each chunk as it is read.
+     */
+    public static class Reader {
+        private final Boss.Reader boss;
+        private final long estimatedTotal;
+        private long total;
+        private boolean finished;
+
+        public Reader(InputStream in) throws IOException {
+            boss = new Boss.Reader(in);
+            Binder header = readBinder();
+            if (!FORMAT.equals(header.getString("format", null)))
+                throw new IOException("not a ledger snapshot");
+            if (header.getIntOrThrow("version") != VERSION)
+                throw new IOException("unsupported snapshot version: " + header.get("version"));
+            estimatedTotal = header.getLong("estimated_total", -1);
+        }
+
+        /**
+         * Read the next chunk.
+         *
+         * @return records of the chunk, or null if the end of the snapshot is reached
+         * @throws IOException if the snapshot is truncated or corrupted
+         */
+        public List<Record> readChunk() throws IOException {
+            if (finished)
+                return null;
+            Binder b = readBinder();
+            if (b.getBoolean("end", false)) {
+                if (b.getLong("total", -1) != total)
+                    throw new IOException("snapshot is incomplete: " + total + " of " + b.get("total"));
+                finished = true;
+                return null;
+            }
+            byte[] data = b.getBinaryOrThrow("data");
+            int count = b.getIntOrThrow("count");
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if (crc.getValue() != b.getLong("crc", -1))
+                throw new IOException("snapshot chunk checksum mismatch after " + total + " records");
+            List<Record> records = new ArrayList<>(count);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            for (int i = 0; i < count; i++) {
+                long recordId = in.readLong();
+                byte[] digest = new byte[in.readShort()];
+                in.readFully(digest);
+                ItemState state = ItemState.values()[in.readByte()];
+                records.add(new Record(recordId, HashId.withDigest(digest), state, in.readLong(), in.readLong(),
+                                       in.readLong()));
+            }
+            total += count;
+            return records;
+        }
+
+        private Binder readBinder() throws IOException {
+            Object x = boss.read();
+            if (!(x instanceof java.util.Map))
+                throw new IOException("snapshot is corrupted");
+            return Binder.from(x);
+        }
+
+        public long getEstimatedTotal() {
+            return estimatedTotal;
+        }
+
+        /**
+         * @return number of records read so far
+         */
+        public long getTotal() {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import net.sergeych.tools.Binder;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live ledger statistics: number of records in each {@link ItemState}, and numbers of records created and expired,
+ * in total and per {@link #INTERVAL} for the last {@link #HISTORY} intervals. The ledger updates it with each change,
+ * so reading costs nothing, see {@link Ledger#getStats()}.
+ * <p>
+ * Changes made in a transaction are collected in the {@link Delta} and applied on commit.
+ */
+public class LedgerStats {
+
+    public static final Duration INTERVAL = Duration.ofMinutes(1);
+    /**
+     * Number of intervals to keep created and expired counts for.
+     */
+    public static final int HISTORY = 60;
+
+    private static final ItemState[] STATES = ItemState.values();
+
+    private final AtomicLongArray counts = new AtomicLongArray(STATES.length);
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    // ring of intervals, the slot is reused when its interval number changes
+    private final long[] intervals = new long[HISTORY];
+    private final long[] createdIn = new long[HISTORY];
+    private final long[] expiredIn = new long[HISTORY];
+
+    /**
+     * Changes of the transaction, applied on commit with {@link #apply(Delta)}.
+     */
+    public static class Delta {
+        private final long[] counts = new long[STATES.length];
+        private long created;
+        private long expired;
+
+        public void change(ItemState from, ItemState to) {
+            if (from != null)
+                counts[from.ordinal()]--;
+            if (to != null)
+                counts[to.ordinal()]++;
+            if (from == null && to != null)
+                created++;
+        }
+
+        public void expired(ItemState state) {
+            change(state, null);
+            expired++;
+        }
+    }
+
+    /**
+     * Account the change of the record state.
+     *
+     * @param from state before the change, null for the new record
+     * @param to   state after the change, null if the record is destroyed
+     */
+    public void change(ItemState from, ItemState to) {
+        if (from == to)
+            return;
+        if (from != null)
+            counts.decrementAndGet(from.ordinal());
+        if (to != null)
+            counts.incrementAndGet(to.ordinal());
+        if (from == null && to != null) {
+            created.incrementAndGet();
+            addToInterval(1, 0);
+        }
+    }
+
+    /**
+     * Account the record destroyed as it has expired.
+     */
+    public void expired(ItemState state) {
+        change(state, null);
+        expired.incrementAndGet();
+        addToInterval(0, 1);
+    }
+
+    public void apply(Delta delta) {
+        for (int i = 0; i < STATES.length; i++) {
+            if (delta.counts[i] != 0)
+                counts.addAndGet(i, delta.counts[i]);
+        }
+        if (delta.created != 0 || delta.expired != 0) {
+            created.addAndGet(delta.created);
+            expired.addAndGet(delta.expired);
+            addToInterval(delta.created, delta.expired);
+        }
+    }
+
+    private synchronized void addToInterval(long createdCount, long expiredCount) {
+        long interval = System.currentTimeMillis() / INTERVAL.toMillis();
+        int slot = (int) (interval % HISTORY);
+        if (intervals[slot] != interval) {
+            intervals[slot] = interval;
+            createdIn[slot] = 0;
+            expiredIn[slot] = 0;
+        }
+        createdIn[slot] += createdCount;
+        expiredIn[slot] += expiredCount;
+    }
+
+    /**
+     * Set counts of records by state, e.g. after the full scan of the ledger. Changes made during the scan must be
+     * blocked until it is done.
+     *
+     * @param countsByState indexed by {@link ItemState#ordinal()}
+     */
+    public void reset(long[] countsByState) {
+        for (int i = 0; i < STATES.length; i++)
+            counts.set(i, countsByState[i]);
+    }
+
+    /**
+     * Set total counters, e.g. restored from the last checkpoint.
+     */
+    public void setTotals(long createdTotal, long expiredTotal) {
+        created.set(createdTotal);
+        expired.set(expiredTotal);
+    }
+
+    public long getCount(ItemState state) {
+        return counts.get(state.ordinal());
+    }
+
+    /**
+     * @return number of records in all states
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < STATES.length; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @return records created since the ledger was created, as of the last checkpoint plus since the start
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return records destroyed on expiration since the ledger was created, see {@link #getCreated()}
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * @return numbers of records created in each of the last {@link #HISTORY} intervals, the current one first
+     */
+    public long[] getCreatedPerInterval() {
+        return history(createdIn);
+    }
+
+    /**
+     * @return numbers of records expired in each of the last {@link #HISTORY} intervals, the current one first
+     */
+    public long[] getExpiredPerInterval() {
+        return history(expiredIn);
+    }
+
+    private synchronized long[] history(long[] values) {
+        long current = System.currentTimeMillis() / INTERVAL.toMillis();
+        long[] result = new long[HISTORY];
+        for (int i = 0; i < HISTORY; i++) {
+            int slot = (int) ((current - i) % HISTORY);
+            if (intervals[slot] == current - i)
+                result[i] = values[slot];
+        }
+        return result;
+    }
+
+    /**
+     * Sum statistics of several ledgers, e.g. of shards.
+     *
+     * @return new instance with the current values, which is not updated later
+     */
+    public static LedgerStats sum(Collection<LedgerStats> all) {
+        LedgerStats result = new LedgerStats();
+        long[] counts = new long[STATES.length];
+        long created = 0, expired = 0;
+        long current = System.currentTimeMillis() / INTERVAL.toMillis();
+        for (LedgerStats s : all) {
+            for (int i = 0; i < STATES.length; i++)
+                counts[i] += s.counts.get(i);
+            created += s.getCreated();
+            expired += s.getExpired();
+            long[] c = s.getCreatedPerInterval(), e = s.getExpiredPerInterval();
+            for (int i = 0; i < HISTORY; i++) {
+                int slot = (int) ((current - i) % HISTORY);
+                result.intervals[slot] = current - i;
+                result.createdIn[slot] += c[i];
+                result.expiredIn[slot] += e[i];
+            }
+        }
+        result.reset(counts);
+        result.setTotals(created, expired);
+        return result;
+    }
+
+    /**
+     * Pack to the binder, e.g. to return it to the client: "counts" by state name, "total", "created", "expired",
+     * "interval" in seconds, "created_per_interval" and "expired_per_interval" lists, the current interval first.
+     */
+    public Binder toBinder() {
+        Binder byState = new Binder();
+        for (ItemState s : STATES)
+            byState.put(s.name(), getCount(s));
+        List<Long> createdList = new ArrayList<>(), expiredList = new ArrayList<>();
+        for (long x : getCreatedPerInterval())
+            createdList.add(x);
+        for (long x : getExpiredPerInterval())
+            expiredList.add(x);
+        return Binder.fromKeysValues("counts", byState, "total", getTotal(), "created", getCreated(),
+                                     "expired", getExpired(), "interval", INTERVAL.getSeconds(),
+                                     "created_per_interval", createdList, "expired_per_interval", expiredList);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("LedgerStats<");
+        for (ItemState s : STATES) {
+            long n = getCount(s);
+            if (n != 0)
+                sb.append(s).append(':').append(n).append(' ');
+        }
+        return sb.append("created:").append(created).append(" expired:").append(expired).append('>').toString();
+    }
+}
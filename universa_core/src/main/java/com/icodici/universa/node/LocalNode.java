@@ -13,6 +13,8 @@ import net.sergeych.utils.LogPrinter;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
 import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
@@ -28,6 +30,7 @@ public class LocalNode extends Node {
 
     private final Network network;
     private final Ledger ledger;
+    private final ElectionsBudget budget;
 
     //    private final ConcurrentHashMap<HashId, Approvable> inputCache = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<HashId, Elections> allElections = new ConcurrentHashMap<>();
@@ -36,6 +39,9 @@ public class LocalNode extends Node {
      * checked in the same time.
      */
     private Object checkLock = new Object();
+    // the block new elections are added to, see Network#getBlockSize()
+    private ElectionsBlock currentBlock;
+    private final Object blockLock = new Object();
 
     // imitate download failed before consensus found
     boolean lateDownload;
@@ -44,12 +50,20 @@ public class LocalNode extends Node {
         super(id);
         this.network = network;
         this.ledger = ledger;
+        budget = new ElectionsBudget(network);
     }
 
     public Network getNetwork() {
         return network;
     }
 
+    /**
+     * @return admission control of new elections, e.g. to see how many are in progress
+     */
+    public ElectionsBudget getBudget() {
+        return budget;
+    }
+
     // Node interface ---------------------------------------------------------------------------------------
 
     @Override
@@ -60,6 +74,21 @@ public class LocalNode extends Node {
         return itemResult;
     }
 
+    /**
+     * Count the vote pushed by the voter if the item is being elected, otherwise ignore it: unlike {@link
+     * #checkItem(Node, HashId, ItemState, boolean)}, it never starts new elections.
+     */
+    @Override
+    public void voteItem(Node voter, HashId itemId, ItemState state) {
+        Elections elections = allElections.get(itemId);
+        log.d("" + this + " voteItem( from: " + voter + ":" + itemId + ":" + state + " ) elections: " +
+                      (elections != null));
+        if (elections != null) {
+            countVote(elections, voter, state);
+            elections.stopPolling(voter);
+        }
+    }
+
     /**
      * Try our best to get the Approvable item. Note that successful elections do not necessarily means that the item
      * must be downloaded and therefore available from any node. Even, if the item was available when elections were
@@ -83,12 +112,43 @@ public class LocalNode extends Node {
         return null;
     }
 
+    @Override
+    public long[] getLedgerDigests(int level, int[] parents) throws IOException {
+        return requireDigest().getDigests(level, parents);
+    }
+
+    @Override
+    public Map<HashId, ItemState> getLedgerBucket(int bucket) throws IOException {
+        return requireDigest().getBucket(bucket);
+    }
+
+    private LedgerDigest requireDigest() throws IOException {
+        LedgerDigest digest = ledger.getDigest();
+        if (digest == null)
+            throw new IOException("ledger of " + this + " does not support digests");
+        return digest;
+    }
+
     @Override
     public void shutdown() {
         allElections.forEach((id, e) -> e.close());
 //        ledger.close();
     }
 
+    /**
+     * Resolve ledger records of elections interrupted by the crash, see {@link Ledger#recoverOrphans()}, so the items
+     * could be elected again. Must be called on start, before the node is connected to the network.
+     *
+     * @return number of resolved records
+     */
+    public int recoverLedger() {
+        long started = System.currentTimeMillis();
+        int count = ledger.recoverOrphans();
+        log.i(this + " recovered " + count + " orphan ledger records in " + (System.currentTimeMillis() - started) +
+                      "ms");
+        return count;
+    }
+
     // Client API interface -----------------------------------------------------------------------------------
 
     /**
@@ -98,13 +158,15 @@ public class LocalNode extends Node {
      * @param onDone consumer that will receive elections result
      *
      * @return the instance describing item's current state (at the time of calling)
+     *
+     * @throws ElectionsBudget.Overloaded if there are too many elections in progress, see {@link ElectionsBudget}
      */
     public ItemInfo registerItem(Approvable item, Consumer<ItemResult> onDone) throws IOException {
         @NonNull ItemResult itemResult = processCheckItem(null, item.getId(), null, false, item, onDone);
         return new ItemInfo(itemResult, item);
     }
 
-    public ItemResult registerItemAndWait(Approvable item) throws Elections.Error, InterruptedException {
+    public ItemResult registerItemAndWait(Approvable item) throws IOException, InterruptedException {
         processCheckItem(null, item.getId(), null, false, item, null);
         return waitForItem(item.getId());
     }
@@ -136,6 +198,67 @@ public class LocalNode extends Node {
         return r == null ? null : new ItemResult(r);
     }
 
+    /**
+     * Anti-entropy sync: find records whose state differs from the other node's ledger. Digests of the {@link
+     * LedgerDigest} tree are compared level by level, descending only into subtrees that differ, and then only the
+     * differing buckets are downloaded, so the traffic depends on the number of differences, not on the ledger size.
+     * <p>
+     * Records that the other node has with the consensus found but this node does not have at all are not trusted
+     * as is: elections are started for them, so the network decides, as it happens when some node asks for an item
+     * unknown to this one. Other differences are only reported, as they are either being elected or will be fixed when
+     * the other node reconciles with this one.
+     *
+     * @param other node to compare the ledger with
+     * @return ids of records that differ, including the ones missing on either side
+     * @throws IOException if digests can't be obtained
+     */
+    public Set<HashId> reconcile(Node other) throws IOException, InterruptedException {
+        LedgerDigest digest = requireDigest();
+        int[] nodes = null;
+        for (int level = 0; level < LedgerDigest.LEVELS && (nodes == null || nodes.length > 0); level++) {
+            long[] ours = digest.getDigests(level, nodes);
+            long[] theirs = other.getLedgerDigests(level, nodes);
+            if (ours.length != theirs.length)
+                throw new IOException("bad ledger digests size: " + theirs.length);
+            int[] differ = new int[ours.length];
+            int count = 0;
+            for (int i = 0; i < ours.length; i++) {
+                if (ours[i] != theirs[i])
+                    differ[count++] = (nodes == null ? 0 : nodes[i / LedgerDigest.FANOUT]) * LedgerDigest.FANOUT +
+                            i % LedgerDigest.FANOUT;
+            }
+            nodes = Arrays.copyOf(differ, count);
+        }
+        Set<HashId> differences = new HashSet<>();
+        for (int bucket : nodes) {
+            Map<HashId, ItemState> ours = digest.getBucket(bucket);
+            Map<HashId, ItemState> theirs = other.getLedgerBucket(bucket);
+            for (Map.Entry<HashId, ItemState> e : theirs.entrySet()) {
+                HashId id = e.getKey();
+                ItemState state = ours.get(id);
+                if (state == e.getValue())
+                    continue;
+                differences.add(id);
+                if (state == null && e.getValue().consensusFound()) {
+                    log.d(this + " missing " + id + " known to " + other + " as " + e.getValue() + ", resyncing");
+                    try {
+                        processCheckItem(null, id, null, false, null, null);
+                    } catch (Elections.Error ex) {
+                        // e.g. the record has just appeared, so there is nothing to resync
+                        log.e("failed to resync " + id + ": " + ex.getMessage());
+                    }
+                }
+            }
+            for (HashId id : ours.keySet()) {
+                if (!theirs.containsKey(id))
+                    differences.add(id);
+            }
+        }
+        log.d(this + " reconciled with " + other + ": " + nodes.length + " buckets, " + differences.size() +
+                      " differences");
+        return differences;
+    }
+
     // logic ------------------------------------------------------------------------------------------------------
 
     /**
@@ -154,12 +277,15 @@ public class LocalNode extends Node {
      * @param onDone   optional consumer of the 'elections finished' event, either when consensus is found, timeout
      *                 expired or no quorum was found.
      *
-     * @return result for the current state, useful if the state of the item was settled with consensus before
+     * @return result for the current state, useful if the state of the item was settled with consensus before. If the
+     * item is new to the node but the {@link ElectionsBudget} of other nodes' items is exhausted, it is {@link
+     * ItemState#PENDING}, so the caller asks again later
      *
      * @throws Elections.Error
+     * @throws ElectionsBudget.Overloaded if the budget of client items is exhausted
      */
     @NonNull
-    private ItemResult processCheckItem(Node caller, @NonNull HashId itemId, ItemState state, boolean haveCopy, Approvable item, Consumer<ItemResult> onDone) throws Elections.Error {
+    private ItemResult processCheckItem(Node caller, @NonNull HashId itemId, ItemState state, boolean haveCopy, Approvable item, Consumer<ItemResult> onDone) throws IOException {
         // Check the election first, it is faster than checking teh ledger
         Elections elections = allElections.get(itemId);
         if (elections == null) {
@@ -176,49 +302,70 @@ public class LocalNode extends Node {
             // it is not in the ledger, it is not being elected, creeate new elections.
             // If it wil throw an exception, it would be processed by the caller
 
-            // Race condition preventing - we should only create one elections for one itemId
-            // but is should stay in allElections long enough so we will find it there anyway - if it even
-            // was processed entirely while we were crawling to the point:
-            synchronized (checkLock) {
-                // we can go there by the time someone else just created elections for us:
-                elections = allElections.get(itemId);
-                if (elections == null) {
-                    if (item != null) {
-                        assert (item.getId().equals(itemId));
-                        elections = new Elections(this, item);
-                    } else
-                        elections = new Elections(this, itemId);
-                    allElections.put(itemId, elections);
+            // Take the slot first, as the client may wait for it. Other nodes never wait, they will ask again
+            boolean fromClient = caller == null && item != null;
+            if (fromClient)
+                budget.acquireClient();
+            else if (!budget.tryAcquirePeer())
+                return new ItemResult(ItemState.PENDING, false, LocalDateTime.now(), null);
+            boolean created = false;
+            // the slot is released when the elections we have created are done, otherwise it is given back at once
+            boolean registered = false;
+            try {
+                // Race condition preventing - we should only create one elections for one itemId
+                // but is should stay in allElections long enough so we will find it there anyway - if it even
+                // was processed entirely while we were crawling to the point:
+                synchronized (checkLock) {
+                    // we can go there by the time someone else just created elections for us:
+                    elections = allElections.get(itemId);
+                    if (elections == null) {
+                        if (item != null) {
+                            assert (item.getId().equals(itemId));
+                            elections = new Elections(this, item);
+                        } else
+                            elections = new Elections(this, itemId);
+                        allElections.put(itemId, elections);
+                        created = true;
+                    }
+                }
+                // from now we can and e should do everything in parallel again.
+                // as starting elections includes long initial item checking procedure,
+                // we do it outside of the checkLock mutex:
+                long startedMillis = System.currentTimeMillis();
+                try {
+                    elections.ensureStarted();
+                } catch (Elections.Error | RuntimeException e) {
+                    // elections that could not start must not be found by the next call
+                    if (created)
+                        allElections.remove(itemId, elections);
+                    throw e;
                 }
+                if (created) {
+                    elections.onDone(itemResult -> budget.release(fromClient, startedMillis));
+                    registered = true;
+                }
+            } finally {
+                if (!registered)
+                    budget.cancel(fromClient);
             }
-            // from now we can and e should do everything in parallel again.
-            // as starting elections includes long initial item checking procedure,
-            // we do it outside of the checkLock mutex:
-            elections.ensureStarted();
 
             // purge finished elections
             elections.onDone(itemResult -> {
-                Elections.pool.schedule(() -> {
+                network.getScheduler().schedule(() -> {
                     allElections.remove(itemId);
 //                        log.i("elections+item purged: "+itemId);
                 }, network.getMaxElectionsTime().toMillis(), TimeUnit.MILLISECONDS);
             });
         }
-        if (caller != null && haveCopy)
-            elections.addSourceNode(caller);
-        if (caller != null && state != null) {
-            switch (state) {
-                case PENDING_POSITIVE:
-                case APPROVED:
-                    elections.registerVote(caller, true);
-                    break;
-                case PENDING_NEGATIVE:
-                case REVOKED:
-                case DECLINED:
-                    elections.registerVote(caller, false);
-                    break;
-                default:
-            }
+        if (caller != null) {
+            if (haveCopy)
+                elections.addSourceNode(caller);
+            if (state != null)
+                countVote(elections, caller, state);
+            // the caller will get our vote pushed as soon as we decide, unless blocks are elected: then nodes poll
+            // each other for all items of the block at once
+            if (network.getBlockSize() == 0)
+                elections.subscribe(caller);
         }
         if (onDone != null) {
             elections.onDone(onDone);
@@ -226,6 +373,36 @@ public class LocalNode extends Node {
         return new ItemResult(elections.getRecord(), elections.getItem() != null);
     }
 
+    /**
+     * Add the elections to the block being collected, or to the new one if it is already sealed.
+     *
+     * @return the block the elections are added to
+     */
+    ElectionsBlock addToBlock(Elections elections) {
+        synchronized (blockLock) {
+            if (currentBlock == null || !currentBlock.add(elections)) {
+                currentBlock = new ElectionsBlock(this);
+                currentBlock.add(elections);
+            }
+            return currentBlock;
+        }
+    }
+
+    private static void countVote(Elections elections, Node voter, ItemState state) {
+        switch (state) {
+            case PENDING_POSITIVE:
+            case APPROVED:
+                elections.registerVote(voter, true);
+                break;
+            case PENDING_NEGATIVE:
+            case REVOKED:
+            case DECLINED:
+                elections.registerVote(voter, false);
+                break;
+            default:
+        }
+    }
+
     public Ledger getLedger() {
         return ledger;
     }
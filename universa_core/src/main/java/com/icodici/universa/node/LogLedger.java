@@ -0,0 +1,727 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.utils.LogPrinter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * The log-structured ledger: every change is appended to the end of the current segment file, and the in-memory index
+ * maps each {@link HashId} to the location of its latest entry, so writes are always sequential and lookups take one
+ * positional read (or none, if cached).
+ * <p>
+ * The log consists of frames: <code>[length][crc32][entries]</code>. The entry either puts the whole record (record
+ * id, state, times, locking record id and the digest) or deletes it. Single changes are written as one-entry frames,
+ * and {@link #transaction(Callable)} collects its changes and writes them as one frame, so it is applied completely or
+ * not at all. On open, all segments are read to rebuild the index; the incomplete frame at the end of the last segment
+ * is cut off.
+ * <p>
+ * When the segment reaches the segment size, the new one is started. Old segments get garbage as their records are
+ * updated or destroyed; {@link #compact()} rewrites live records of segments that are less than {@link
+ * #COMPACTION_THRESHOLD} live to the current segment and deletes them, dropping expired records on the way. It could
+ * be done in background with {@link #startCompaction(Duration)}.
+ * <p>
+ * Writes are serialized, reads run concurrently with them.
+ */
+public class LogLedger implements Ledger {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    /**
+     * Segments with smaller share of live data are compacted.
+     */
+    public static final double COMPACTION_THRESHOLD = 0.5;
+
+    private static LogPrinter log = new LogPrinter("LOGL");
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int FRAME_HEADER = 8;
+    // entries in one frame written by the compaction
+    private static final int COMPACTION_FRAME = 1024;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // type, record id, state, created, expires, locked by, digest length
+    private static final int PUT_HEADER = 1 + 8 + 1 + 8 + 8 + 8 + 2;
+    // type, record id, digest length
+    private static final int DELETE_HEADER = 1 + 8 + 2;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+    // HashId -> segment number << 32 | entry offset
+    private final ConcurrentHashMap<HashId, Long> index = new ConcurrentHashMap<>();
+    private long lastRecordId;
+    private boolean syncOnCommit = true;
+
+    // serializes all writes and the compaction
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Transaction transaction;
+
+    private final RecordCache cachedRecords = new RecordCache(SqlLedger.DEFAULT_CACHE_SIZE);
+    private boolean useCache = true;
+
+    private ScheduledExecutorService compactor;
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    private static class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        // both are changed under the write lock only
+        long size;
+        long liveBytes;
+
+        Segment(int number, Path path) throws IOException {
+            this.number = number;
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE);
+            size = channel.size();
+        }
+    }
+
+    /**
+     * Decoded log entry.
+     */
+    private static class Change {
+        final HashId id;
+        final boolean delete;
+        final long recordId;
+        final int state;
+        final long createdAt;
+        final long expiresAt;
+        final long lockedBy;
+
+        Change(HashId id, boolean delete, long recordId, int state, long createdAt, long expiresAt, long lockedBy) {
+            this.id = id;
+            this.delete = delete;
+            this.recordId = recordId;
+            this.state = state;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+            this.lockedBy = lockedBy;
+        }
+
+        static Change put(StateRecord r) {
+            return new Change(r.getId(), false, r.getRecordId(), r.getState().ordinal(),
+                              r.getCreatedAtUnixTime(), r.getExpiresAtUnixTime(),
+                              r.getLockedByRecordId());
+        }
+
+        static Change delete(HashId id, long recordId) {
+            return new Change(id, true, recordId, 0, 0, 0, 0);
+        }
+
+        int size() {
+            return (delete ? DELETE_HEADER : PUT_HEADER) + id.getDigest().length;
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            byte[] digest = id.getDigest();
+            buffer.put(delete ? DELETE : PUT);
+            buffer.putLong(recordId);
+            if (!delete) {
+                buffer.put((byte) state);
+                buffer.putLong(createdAt);
+                buffer.putLong(expiresAt);
+                buffer.putLong(lockedBy);
+            }
+            buffer.putShort((short) digest.length);
+            buffer.put(digest);
+        }
+
+        static Change readFrom(ByteBuffer buffer) throws IOException {
+            byte type = buffer.get();
+            if (type != PUT && type != DELETE)
+                throw new IOException("bad log entry type: " + type);
+            long recordId = buffer.getLong();
+            int state = 0;
+            long createdAt = 0, expiresAt = 0, lockedBy = 0;
+            if (type == PUT) {
+                state = buffer.get();
+                createdAt = buffer.getLong();
+                expiresAt = buffer.getLong();
+                lockedBy = buffer.getLong();
+            }
+            byte[] digest = new byte[buffer.getShort()];
+            buffer.get(digest);
+            return new Change(HashId.withDigest(digest), type == DELETE, recordId, state, createdAt, expiresAt,
+                              lockedBy);
+        }
+    }
+
+    private static class Transaction {
+        final List<Change> changes = new ArrayList<>();
+        // records changed by the transaction, null for destroyed ones
+        final Map<HashId, StateRecord> records = new HashMap<>();
+    }
+
+    private interface EntryVisitor {
+        void visit(Change change, long location) throws IOException;
+    }
+
+    /**
+     * Open existing or create new ledger in the directory with {@link #DEFAULT_SEGMENT_SIZE}.
+     *
+     * @param directory where segment files are kept
+     * @throws IOException
+     */
+    public LogLedger(String directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open existing or create new ledger in the directory, reading all the segments to rebuild the index.
+     *
+     * @param directory   where segment files are kept
+     * @param segmentSize size after which the new segment is started
+     * @throws IOException if the directory can't be created or some segment other than the last one is corrupted
+     */
+    public LogLedger(String directory, long segmentSize) throws IOException {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        Files.createDirectories(this.directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory,
+                                                                     SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                                             name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(number, new Segment(number, p));
+            }
+        }
+        for (Segment s : segments.values()) {
+            long end = scan(s, (change, location) -> {
+                apply(change, location);
+                lastRecordId = Math.max(lastRecordId, change.recordId);
+            });
+            if (end < s.size) {
+                if (s.number != segments.lastKey())
+                    throw new IOException("corrupted log segment " + s.path + " at " + end);
+                log.e("cutting off incomplete log tail of " + (s.size - end) + " bytes");
+                s.channel.truncate(end);
+                s.size = end;
+            }
+        }
+        active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+    }
+
+    @Override
+    public StateRecord getRecord(HashId id) {
+        StateRecord r = findRecord(id);
+        if (r != null && r.isExpired()) {
+            r.destroy();
+            return null;
+        }
+        return r;
+    }
+
+    private StateRecord findRecord(HashId id) {
+        Transaction tx = currentTransaction();
+        if (tx != null && tx.records.containsKey(id))
+            return tx.records.get(id);
+        StateRecord r = getFromCache(id);
+        if (r != null)
+            return r;
+        Change c = read(id);
+        if (c == null)
+            return null;
+        r = new StateRecord(this, id, c.recordId, ItemState.values()[c.state], c.createdAt, c.expiresAt, c.lockedBy);
+        putToCache(r);
+        return r;
+    }
+
+    /**
+     * Read the latest entry of the id from the log.
+     *
+     * @return entry or null if the id is not in the ledger
+     */
+    private Change read(HashId id) {
+        while (true) {
+            Long location = index.get(id);
+            if (location == null)
+                return null;
+            Segment s = segments.get((int) (location >>> 32));
+            try {
+                if (s != null) {
+                    ByteBuffer buffer = ByteBuffer.allocate(PUT_HEADER + id.getDigest().length);
+                    long position = location & 0xFFFFFFFFL;
+                    while (buffer.hasRemaining()) {
+                        if (s.channel.read(buffer, position + buffer.position()) < 0)
+                            throw new EOFException("unexpected end of log segment");
+                    }
+                    buffer.flip();
+                    return Change.readFrom(buffer);
+                }
+            } catch (ClosedChannelException e) {
+                // the segment was compacted, the record was moved
+            } catch (IOException e) {
+                throw new Failure("failed to read the log: " + e.getMessage(), e);
+            }
+            if (location.equals(index.get(id)))
+                throw new Failure("log segment not found for " + id);
+        }
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        writeLock.lock();
+        try {
+            if (getRecord(newItemHashId) != null)
+                return null;
+            StateRecord r = new StateRecord(this);
+            r.setState(ItemState.LOCKED_FOR_CREATION);
+            r.setLockedByRecordId(creatorRecordId);
+            r.setId(newItemHashId);
+            r.save();
+            return r;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemId) {
+        StateRecord r = getRecord(itemId);
+        if (r != null)
+            return r;
+        writeLock.lock();
+        try {
+            r = getRecord(itemId);
+            if (r == null) {
+                r = new StateRecord(this);
+                r.setId(itemId);
+                r.setState(ItemState.PENDING);
+                r.save();
+            }
+            return r;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        writeLock.lock();
+        try {
+            if (transaction != null)
+                throw new IllegalStateException("nested transactions are not supported");
+            Transaction tx = new Transaction();
+            transaction = tx;
+            boolean committed = false;
+            try {
+                T result = callable.call();
+                transaction = null;
+                append(tx.changes);
+                committed = true;
+                // others should not see the changes before they are written
+                tx.records.values().stream().filter(Objects::nonNull).forEach(this::putToCache);
+                return result;
+            } catch (Rollback e) {
+                return null;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new Failure("transaction failed: " + e.getMessage(), e);
+            } finally {
+                transaction = null;
+                // cached instances could hold the rolled back state
+                if (!committed)
+                    tx.records.keySet().forEach(cachedRecords::remove);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the transaction if the calling thread performs it, otherwise null
+     */
+    private Transaction currentTransaction() {
+        return writeLock.isHeldByCurrentThread() ? transaction : null;
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        long recordId = record.getRecordId();
+        if (recordId == 0)
+            throw new IllegalStateException("can't destroy record without recordId");
+        writeLock.lock();
+        try {
+            HashId id = record.getId();
+            Transaction tx = transaction;
+            boolean exists = tx != null && tx.records.containsKey(id) ? tx.records.get(id) != null :
+                    index.containsKey(id);
+            cachedRecords.remove(id);
+            if (!exists)
+                return;
+            write(tx, Change.delete(id, recordId), id, null);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null)
+            stateRecord.setLedger(this);
+        else if (stateRecord.getLedger() != this)
+            throw new IllegalStateException("can't save with  adifferent ledger (make a copy!)");
+        writeLock.lock();
+        try {
+            HashId id = stateRecord.getId();
+            Transaction tx = transaction;
+            if (stateRecord.getRecordId() == 0) {
+                boolean exists = tx != null && tx.records.containsKey(id) ? tx.records.get(id) != null :
+                        index.containsKey(id);
+                if (exists)
+                    throw new Failure("StateRecord save failed: hash is already in the ledger");
+                stateRecord.setRecordId(++lastRecordId);
+            }
+            write(tx, Change.put(stateRecord), id, stateRecord);
+            if (tx == null)
+                putToCache(stateRecord);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(Transaction tx, Change change, HashId id, StateRecord record) {
+        if (tx != null) {
+            tx.changes.add(change);
+            tx.records.put(id, record);
+        } else
+            append(Collections.singletonList(change));
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        HashId id = stateRecord.getId();
+        Transaction tx = currentTransaction();
+        if (tx != null && tx.records.containsKey(id)) {
+            StateRecord r = tx.records.get(id);
+            if (r == null)
+                throw new StateRecord.NotFoundException("record not found");
+            if (r != stateRecord)
+                stateRecord.initFrom(r.getRecordId(), r.getState(), r.getCreatedAtUnixTime(),
+                                     r.getExpiresAtUnixTime(), r.getLockedByRecordId());
+            return;
+        }
+        Change c = read(id);
+        if (c == null)
+            throw new StateRecord.NotFoundException("record not found");
+        stateRecord.initFrom(c.recordId, ItemState.values()[c.state], c.createdAt, c.expiresAt, c.lockedBy);
+    }
+
+    /**
+     * Write changes as one frame to the active segment and update the index. Must be called under the write lock.
+     */
+    private void append(List<Change> changes) {
+        if (changes.isEmpty())
+            return;
+        int size = 0;
+        for (Change c : changes)
+            size += c.size();
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER + size);
+        buffer.position(FRAME_HEADER);
+        int[] offsets = new int[changes.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = buffer.position();
+            changes.get(i).writeTo(buffer);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), FRAME_HEADER, size);
+        buffer.putInt(0, size);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        try {
+            if (active.size > 0 && active.size + buffer.limit() > segmentSize) {
+                if (syncOnCommit)
+                    active.channel.force(false);
+                active = newSegment(active.number + 1);
+            }
+            long start = active.size;
+            while (buffer.hasRemaining())
+                active.channel.write(buffer, start + buffer.position());
+            if (syncOnCommit)
+                active.channel.force(false);
+            active.size += buffer.limit();
+            long base = ((long) active.number << 32) | start;
+            for (int i = 0; i < offsets.length; i++)
+                apply(changes.get(i), base + offsets[i]);
+        } catch (IOException e) {
+            // we don't know what has reached the disk, so we cut it off
+            try {
+                active.channel.truncate(active.size);
+            } catch (IOException e1) {
+                log.e("failed to truncate the log: " + e1);
+            }
+            throw new Failure("failed to write the log: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Update the index and live data counters with the entry.
+     */
+    private void apply(Change change, long location) {
+        Long old = change.delete ? index.remove(change.id) : index.put(change.id, location);
+        if (old != null) {
+            Segment s = segments.get((int) (old >>> 32));
+            if (s != null)
+                s.liveBytes -= PUT_HEADER + change.id.getDigest().length;
+        }
+        if (!change.delete)
+            segments.get((int) (location >>> 32)).liveBytes += change.size();
+    }
+
+    /**
+     * Read all valid frames of the segment, passing each entry and its location to the visitor.
+     *
+     * @return the position after the last valid frame
+     */
+    private long scan(Segment s, EntryVisitor visitor) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(s.path),
+                                                                               1 << 16))) {
+            while (position + FRAME_HEADER <= s.size) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length <= 0 || position + FRAME_HEADER + length > s.size)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if ((int) check.getValue() != crc)
+                    break;
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                long base = ((long) s.number << 32) | (position + FRAME_HEADER);
+                List<Change> changes = new ArrayList<>();
+                List<Long> locations = new ArrayList<>();
+                try {
+                    while (buffer.hasRemaining()) {
+                        locations.add(base + buffer.position());
+                        changes.add(Change.readFrom(buffer));
+                    }
+                } catch (RuntimeException | IOException e) {
+                    // malformed frame with the right crc, we can't trust it
+                    break;
+                }
+                for (int i = 0; i < changes.size(); i++)
+                    visitor.visit(changes.get(i), locations.get(i));
+                position += FRAME_HEADER + length;
+            }
+        } catch (EOFException e) {
+            // incomplete frame, position stays at its start
+        }
+        return position;
+    }
+
+    private Segment newSegment(int number) throws IOException {
+        Segment s = new Segment(number, directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number,
+                                                                         SEGMENT_SUFFIX)));
+        segments.put(number, s);
+        return s;
+    }
+
+    /**
+     * Compact all segments, except the active one, that are less than {@link #COMPACTION_THRESHOLD} live. Live records
+     * are copied to the active segment, expired ones are dropped, then the segment is deleted. Writes wait while each
+     * segment is compacted.
+     *
+     * @return number of compacted segments
+     */
+    public int compact() {
+        int count = 0;
+        for (Segment s : new ArrayList<>(segments.values())) {
+            writeLock.lock();
+            try {
+                if (transaction != null)
+                    throw new IllegalStateException("can't compact in the transaction");
+                if (s == active || !segments.containsKey(s.number) || s.liveBytes >= s.size * COMPACTION_THRESHOLD)
+                    continue;
+                compactSegment(s);
+                count++;
+            } catch (IOException e) {
+                throw new Failure("compaction failed: " + e.getMessage(), e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        return count;
+    }
+
+    private void compactSegment(Segment s) throws IOException {
+        // tombstones are needed while older segments could have entries they cancel
+        boolean oldest = segments.firstKey() == s.number;
+        long now = StateRecord.currentUnixTime();
+        List<Change> live = new ArrayList<>();
+        scan(s, (change, location) -> {
+            if (change.delete) {
+                if (!oldest && !index.containsKey(change.id))
+                    live.add(change);
+            } else if (Long.valueOf(location).equals(index.get(change.id))) {
+                if (change.expiresAt != 0 && change.expiresAt <= now) {
+                    index.remove(change.id);
+                    cachedRecords.remove(change.id);
+                    if (!oldest)
+                        live.add(Change.delete(change.id, change.recordId));
+                } else
+                    live.add(change);
+            }
+        });
+        for (int from = 0; from < live.size(); from += COMPACTION_FRAME)
+            append(live.subList(from, Math.min(live.size(), from + COMPACTION_FRAME)));
+        // copies must be durable before the original is gone
+        active.channel.force(false);
+        segments.remove(s.number);
+        s.channel.close();
+        Files.delete(s.path);
+        compactions.incrementAndGet();
+        reclaimedBytes.addAndGet(s.size);
+        log.d("compacted " + s.path.getFileName() + ": " + live.size() + " entries kept");
+    }
+
+    /**
+     * Start periodic {@link #compact()} in the own daemon thread.
+     */
+    public synchronized void startCompaction(Duration interval) {
+        if (compactor != null)
+            return;
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ledger-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        long millis = interval.toMillis();
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (Exception e) {
+                log.e("compaction failed: " + e);
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopCompaction() {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compactor = null;
+        }
+    }
+
+    /**
+     * Set whether each write is forced to the disk before it returns, true by default. Without it, the OS writes the
+     * data back when it wants, which is much faster but the last changes could be lost on power failure.
+     */
+    public void setSyncOnCommit(boolean syncOnCommit) {
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    /**
+     * Force all written data to the disk.
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            active.channel.force(false);
+        } catch (IOException e) {
+            throw new Failure("failed to flush the log: " + e.getMessage(), e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        stopCompaction();
+        writeLock.lock();
+        try {
+            for (Segment s : segments.values()) {
+                try {
+                    if (s == active)
+                        s.channel.force(false);
+                    s.channel.close();
+                } catch (IOException e) {
+                    log.e("failed to close log segment " + s.path + ": " + e);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of records in the ledger, expired included
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * @return total size of the compacted segments, bytes
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * Get the records cache, e.g. to read its hit/miss/eviction counters.
+     */
+    public RecordCache getRecordCache() {
+        return cachedRecords;
+    }
+
+    @Override
+    public void enableCache(boolean enable) {
+        useCache = enable;
+        if (!enable)
+            cachedRecords.clear();
+    }
+
+    private StateRecord getFromCache(HashId id) {
+        return useCache ? cachedRecords.get(id) : null;
+    }
+
+    private void putToCache(StateRecord r) {
+        if (useCache)
+            cachedRecords.put(r);
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The ledger that keeps records in the memory-mapped file, with no JDBC and almost no allocation on lookups.
+ * <p>
+ * The file is an open-addressing hash table of fixed-size slots. Each slot holds the 64-byte {@link HashId} digest, the
+ * state, creation and expiration times and the locking record id. The slot is found by linear probing starting from the
+ * digest prefix, and the slot number is used as the record id, so records never move. Destroyed records leave
+ * tombstones that are reused by later inserts.
+ * <p>
+ * The capacity is set when the file is created and can not be changed later; the ledger refuses to insert records when
+ * 3/4 of slots are in use, so set it with a margin. Maximum capacity is {@link #MAX_CAPACITY} slots.
+ * <p>
+ * {@link #transaction(Callable)} is implemented with the undo log of changed slots. Before the slot is changed for the
+ * first time in the transaction, its image is appended to the journal file next to the ledger, "name-journal", and
+ * the journal is synced to the disk. When the transaction is committed or rolled back, changed pages are written to the
+ * disk and the journal is emptied. If the node crashes in the middle, the journal is replayed when the ledger is
+ * opened again, so the transaction is either applied entirely or not at all. Changes made outside transactions are
+ * written to the mapped memory and reach the disk when the OS writes the pages back, or on {@link #flush()} and {@link
+ * #close()}.
+ */
+public class MappedLedger implements Ledger {
+
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    public static final int MAX_CAPACITY = 1 << 24;
+
+    private static final long MAGIC = 0x554C4D4150303031L; // ULMAP001
+    private static final long JOURNAL_MAGIC = 0x554C4A524E4C3031L; // ULJRNL01
+    // magic, count and tombstones before the transaction
+    private static final int JOURNAL_HEADER_SIZE = 24;
+    // slot number and its image
+    private static final int JOURNAL_ENTRY_SIZE = 4 + 96;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 96;
+    private static final int DIGEST_SIZE = 64;
+
+    // slot layout
+    private static final int FLAG = 0;
+    private static final int STATE = 1;
+    private static final int CREATED = 8;
+    private static final int EXPIRES = 16;
+    private static final int LOCKED_BY = 24;
+    private static final int DIGEST = 32;
+
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+
+    // header layout
+    private static final int H_CAPACITY = 8;
+    private static final int H_COUNT = 16;
+    private static final int H_TOMBSTONES = 24;
+
+    private final RandomAccessFile file;
+    private final RandomAccessFile journal;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private int count;
+    private int tombstones;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // slot images before the change, only while the transaction is active
+    private Map<Integer, byte[]> undoLog;
+    private int undoCount;
+    private int undoTombstones;
+
+    private final RecordCache cachedRecords = new RecordCache(SqlLedger.DEFAULT_CACHE_SIZE);
+    private boolean useCache = true;
+
+    /**
+     * Open existing or create new ledger file with {@link #DEFAULT_CAPACITY}.
+     *
+     * @param fileName path to the ledger file
+     * @throws IOException
+     */
+    public MappedLedger(String fileName) throws IOException {
+        this(fileName, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Open existing or create new ledger file.
+     *
+     * @param fileName path to the ledger file
+     * @param capacity number of slots for the new file, rounded up to the power of 2. Ignored if the file exists.
+     * @throws IOException
+     */
+    public MappedLedger(String fileName, int capacity) throws IOException {
+        boolean exists = new File(fileName).length() > 0;
+        file = new RandomAccessFile(fileName, "rw");
+        if (exists) {
+            file.seek(0);
+            if (file.readLong() != MAGIC)
+                throw new IOException("not a mapped ledger file: " + fileName);
+            file.seek(H_CAPACITY);
+            capacity = (int) file.readLong();
+        } else {
+            if (capacity < 16 || capacity > MAX_CAPACITY)
+                throw new IllegalArgumentException("capacity must be in 16.." + MAX_CAPACITY + " range");
+            capacity = Integer.highestOneBit(capacity - 1) << 1;
+        }
+        this.capacity = capacity;
+        mask = capacity - 1;
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                       HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        journal = new RandomAccessFile(fileName + "-journal", "rw");
+        if (exists) {
+            rollbackJournal();
+            count = (int) buffer.getLong(H_COUNT);
+            tombstones = (int) buffer.getLong(H_TOMBSTONES);
+        } else {
+            // the journal of some older file is not ours
+            truncateJournal();
+            buffer.putLong(0, MAGIC);
+            buffer.putLong(H_CAPACITY, capacity);
+            writeCounters();
+        }
+    }
+
+    @Override
+    public StateRecord getRecord(HashId id) {
+        StateRecord r = getFromCache(id);
+        if (r == null) {
+            lock.readLock().lock();
+            try {
+                int slot = find(id.getDigest());
+                if (slot < 0)
+                    return null;
+                r = loadRecord(slot, id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        if (r.isExpired()) {
+            r.destroy();
+            return null;
+        }
+        return r;
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        lock.writeLock().lock();
+        try {
+            if (find(newItemHashId.getDigest()) >= 0)
+                return null;
+            StateRecord r = new StateRecord(this);
+            r.setState(ItemState.LOCKED_FOR_CREATION);
+            r.setLockedByRecordId(creatorRecordId);
+            r.setId(newItemHashId);
+            r.save();
+            return r;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemId) {
+        lock.writeLock().lock();
+        try {
+            StateRecord r = getRecord(itemId);
+            if (r == null) {
+                r = new StateRecord(this);
+                r.setId(itemId);
+                r.setState(ItemState.PENDING);
+                r.save();
+            }
+            return r;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        lock.writeLock().lock();
+        try {
+            if (undoLog != null)
+                throw new IllegalStateException("nested transactions are not supported");
+            undoLog = new HashMap<>();
+            undoCount = count;
+            undoTombstones = tombstones;
+            boolean committed = false;
+            try {
+                T result = callable.call();
+                committed = true;
+                return result;
+            } catch (Rollback e) {
+                return null;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new Failure("transaction failed: " + e.getMessage(), e);
+            } finally {
+                if (!committed) {
+                    for (Map.Entry<Integer, byte[]> e : undoLog.entrySet()) {
+                        restoreSlot(e.getKey(), e.getValue());
+                        // cached instances could hold the rolled back state
+                        cachedRecords.remove(HashId.withDigest(readDigest(e.getKey())));
+                    }
+                    count = undoCount;
+                    tombstones = undoTombstones;
+                    writeCounters();
+                }
+                // the journal is not needed once the result is on the disk
+                if (!undoLog.isEmpty()) {
+                    buffer.force();
+                    truncateJournal();
+                }
+                undoLog = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        long recordId = record.getRecordId();
+        if (recordId == 0)
+            throw new IllegalStateException("can't destroy record without recordId");
+        lock.writeLock().lock();
+        try {
+            int slot = checkSlot(recordId);
+            if (buffer.get(slotOffset(slot) + FLAG) == USED) {
+                saveUndo(slot);
+                buffer.put(slotOffset(slot) + FLAG, DELETED);
+                count--;
+                tombstones++;
+                writeCounters();
+            }
+            cachedRecords.remove(record.getId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null)
+            stateRecord.setLedger(this);
+        else if (stateRecord.getLedger() != this)
+            throw new IllegalStateException("can't save with  adifferent ledger (make a copy!)");
+        lock.writeLock().lock();
+        try {
+            int slot;
+            if (stateRecord.getRecordId() == 0) {
+                slot = insert(stateRecord.getId().getDigest());
+                stateRecord.setRecordId(slot + 1);
+                buffer.putLong(slotOffset(slot) + CREATED, stateRecord.getCreatedAtUnixTime());
+                putToCache(stateRecord);
+            } else {
+                slot = checkSlot(stateRecord.getRecordId());
+                if (buffer.get(slotOffset(slot) + FLAG) != USED)
+                    throw new Failure("StateRecord save failed: record is destroyed");
+                saveUndo(slot);
+            }
+            int offset = slotOffset(slot);
+            buffer.put(offset + STATE, (byte) stateRecord.getState().ordinal());
+            buffer.putLong(offset + EXPIRES, stateRecord.getExpiresAtUnixTime());
+            buffer.putLong(offset + LOCKED_BY, stateRecord.getLockedByRecordId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        lock.readLock().lock();
+        try {
+            int slot = find(stateRecord.getId().getDigest());
+            if (slot < 0)
+                throw new StateRecord.NotFoundException("record not found");
+            int offset = slotOffset(slot);
+            stateRecord.initFrom(slot + 1,
+                                 ItemState.values()[buffer.get(offset + STATE)],
+                                 buffer.getLong(offset + CREATED),
+                                 buffer.getLong(offset + EXPIRES),
+                                 buffer.getLong(offset + LOCKED_BY));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void enableCache(boolean enable) {
+        useCache = enable;
+        if (!enable)
+            cachedRecords.clear();
+    }
+
+    /**
+     * Get the records cache, e.g. to read its hit/miss/eviction counters.
+     */
+    public RecordCache getRecordCache() {
+        return cachedRecords;
+    }
+
+    /**
+     * Write changed pages to the disk.
+     */
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            buffer.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        try {
+            journal.close();
+            file.close();
+        } catch (IOException e) {
+            throw new Failure("failed to close mapped ledger", e);
+        }
+    }
+
+    /**
+     * @return number of records in the ledger
+     */
+    public int size() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private StateRecord getFromCache(HashId itemId) {
+        return useCache ? cachedRecords.get(itemId) : null;
+    }
+
+    private void putToCache(StateRecord r) {
+        if (useCache)
+            cachedRecords.put(r);
+    }
+
+    private StateRecord loadRecord(int slot, HashId id) {
+        int offset = slotOffset(slot);
+        StateRecord r = new StateRecord(this, id, slot + 1,
+                                        ItemState.values()[buffer.get(offset + STATE)],
+                                        buffer.getLong(offset + CREATED),
+                                        buffer.getLong(offset + EXPIRES),
+                                        buffer.getLong(offset + LOCKED_BY));
+        putToCache(r);
+        return r;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int checkSlot(long recordId) {
+        if (recordId < 1 || recordId > capacity)
+            throw new IllegalArgumentException("bad record id: " + recordId);
+        return (int) (recordId - 1);
+    }
+
+    private int startSlot(byte[] digest) {
+        if (digest.length != DIGEST_SIZE)
+            throw new IllegalArgumentException("only " + DIGEST_SIZE + " bytes digests are supported");
+        int h = ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) | ((digest[2] & 0xFF) << 8) | (digest[3] & 0xFF);
+        return h & mask;
+    }
+
+    private boolean digestEquals(int slot, byte[] digest) {
+        int offset = slotOffset(slot) + DIGEST;
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            if (buffer.get(offset + i) != digest[i])
+                return false;
+        }
+        return true;
+    }
+
+    private byte[] readDigest(int slot) {
+        byte[] digest = new byte[DIGEST_SIZE];
+        int offset = slotOffset(slot) + DIGEST;
+        for (int i = 0; i < DIGEST_SIZE; i++)
+            digest[i] = buffer.get(offset + i);
+        return digest;
+    }
+
+    /**
+     * Find the slot of the existing record.
+     *
+     * @return slot number or -1
+     */
+    private int find(byte[] digest) {
+        int slot = startSlot(digest);
+        for (int i = 0; i < capacity; i++) {
+            byte flag = buffer.get(slotOffset(slot) + FLAG);
+            if (flag == FREE)
+                return -1;
+            if (flag == USED && digestEquals(slot, digest))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Allocate the slot for the new record and write its digest. Must be called under the write lock.
+     *
+     * @return allocated slot
+     */
+    private int insert(byte[] digest) {
+        int slot = startSlot(digest);
+        int target = -1;
+        for (int i = 0; i < capacity; i++) {
+            byte flag = buffer.get(slotOffset(slot) + FLAG);
+            if (flag == FREE) {
+                if (target < 0)
+                    target = slot;
+                break;
+            }
+            if (flag == DELETED) {
+                if (target < 0)
+                    target = slot;
+            } else if (digestEquals(slot, digest))
+                throw new Failure("StateRecord save failed: hash is already in the ledger");
+            slot = (slot + 1) & mask;
+        }
+        if (target < 0)
+            throw new Failure("mapped ledger is full: " + count + " of " + capacity);
+        int offset = slotOffset(target);
+        boolean reused = buffer.get(offset + FLAG) == DELETED;
+        // free slots are kept at least 1/4 of the table so probe sequences stay short
+        if (!reused && (count + tombstones + 1) * 4L > capacity * 3L)
+            throw new Failure("mapped ledger is full: " + count + " of " + capacity);
+        saveUndo(target);
+        if (reused)
+            tombstones--;
+        buffer.put(offset + FLAG, USED);
+        for (int i = 0; i < DIGEST_SIZE; i++)
+            buffer.put(offset + DIGEST + i, digest[i]);
+        count++;
+        writeCounters();
+        return target;
+    }
+
+    private void saveUndo(int slot) {
+        if (undoLog != null && !undoLog.containsKey(slot)) {
+            byte[] image = new byte[SLOT_SIZE];
+            int offset = slotOffset(slot);
+            for (int i = 0; i < SLOT_SIZE; i++)
+                image[i] = buffer.get(offset + i);
+            journal(slot, image);
+            undoLog.put(slot, image);
+        }
+    }
+
+    /**
+     * Append the slot image to the journal and sync it, so it is on the disk before the slot is changed.
+     */
+    private void journal(int slot, byte[] image) {
+        try {
+            ByteBuffer bb = ByteBuffer.allocate((undoLog.isEmpty() ? JOURNAL_HEADER_SIZE : 0) + JOURNAL_ENTRY_SIZE);
+            if (undoLog.isEmpty())
+                bb.putLong(JOURNAL_MAGIC).putLong(undoCount).putLong(undoTombstones);
+            bb.putInt(slot).put(image);
+            journal.seek(undoLog.isEmpty() ? 0 : JOURNAL_HEADER_SIZE + (long) undoLog.size() * JOURNAL_ENTRY_SIZE);
+            journal.write(bb.array());
+            journal.getChannel().force(false);
+        } catch (IOException e) {
+            throw new Failure("failed to write the journal", e);
+        }
+    }
+
+    private void truncateJournal() {
+        try {
+            journal.setLength(0);
+            journal.getChannel().force(false);
+        } catch (IOException e) {
+            throw new Failure("failed to reset the journal", e);
+        }
+    }
+
+    /**
+     * Restore slots and counters saved in the journal by the transaction interrupted by the crash. The entry that is
+     * not written entirely is ignored, as its slot was not changed yet.
+     */
+    private void rollbackJournal() throws IOException {
+        long length = journal.length();
+        if (length == 0)
+            return;
+        if (length >= JOURNAL_HEADER_SIZE) {
+            journal.seek(0);
+            if (journal.readLong() != JOURNAL_MAGIC)
+                throw new IOException("bad ledger journal");
+            long savedCount = journal.readLong();
+            long savedTombstones = journal.readLong();
+            byte[] image = new byte[SLOT_SIZE];
+            for (long n = (length - JOURNAL_HEADER_SIZE) / JOURNAL_ENTRY_SIZE; n > 0; n--) {
+                int slot = journal.readInt();
+                journal.readFully(image);
+                restoreSlot(checkSlot(slot + 1L), image);
+            }
+            buffer.putLong(H_COUNT, savedCount);
+            buffer.putLong(H_TOMBSTONES, savedTombstones);
+            buffer.force();
+        }
+        truncateJournal();
+    }
+
+    private void restoreSlot(int slot, byte[] image) {
+        int offset = slotOffset(slot);
+        for (int i = 0; i < SLOT_SIZE; i++)
+            buffer.put(offset + i, image[i]);
+    }
+
+    private void writeCounters() {
+        buffer.putLong(H_COUNT, count);
+        buffer.putLong(H_TOMBSTONES, tombstones);
+    }
+}
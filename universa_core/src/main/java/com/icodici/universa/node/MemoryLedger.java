@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ledger that keeps records in memory only, for tests, benchmarks and ephemeral nodes. Nothing survives {@link
+ * #close()}.
+ * <p>
+ * Records are stored as immutable snapshots in the {@link ConcurrentHashMap}, so reads never block and single writes
+ * are lock-free: inserts use putIfAbsent to keep ids unique, updates never resurrect destroyed records.
+ * <p>
+ * Transactions are serialized with each other, as the callers rely on check-then-change inside them. Changes are
+ * collected by the transaction, seen only by its own thread, and applied on commit; inserts go first, and if some id
+ * was inserted by someone else meanwhile, the transaction fails with no changes made.
+ */
+public class MemoryLedger implements Ledger {
+
+    private static final Entry DESTROYED = new Entry(0, null, 0, 0, 0);
+
+    private static class Entry {
+        final long recordId;
+        final ItemState state;
+        final long createdAt;
+        final long expiresAt;
+        final long lockedBy;
+
+        Entry(long recordId, ItemState state, long createdAt, long expiresAt, long lockedBy) {
+            this.recordId = recordId;
+            this.state = state;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+            this.lockedBy = lockedBy;
+        }
+
+        Entry(long recordId, StateRecord r) {
+            this(recordId, r.getState(), r.getCreatedAtUnixTime(), r.getExpiresAtUnixTime(),
+                 r.getLockedByRecordId());
+        }
+    }
+
+    private static class Transaction {
+        // latest entry of each changed id, DESTROYED for destroyed ones
+        final Map<HashId, Entry> changes = new LinkedHashMap<>();
+        final Set<HashId> inserted = new HashSet<>();
+    }
+
+    private final ConcurrentHashMap<HashId, Entry> records = new ConcurrentHashMap<>();
+    private final AtomicLong lastRecordId = new AtomicLong();
+    private final ReentrantLock transactionLock = new ReentrantLock();
+    private final ThreadLocal<Transaction> transactions = new ThreadLocal<>();
+
+    private final RecordCache cachedRecords;
+    private boolean useCache = true;
+
+    public MemoryLedger() {
+        this(SqlLedger.DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Create ledger with a given records cache capacity.
+     *
+     * @param cacheSize maximum number of cached {@link StateRecord} instances
+     */
+    public MemoryLedger(int cacheSize) {
+        cachedRecords = new RecordCache(cacheSize);
+    }
+
+    @Override
+    public StateRecord getRecord(HashId id) {
+        Transaction tx = transactions.get();
+        // changed by our transaction, the cached instance could be outdated
+        StateRecord r = tx != null && tx.changes.containsKey(id) ? null : getFromCache(id);
+        if (r == null) {
+            Entry e = findEntry(id);
+            if (e == null)
+                return null;
+            r = new StateRecord(this, id, e.recordId, e.state, e.createdAt, e.expiresAt, e.lockedBy);
+            if (tx == null)
+                putToCache(r);
+        }
+        if (r.isExpired()) {
+            r.destroy();
+            return null;
+        }
+        return r;
+    }
+
+    /**
+     * @return latest entry visible to the calling thread or null
+     */
+    private Entry findEntry(HashId id) {
+        Transaction tx = transactions.get();
+        if (tx != null) {
+            Entry e = tx.changes.get(id);
+            if (e != null)
+                return e == DESTROYED ? null : e;
+        }
+        return records.get(id);
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        if (getRecord(newItemHashId) != null)
+            return null;
+        StateRecord r = new StateRecord(this);
+        r.setState(ItemState.LOCKED_FOR_CREATION);
+        r.setLockedByRecordId(creatorRecordId);
+        r.setId(newItemHashId);
+        try {
+            r.save();
+            return r;
+        } catch (Failure e) {
+            return null;
+        }
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemId) {
+        StateRecord r = getRecord(itemId);
+        if (r != null)
+            return r;
+        r = new StateRecord(this);
+        r.setId(itemId);
+        r.setState(ItemState.PENDING);
+        try {
+            r.save();
+            return r;
+        } catch (Failure e) {
+            // someone has created it after we've checked
+            StateRecord existing = getRecord(itemId);
+            if (existing == null)
+                throw e;
+            return existing;
+        }
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        if (transactions.get() != null)
+            throw new IllegalStateException("nested transactions are not supported");
+        transactionLock.lock();
+        Transaction tx = new Transaction();
+        transactions.set(tx);
+        try {
+            T result = callable.call();
+            transactions.remove();
+            commit(tx);
+            return result;
+        } catch (Rollback e) {
+            return null;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Failure("transaction failed: " + e.getMessage(), e);
+        } finally {
+            transactions.remove();
+            // cached instances could hold the rolled back state, and committed ones are re-read
+            tx.changes.keySet().forEach(cachedRecords::remove);
+            transactionLock.unlock();
+        }
+    }
+
+    private void commit(Transaction tx) {
+        List<HashId> done = new ArrayList<>();
+        for (HashId id : tx.inserted) {
+            Entry e = tx.changes.get(id);
+            if (records.putIfAbsent(id, e) != null) {
+                done.forEach(records::remove);
+                throw new Failure("StateRecord save failed: hash is already in the ledger");
+            }
+            done.add(id);
+        }
+        tx.changes.forEach((id, e) -> {
+            if (e == DESTROYED)
+                records.remove(id);
+            else if (!tx.inserted.contains(id))
+                records.replace(id, e);
+        });
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        if (record.getRecordId() == 0)
+            throw new IllegalStateException("can't destroy record without recordId");
+        HashId id = record.getId();
+        Transaction tx = transactions.get();
+        if (tx != null) {
+            if (tx.inserted.remove(id))
+                tx.changes.remove(id);
+            else
+                tx.changes.put(id, DESTROYED);
+        } else
+            records.remove(id);
+        cachedRecords.remove(id);
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null)
+            stateRecord.setLedger(this);
+        else if (stateRecord.getLedger() != this)
+            throw new IllegalStateException("can't save with  adifferent ledger (make a copy!)");
+        HashId id = stateRecord.getId();
+        Transaction tx = transactions.get();
+        if (stateRecord.getRecordId() == 0) {
+            Entry e = new Entry(lastRecordId.incrementAndGet(), stateRecord);
+            if (tx != null) {
+                if (findEntry(id) != null)
+                    throw new Failure("StateRecord save failed: hash is already in the ledger");
+                tx.changes.put(id, e);
+                tx.inserted.add(id);
+            } else if (records.putIfAbsent(id, e) != null)
+                throw new Failure("StateRecord save failed: hash is already in the ledger");
+            stateRecord.setRecordId(e.recordId);
+        } else {
+            Entry e = new Entry(stateRecord.getRecordId(), stateRecord);
+            if (tx != null) {
+                // as the database does, updates of missing records change nothing
+                if (findEntry(id) != null)
+                    tx.changes.put(id, e);
+            } else
+                records.replace(id, e);
+        }
+        if (tx == null)
+            putToCache(stateRecord);
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        Entry e = findEntry(stateRecord.getId());
+        if (e == null)
+            throw new StateRecord.NotFoundException("record not found");
+        stateRecord.initFrom(e.recordId, e.state, e.createdAt, e.expiresAt, e.lockedBy);
+    }
+
+    @Override
+    public void close() {
+        records.clear();
+        cachedRecords.clear();
+    }
+
+    /**
+     * @return number of records in the ledger, expired included
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Get the records cache, e.g. to read its hit/miss/eviction counters.
+     */
+    public RecordCache getRecordCache() {
+        return cachedRecords;
+    }
+
+    @Override
+    public void enableCache(boolean enable) {
+        useCache = enable;
+        if (!enable)
+            cachedRecords.clear();
+    }
+
+    private StateRecord getFromCache(HashId id) {
+        return useCache ? cachedRecords.get(id) : null;
+    }
+
+    private void putToCache(StateRecord r) {
+        if (useCache)
+            cachedRecords.put(r);
+    }
+}
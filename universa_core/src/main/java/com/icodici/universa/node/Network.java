@@ -21,6 +21,9 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Network {
 
+    // shared by all networks unless set, like the static pool of the elections was
+    private static final ElectionsScheduler defaultScheduler = new FixedElectionsScheduler();
+
     private Duration votingExpiration = Duration.ofSeconds(10);
     private int negativeConsensus;
     private int positiveConsensus;
@@ -30,6 +33,14 @@ public class Network {
     private Duration maxElectionsTime = Duration.ofSeconds(5);
     private Duration declinedExpiration = Duration.ofDays(30);
     private Duration requeryPause = Duration.ofMillis(20);
+    private Duration votePollingPause = Duration.ofMillis(500);
+    private int blockSize = 0;
+    private Duration blockTime = Duration.ofMillis(20);
+    private ElectionsScheduler scheduler = defaultScheduler;
+    private int maxClientElections = 0;
+    private int maxPeerElections = 0;
+    private ElectionsBudget.Policy admissionPolicy = ElectionsBudget.Policy.REJECT;
+    private Duration admissionTimeout = Duration.ofSeconds(5);
     private LocalNode localNode;
 
     public Duration getVotingExpiration() {
@@ -141,6 +152,104 @@ public class Network {
         this.requeryPause = requeryPause;
     }
 
+    /**
+     * Pause before polling again the node that has not decided on the item yet. Normally the node pushes its vote
+     * with {@link Node#voteItem(Node, com.icodici.universa.HashId, ItemState)} as soon as it decides, so polling is
+     * only the fallback for lost pushes. Failed calls are retried after the shorter {@link #getRequeryPause()}.
+     */
+    public Duration getVotePollingPause() {
+        return votePollingPause;
+    }
+
+    public void setVotePollingPause(Duration votePollingPause) {
+        this.votePollingPause = votePollingPause;
+    }
+
+    /**
+     * Maximum number of items elected together in one block, see {@link ElectionsBlock}. Zero, the default, means each
+     * item is elected separately, which gives the least latency under low load.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Time to collect items into the block before electing them, if it is not full earlier, see {@link
+     * #getBlockSize()}.
+     */
+    public Duration getBlockTime() {
+        return blockTime;
+    }
+
+    public void setBlockTime(Duration blockTime) {
+        this.blockTime = blockTime;
+    }
+
+    /**
+     * Scheduler that runs elections tasks, see {@link ElectionsScheduler}. The default one is a {@link
+     * FixedElectionsScheduler} shared by all networks.
+     */
+    public ElectionsScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Set the scheduler for elections started from now on. The caller owns it and should shut it down when the nodes
+     * are.
+     */
+    public void setScheduler(ElectionsScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Maximum number of elections of the items registered by clients each local node runs at once, see {@link
+     * ElectionsBudget}. Zero, the default, means no limit.
+     */
+    public int getMaxClientElections() {
+        return maxClientElections;
+    }
+
+    public void setMaxClientElections(int maxClientElections) {
+        this.maxClientElections = maxClientElections;
+    }
+
+    /**
+     * Maximum number of elections of the items learned from other nodes each local node runs at once, see {@link
+     * ElectionsBudget}. Zero, the default, means no limit. It should not be less than the sum of client quotas of the
+     * other nodes, otherwise their items could expire waiting for the vote of this node.
+     */
+    public int getMaxPeerElections() {
+        return maxPeerElections;
+    }
+
+    public void setMaxPeerElections(int maxPeerElections) {
+        this.maxPeerElections = maxPeerElections;
+    }
+
+    /**
+     * What to do with the client item if {@link #getMaxClientElections()} are already running: reject it at once, the
+     * default, or wait up to {@link #getAdmissionTimeout()} for a free slot.
+     */
+    public ElectionsBudget.Policy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+
+    public void setAdmissionPolicy(ElectionsBudget.Policy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy;
+    }
+
+    public Duration getAdmissionTimeout() {
+        return admissionTimeout;
+    }
+
+    public void setAdmissionTimeout(Duration admissionTimeout) {
+        this.admissionTimeout = admissionTimeout;
+    }
+
     public void registerLocalNode(LocalNode localNode) {
         if( this.localNode != null )
             throw new IllegalStateException("local node is already set");
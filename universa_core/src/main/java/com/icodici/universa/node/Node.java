@@ -11,6 +11,10 @@ import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
 
 import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Abstract node, remote or local.
@@ -41,6 +45,42 @@ public abstract class Node {
      */
     public abstract ItemResult checkItem(Node caller, HashId itemId, ItemState state, boolean haveCopy) throws IOException, InterruptedException;
 
+    /**
+     * Request opinions on many items at once, the same as calling {@link #checkItem(Node, HashId, ItemState,
+     * boolean)} for each query, which is what the default implementation does. Remote nodes override it to send all
+     * queries in one message.
+     * <p>
+     * The item that could not be checked gets {@link ItemState#UNDEFINED} result, so the caller polls it again, and the
+     * failure does not affect other items of the call.
+     *
+     * @param caller  calling Node instance
+     * @param queries items to check
+     * @return current operation states in the order of queries
+     */
+    public List<ItemResult> checkItems(Node caller, List<ItemQuery> queries) throws IOException, InterruptedException {
+        List<ItemResult> results = new ArrayList<>(queries.size());
+        for (ItemQuery q : queries) {
+            try {
+                results.add(checkItem(caller, q.itemId, q.state, q.haveCopy));
+            } catch (IOException | RuntimeException e) {
+                results.add(new ItemResult(ItemState.UNDEFINED, false, LocalDateTime.now(), null));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Push the vote of the voter on the item being elected. The node calls it for each caller that has checked the
+     * item with {@link #checkItem(Node, HashId, ItemState, boolean)} before the node has decided, so the caller need
+     * not poll it. Delivery is not guaranteed, callers still poll the nodes that are silent for too long, see {@link
+     * Network#getVotePollingPause()}.
+     *
+     * @param voter  node that gives the vote
+     * @param itemId item hash
+     * @param state  state of the item at the voter, e.g. {@link ItemState#PENDING_POSITIVE}
+     */
+    public abstract void voteItem(Node voter, HashId itemId, ItemState state) throws IOException, InterruptedException;
+
     /**
      * Try to obtain the copy of the {@link Approvable} item.
      *
@@ -50,6 +90,26 @@ public abstract class Node {
      */
     public abstract Approvable getItem(HashId itemId) throws IOException, InterruptedException;
 
+    /**
+     * Get digests of the node's ledger, to find records that differ, see {@link LedgerDigest#getDigests(int, int[])}.
+     *
+     * @param level   tree level
+     * @param parents nodes of the previous level to get digests of their children, ignored for level 0
+     * @return digests, {@link LedgerDigest#FANOUT} for each parent
+     * @throws IOException if the node can't provide it
+     */
+    public abstract long[] getLedgerDigests(int level, int[] parents) throws IOException, InterruptedException;
+
+    /**
+     * Get ids and states of the not expired records in the bucket of the node's ledger, see {@link
+     * LedgerDigest#getBucket(int)}.
+     *
+     * @param bucket bucket number
+     * @return states by ids
+     * @throws IOException if the node can't provide it
+     */
+    public abstract Map<HashId, ItemState> getLedgerBucket(int bucket) throws IOException, InterruptedException;
+
     @Override
     public int hashCode() {
         return nodeId.hashCode();
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of {@link StateRecord} instances used by the {@link Ledger} implementations to return the same instance
+ * for the same {@link HashId} while it is in use, and to avoid hitting the storage for the hot set of records.
+ * <p>
+ * The cache is split into independently locked segments selected by the hash of the id, so concurrent lookups of
+ * different records rarely contend. Each segment holds at most its share of the total capacity and evicts according to
+ * the {@link Eviction} policy. Evicted records that are still referenced elsewhere, e.g. by running elections, are
+ * tracked weakly and returned by {@link #get(HashId)} until collected, so there is never a second instance for the same
+ * id. All methods are thread-safe.
+ * <p>
+ * Hits, misses and evictions are counted and could be read at any time to monitor the cache efficiency.
+ */
+public class RecordCache {
+
+    /**
+     * Eviction policy for the full segment.
+     */
+    public enum Eviction {
+        /**
+         * Evict least recently used record. Best for the voting load where the same small set of records is
+         * repeatedly polled.
+         */
+        LRU,
+        /**
+         * Evict the oldest inserted record regardless of its usage. Cheaper lookups (no reordering), worse hit rate
+         * for the hot sets.
+         */
+        FIFO
+    }
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int capacity;
+    private final Eviction eviction;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create LRU cache of the given size.
+     *
+     * @param capacity maximum number of records to keep
+     */
+    public RecordCache(int capacity) {
+        this(capacity, Eviction.LRU);
+    }
+
+    /**
+     * Create cache of the given size and eviction policy.
+     *
+     * @param capacity maximum number of records to keep, should be positive
+     * @param eviction policy to select the record to drop when the segment is full
+     */
+    public RecordCache(int capacity, Eviction eviction) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("cache capacity must be positive");
+        this.capacity = capacity;
+        this.eviction = eviction;
+        int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentCapacity, eviction == Eviction.LRU);
+    }
+
+    private Segment segmentFor(HashId id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Get the cached record.
+     *
+     * @param id of the record
+     * @return cached instance or null
+     */
+    public StateRecord get(HashId id) {
+        Segment s = segmentFor(id);
+        StateRecord r;
+        synchronized (s) {
+            r = s.find(id);
+        }
+        (r == null ? misses : hits).incrementAndGet();
+        return r;
+    }
+
+    /**
+     * Put the record to the cache, possibly evicting some other one. Records without id are ignored.
+     *
+     * @param record to cache
+     */
+    public void put(StateRecord record) {
+        HashId id = record.getId();
+        if (id == null)
+            return;
+        Segment s = segmentFor(id);
+        synchronized (s) {
+            s.add(record);
+        }
+    }
+
+    /**
+     * Remove the record from the cache if present.
+     *
+     * @param id of the record to remove
+     */
+    public void remove(HashId id) {
+        Segment s = segmentFor(id);
+        synchronized (s) {
+            s.remove(id);
+            s.inUse.remove(id);
+        }
+    }
+
+    /**
+     * Drop all cached records. Does not reset the counters.
+     */
+    public void clear() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.clear();
+                s.inUse.clear();
+            }
+        }
+    }
+
+    /**
+     * @return number of currently cached records
+     */
+    public int size() {
+        int total = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                total += s.size();
+            }
+        }
+        return total;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Eviction getEviction() {
+        return eviction;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return ratio of hits to all lookups, 0 if there were no lookups yet
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordCache<" + size() + "/" + capacity + " " + eviction + " hits:" + hits + " misses:" + misses +
+                " evictions:" + evictions + ">";
+    }
+
+    private class Segment extends LinkedHashMap<HashId, StateRecord> {
+        private final int segmentCapacity;
+        // all records given out, including evicted ones, while someone holds them
+        private final Map<HashId, WeakReference<StateRecord>> inUse = new WeakHashMap<>();
+
+        Segment(int segmentCapacity, boolean accessOrder) {
+            super(16, 0.75f, accessOrder);
+            this.segmentCapacity = segmentCapacity;
+        }
+
+        StateRecord find(HashId id) {
+            StateRecord r = get(id);
+            if (r == null) {
+                WeakReference<StateRecord> ref = inUse.get(id);
+                r = ref == null ? null : ref.get();
+                // evicted but still in use: it is hot again
+                if (r != null)
+                    put(id, r);
+            }
+            return r;
+        }
+
+        void add(StateRecord record) {
+            put(record.getId(), record);
+            inUse.put(record.getId(), new WeakReference<>(record));
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<HashId, StateRecord> eldest) {
+            if (size() > segmentCapacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
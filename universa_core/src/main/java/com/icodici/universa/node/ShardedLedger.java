@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+/**
+ * The ledger that spreads records over several underlying ledgers (shards), e.g. {@link SqlLedger} instances with
+ * database files on different disks, so writes to different shards run in parallel. The shard is selected by the
+ * first two bytes of the {@link HashId} digest, so the number of shards must never change for the existing data.
+ * <p>
+ * Shards keep their own record ids, and this ledger exposes them as <code>localId * shards + shardIndex</code>, so the
+ * ids are unique across shards and could be used as the locking record id anywhere. Shards should not be used
+ * directly, and their caches are disabled as this ledger keeps its own one.
+ * <p>
+ * Each write locks its shard. {@link #transaction(Callable)} keeps the locks of all shards it has touched until it is
+ * finished, and remembers the state of each record before its first change in the per-shard undo log, held in memory.
+ * On rollback the log is applied in the reverse order. Destroyed records are deleted only on commit. Shards are locked
+ * in the order they are touched: while it is ascending, the transaction waits for the lock as long as need, otherwise
+ * it waits at most {@link #LOCK_TIMEOUT_MILLIS} and fails, which rolls it back and so breaks any possible deadlock.
+ * <p>
+ * The transaction is best-effort across shards: it is isolated from the other users of this instance and rolled back
+ * as a whole on exceptions, but it is not atomic for crashes in the middle of it, as shards commit each change
+ * separately and there is no two-phase commit. Changes of a single shard are not split by a crash if the shard ledger
+ * is transactional itself.
+ * <p>
+ * {@link SqlLedger} shards report records deleted by their {@link ExpirationSweeper} so they are dropped from the cache
+ * of this ledger too.
+ */
+public class ShardedLedger implements Ledger {
+
+    /**
+     * How long the transaction waits for the shard lock when taking it out of order.
+     */
+    public static final long LOCK_TIMEOUT_MILLIS = 5000;
+
+    private final Ledger[] shards;
+    private final ReentrantLock[] locks;
+    private final RecordCache cachedRecords;
+    private boolean useCache = true;
+
+    private final ThreadLocal<Transaction> transactions = new ThreadLocal<>();
+
+    private static class Undo {
+        final int shard;
+        // shard's record to delete if inserted, or its state to save back otherwise
+        final StateRecord image;
+        final boolean inserted;
+
+        Undo(int shard, StateRecord image, boolean inserted) {
+            this.shard = shard;
+            this.image = image;
+            this.inserted = inserted;
+        }
+    }
+
+    private static class Transaction {
+        final BitSet locked = new BitSet();
+        final List<Undo> undoLog = new ArrayList<>();
+        // ids that already have the undo record or were inserted by this transaction
+        final Set<HashId> logged = new HashSet<>();
+        // records to delete on commit
+        final Map<HashId, StateRecord> destroyed = new LinkedHashMap<>();
+    }
+
+    /**
+     * Create ledger over the given shards.
+     *
+     * @param shards underlying ledgers, the order must be the same each time
+     */
+    public ShardedLedger(List<? extends Ledger> shards) {
+        this(shards, SqlLedger.DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Create ledger over the given shards.
+     *
+     * @param shards    underlying ledgers, the order must be the same each time
+     * @param cacheSize maximum number of cached {@link StateRecord} instances
+     */
+    public ShardedLedger(List<? extends Ledger> shards, int cacheSize) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("at least one shard is required");
+        this.shards = shards.toArray(new Ledger[shards.size()]);
+        locks = new ReentrantLock[this.shards.length];
+        cachedRecords = new RecordCache(cacheSize);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+            // shard would otherwise keep stale instances, as we save copies
+            this.shards[i].enableCache(false);
+            if (this.shards[i] instanceof SqlLedger)
+                ((SqlLedger) this.shards[i]).setExpirationListener(cachedRecords::remove);
+        }
+    }
+
+    /**
+     * Create ledger over count {@link SqlLedger} shards in files named <code>pathPrefix.N.sqlite.db</code>.
+     *
+     * @param pathPrefix shard files path prefix
+     * @param count      number of shards
+     * @param profile    storage profile of the shards
+     * @throws SQLException if some shard can't be opened, already opened ones are closed then
+     */
+    public static ShardedLedger sqlite(String pathPrefix, int count, SqlLedger.Profile profile) throws SQLException {
+        List<SqlLedger> shards = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++)
+                shards.add(new SqlLedger("jdbc:sqlite:" + pathPrefix + "." + i + ".sqlite.db",
+                                         SqlLedger.DEFAULT_CACHE_SIZE, profile));
+        } catch (SQLException e) {
+            shards.forEach(SqlLedger::close);
+            throw e;
+        }
+        return new ShardedLedger(shards);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Get the shard, e.g. to read its statistics or to set up the {@link ExpirationSweeper} on it.
+     */
+    public Ledger getShard(int index) {
+        return shards[index];
+    }
+
+    /**
+     * @return index of the shard that keeps the record with a given id
+     */
+    public int shardOf(HashId id) {
+        byte[] d = id.getDigest();
+        int prefix = d.length >= 2 ? ((d[0] & 0xFF) << 8) | (d[1] & 0xFF) : id.hashCode() & 0xFFFF;
+        return prefix % shards.length;
+    }
+
+    @Override
+    public StateRecord getRecord(HashId id) {
+        Transaction tx = transactions.get();
+        if (tx != null && tx.destroyed.containsKey(id))
+            return null;
+        StateRecord r = getFromCache(id);
+        if (r == null) {
+            int shard = shardOf(id);
+            r = wrap(shard, shards[shard].getRecord(id));
+            if (r == null)
+                return null;
+            putToCache(r);
+        }
+        if (r.isExpired()) {
+            r.destroy();
+            return null;
+        }
+        return r;
+    }
+
+    @Override
+    public Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        Map<Integer, List<HashId>> byShard = new HashMap<>();
+        Transaction tx = transactions.get();
+        for (HashId id : ids) {
+            if (tx != null && tx.destroyed.containsKey(id))
+                continue;
+            StateRecord r = getFromCache(id);
+            if (r != null)
+                result.put(id, r);
+            else
+                byShard.computeIfAbsent(shardOf(id), k -> new ArrayList<>()).add(id);
+        }
+        // each shard does its bulk lookup
+        byShard.forEach((shard, list) -> shards[shard].getRecords(list).forEach((id, sr) -> {
+            StateRecord r = wrap(shard, sr);
+            putToCache(r);
+            result.put(id, r);
+        }));
+        Iterator<StateRecord> it = result.values().iterator();
+        while (it.hasNext()) {
+            StateRecord r = it.next();
+            if (r.isExpired()) {
+                r.destroy();
+                it.remove();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        int shard = shardOf(newItemHashId);
+        return locked(shard, () -> {
+            applyDestroyed(newItemHashId);
+            StateRecord sr = shards[shard].createOutputLockRecord(creatorRecordId, newItemHashId);
+            if (sr == null)
+                return null;
+            logInsert(shard, sr);
+            StateRecord r = wrap(shard, sr);
+            putToCache(r);
+            return r;
+        });
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemId) {
+        StateRecord r = getRecord(itemId);
+        if (r != null)
+            return r;
+        int shard = shardOf(itemId);
+        return locked(shard, () -> {
+            applyDestroyed(itemId);
+            // we hold the shard lock, so if it is not there, it will be created by us
+            StateRecord sr = shards[shard].getRecord(itemId);
+            if (sr == null) {
+                sr = shards[shard].findOrCreate(itemId);
+                logInsert(shard, sr);
+            }
+            StateRecord result = wrap(shard, sr);
+            putToCache(result);
+            return result;
+        });
+    }
+
+    /**
+     * Perform the best-effort cross-shard transaction, see the class description: a crash in the middle of it could
+     * leave changes of some shards committed, e.g. to be resolved later by {@link #recoverOrphans()}.
+     */
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        if (transactions.get() != null)
+            throw new IllegalStateException("nested transactions are not supported");
+        Transaction tx = new Transaction();
+        transactions.set(tx);
+        boolean committed = false;
+        try {
+            T result = callable.call();
+            for (StateRecord r : tx.destroyed.values())
+                destroyNow(r);
+            committed = true;
+            return result;
+        } catch (Rollback e) {
+            return null;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Failure("transaction failed: " + e.getMessage(), e);
+        } finally {
+            transactions.remove();
+            try {
+                if (!committed)
+                    rollback(tx);
+            } finally {
+                for (int i = tx.locked.nextSetBit(0); i >= 0; i = tx.locked.nextSetBit(i + 1))
+                    locks[i].unlock();
+            }
+        }
+    }
+
+    private void rollback(Transaction tx) {
+        ListIterator<Undo> it = tx.undoLog.listIterator(tx.undoLog.size());
+        while (it.hasPrevious()) {
+            Undo u = it.previous();
+            if (u.inserted)
+                shards[u.shard].destroy(u.image);
+            else
+                shards[u.shard].save(u.image);
+        }
+        // cached instances could hold the rolled back state
+        tx.logged.forEach(cachedRecords::remove);
+        tx.destroyed.keySet().forEach(cachedRecords::remove);
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        if (record.getRecordId() == 0)
+            throw new IllegalStateException("can't destroy record without recordId");
+        Transaction tx = transactions.get();
+        if (tx != null) {
+            lockInTransaction(tx, shardOf(record.getId()));
+            tx.destroyed.put(record.getId(), record);
+            cachedRecords.remove(record.getId());
+        } else
+            locked(shardOf(record.getId()), () -> {
+                destroyNow(record);
+                return null;
+            });
+    }
+
+    private void destroyNow(StateRecord record) {
+        int shard = shardOf(record.getId());
+        shards[shard].destroy(unwrap(shard, record));
+        cachedRecords.remove(record.getId());
+    }
+
+    /**
+     * The record destroyed by the current transaction is deleted at once if the transaction creates it again. Such
+     * deletion can not be rolled back.
+     */
+    private void applyDestroyed(HashId id) {
+        Transaction tx = transactions.get();
+        if (tx != null) {
+            StateRecord r = tx.destroyed.remove(id);
+            if (r != null)
+                destroyNow(r);
+        }
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null)
+            stateRecord.setLedger(this);
+        else if (stateRecord.getLedger() != this)
+            throw new IllegalStateException("can't save with  adifferent ledger (make a copy!)");
+        int shard = shardOf(stateRecord.getId());
+        locked(shard, () -> {
+            Transaction tx = transactions.get();
+            boolean insert = stateRecord.getRecordId() == 0;
+            if (tx != null && !insert && !tx.logged.contains(stateRecord.getId())) {
+                StateRecord image = unwrap(shard, stateRecord);
+                try {
+                    shards[shard].reload(image);
+                    tx.undoLog.add(new Undo(shard, image, false));
+                } catch (StateRecord.NotFoundException e) {
+                    // nothing to restore
+                }
+                tx.logged.add(stateRecord.getId());
+            }
+            StateRecord sr = unwrap(shard, stateRecord);
+            shards[shard].save(sr);
+            if (insert) {
+                logInsert(shard, sr);
+                stateRecord.setRecordId(globalId(shard, sr.getRecordId()));
+            }
+            putToCache(stateRecord);
+            return null;
+        });
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        Transaction tx = transactions.get();
+        if (tx != null && tx.destroyed.containsKey(stateRecord.getId()))
+            throw new StateRecord.NotFoundException("record not found");
+        int shard = shardOf(stateRecord.getId());
+        StateRecord sr = unwrap(shard, stateRecord);
+        shards[shard].reload(sr);
+        stateRecord.initFrom(globalId(shard, sr.getRecordId()), sr.getState(),
+                             sr.getCreatedAtUnixTime(), sr.getExpiresAtUnixTime(),
+                             sr.getLockedByRecordId());
+    }
+
+    @Override
+    public void close() {
+        for (Ledger shard : shards)
+            shard.close();
+    }
+
+    /**
+     * Recover each shard. Locking records of {@link SqlLedger} shards are looked up in their own shards, for other
+     * shards records locked by the record in the other shard are unlocked anyway.
+     */
+    @Override
+    public int recoverOrphans() {
+        LongFunction<ItemState> lockerState = recordId -> {
+            Ledger shard = shards[(int) (recordId % shards.length)];
+            return shard instanceof SqlLedger ? ((SqlLedger) shard).storedState(recordId / shards.length) : null;
+        };
+        int total = 0;
+        for (Ledger shard : shards)
+            total += shard instanceof SqlLedger ? ((SqlLedger) shard).recoverOrphans(lockerState) :
+                    shard.recoverOrphans();
+        cachedRecords.clear();
+        return total;
+    }
+
+    /**
+     * Get the sum of statistics of all shards. It is computed on each call and is not updated later.
+     *
+     * @return sum or null if some shard does not support statistics
+     */
+    @Override
+    public LedgerStats getStats() {
+        List<LedgerStats> all = new ArrayList<>();
+        for (Ledger shard : shards) {
+            LedgerStats s = shard.getStats();
+            if (s == null)
+                return null;
+            all.add(s);
+        }
+        return LedgerStats.sum(all);
+    }
+
+    @Override
+    public void enableCache(boolean enable) {
+        useCache = enable;
+        if (!enable)
+            cachedRecords.clear();
+    }
+
+    /**
+     * Get the records cache, e.g. to read its hit/miss/eviction counters.
+     */
+    public RecordCache getRecordCache() {
+        return cachedRecords;
+    }
+
+    private void logInsert(int shard, StateRecord shardRecord) {
+        Transaction tx = transactions.get();
+        if (tx != null) {
+            tx.undoLog.add(new Undo(shard, shardRecord, true));
+            tx.logged.add(shardRecord.getId());
+        }
+    }
+
+    /**
+     * Perform the block holding the shard lock. In the transaction, the lock is kept until it is finished.
+     */
+    private <T> T locked(int shard, Callable<T> block) {
+        Transaction tx = transactions.get();
+        if (tx != null)
+            lockInTransaction(tx, shard);
+        else
+            locks[shard].lock();
+        try {
+            return block.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Failure("Ledger operation failed: " + e.getMessage(), e);
+        } finally {
+            if (tx == null)
+                locks[shard].unlock();
+        }
+    }
+
+    private void lockInTransaction(Transaction tx, int shard) {
+        if (tx.locked.get(shard))
+            return;
+        // shards taken in ascending order can't deadlock
+        if (tx.locked.length() <= shard)
+            locks[shard].lock();
+        else {
+            try {
+                if (!locks[shard].tryLock(LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                    throw new Failure("timed out waiting for shard " + shard + ", possible deadlock");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Failure("interrupted waiting for shard " + shard);
+            }
+        }
+        tx.locked.set(shard);
+    }
+
+    private long globalId(int shard, long localId) {
+        return localId * shards.length + shard;
+    }
+
+    private StateRecord wrap(int shard, StateRecord sr) {
+        if (sr == null)
+            return null;
+        return new StateRecord(this, sr.getId(), globalId(shard, sr.getRecordId()), sr.getState(),
+                               sr.getCreatedAtUnixTime(), sr.getExpiresAtUnixTime(),
+                               sr.getLockedByRecordId());
+    }
+
+    private StateRecord unwrap(int shard, StateRecord r) {
+        long recordId = r.getRecordId();
+        if (recordId != 0 && recordId % shards.length != shard)
+            throw new IllegalStateException("record id does not belong to the shard");
+        return new StateRecord(shards[shard], r.getId(), recordId / shards.length, r.getState(),
+                               r.getCreatedAtUnixTime(), r.getExpiresAtUnixTime(),
+                               r.getLockedByRecordId());
+    }
+
+    private StateRecord getFromCache(HashId id) {
+        return useCache ? cachedRecords.get(id) : null;
+    }
+
+    private void putToCache(StateRecord r) {
+        if (useCache)
+            cachedRecords.put(r);
+    }
+}
@@ -8,27 +8,153 @@
 package com.icodici.universa.node;
 
 import com.icodici.db.Db;
+import com.icodici.db.DbPool;
 import com.icodici.universa.HashId;
+import net.sergeych.utils.LogPrinter;
 import org.sqlite.SQLiteConfig;
 
-import java.lang.ref.WeakReference;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
 
 /**
  * The basic SQL-based ledger.
  * <p>
- * This implementation uses SQLite, but could be easily enhanced to use any jdbc provider.
+ * This implementation uses SQLite, but could be easily enhanced to use any jdbc provider. SQLite storage settings are
+ * selected with the {@link Profile}, which could be passed to the constructor or appended to the connection string as
+ * <code>?profile=wal</code>.
  * <p>
  * Created by sergeych on 16/07/2017.
  */
 public class SqlLedger implements Ledger {
-    private final Db dbtool;
+
+    /**
+     * SQLite storage profile.
+     */
+    public enum Profile {
+        /**
+         * Single shared-cache connection used for both reads and writes, so readers wait for the writer. Works with
+         * in-memory databases too.
+         */
+        SHARED_CACHE,
+        /**
+         * Write-ahead log with synchronous=NORMAL, memory-mapped reads and a larger page cache. One connection writes,
+         * and a pool of read-only connections serves lookups concurrently with it, as WAL readers are never blocked by
+         * the writer. Requires a file database.
+         */
+        WAL;
+
+        /**
+         * Get the profile by its name, case insensitive.
+         *
+         * @throws IllegalArgumentException if there is no such profile
+         */
+        public static Profile byName(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Number of read-only connections in the {@link Profile#WAL} profile.
+     */
+    public static final int DEFAULT_READERS = 4;
+    /**
+     * Size of the memory-mapped region in the {@link Profile#WAL} profile, bytes.
+     */
+    public static final long WAL_MMAP_SIZE = 256L * 1024 * 1024;
+    // negative value is in KiB, so it is 64M
+    private static final int WAL_CACHE_SIZE = -65536;
+    private static final String WAL_BUSY_TIMEOUT = "5000";
+    private static final String PROFILE_PARAMETER = "profile=";
+    /**
+     * Default number of {@link StateRecord} instances kept in the cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+    /**
+     * Minimal number of ids the filter is sized for, see {@link #rebuildFilter()}.
+     */
+    public static final int DEFAULT_FILTER_SIZE = 1000000;
+    /**
+     * False positive rate the filter is sized for.
+     */
+    public static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+    /**
+     * Number of ids in one query of {@link #getRecords(Collection)}. Shorter chunks are padded to this size, so the
+     * same prepared statement is always used.
+     */
+    public static final int LOOKUP_CHUNK_SIZE = 32;
+    private static final String LOOKUP_CHUNK_SQL;
+    private static final int CREATION_LOCK_STRIPES = 64;
+    // for databases other than SQLite that allow concurrent writers
+    private static final int DEFAULT_POOL_SIZE = 8;
+    /**
+     * Size of the hash prefix stored in the hash_key column. Lookups go by the key and then compare the full hash, and
+     * the unique index over both keeps hashes unique.
+     */
+    public static final int HASH_KEY_SIZE = 8;
+    // the unique ix_ledger_hashes index rejects the hash that is already there, whatever connection has inserted it
+    private static final String INSERT_SQL =
+            "insert into ledger(hash_key,hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?,?);";
+    private static final String IMPORT_SQL =
+            "insert into ledger(id,hash_key,hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?,?,?);";
+    private static final String FIND_SQL = "SELECT " + StateRecord.COLUMNS +
+            " FROM ledger WHERE hash_key = ? AND hash = ? limit 1";
+    private static final String EXPORT_SQL = "SELECT id, hash, state, created_at, expires_at, locked_by_id " +
+            "FROM ledger WHERE id > ? AND (expires_at IS NULL OR expires_at = 0 OR expires_at > ?) ORDER BY id LIMIT ?";
+    private static final String UPDATE_SQL = "update ledger set state=?, expires_at=?, locked_by_id=? where id=?";
+    // must be the same as in the migrations, the snapshot import drops and recreates them
+    private static final String[] LEDGER_INDEXES = {
+            "create unique index if not exists ix_ledger_hashes on ledger(hash_key, hash)",
+            "create index if not exists ix_ledger_locks on ledger(locked_by_id)",
+            "create index if not exists ix_ledger_expires_at on ledger(expires_at)",
+            "create index if not exists ix_ledger_terminal on ledger(id) where state in (6, 7)",
+            "create index if not exists ix_ledger_unsettled on ledger(id) where state in (1, 2, 3, 5, 9)"
+    };
+    // the condition must be the same as of ix_ledger_terminal, which the planner would not choose itself as it
+    // prefers the rowid range, and then scans all hot records each time
+    private static final String ARCHIVE_SQL = "SELECT id, hash, state, created_at, expires_at, locked_by_id " +
+            "FROM ledger INDEXED BY ix_ledger_terminal WHERE state in (6, 7) " +
+            "AND (expires_at IS NULL OR expires_at = 0 OR expires_at > ?) ORDER BY id LIMIT ?";
+    // ids are autoincrement, so the highest one ever used could be already deleted or archived
+    private static final String LAST_ID_SQL = "SELECT max(coalesce((SELECT max(id) FROM ledger), 0), " +
+            "coalesce((SELECT seq FROM sqlite_sequence WHERE name = 'ledger'), 0))";
+
+    // pending, locked and locked for creation records, the condition must be the same as of ix_ledger_unsettled
+    private static final String UNSETTLED_SQL = "SELECT " + StateRecord.COLUMNS +
+            " FROM ledger INDEXED BY ix_ledger_unsettled WHERE state in (1, 2, 3, 5, 9) AND id > ? " +
+            "ORDER BY id LIMIT ?";
+    /**
+     * Records resolved in one transaction by {@link #recoverOrphans()}.
+     */
+    public static final int RECOVERY_BATCH_SIZE = 1000;
+
+    // vars holding totals of LedgerStats as of the last checkpoint
+    private static final String STATS_CREATED_VAR = "ledger_created";
+    private static final String STATS_EXPIRED_VAR = "ledger_expired";
+
+    private static LogPrinter log = new LogPrinter("SQLL");
+
+    static {
+        StringBuilder sb = new StringBuilder("SELECT " + StateRecord.COLUMNS + " FROM ledger WHERE hash_key IN (?");
+        for (int i = 1; i < LOOKUP_CHUNK_SIZE; i++)
+            sb.append(",?");
+        LOOKUP_CHUNK_SQL = sb.append(")").toString();
+    }
+
+    // all writes go there
+    private final DbPool pool;
+    // lookups go there, the same as pool unless in the WAL profile
+    private final DbPool readers;
+    private final Profile profile;
 
 //    private final Connection connection;
 
@@ -36,38 +162,205 @@ public class SqlLedger implements Ledger {
     private String connString;
     private boolean sqlite = false;
 
-    private Object creationLock = new Object();
+    // connections are checked out for each operation, and by the transaction until it is finished, as SQLite
+    // transaction covers the whole connection
     private Object transactionLock = new Object();
-    private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
+    // per-id locks to check and insert new records atomically in write-behind mode, where the insert can't check the
+    // database for the hash until flushed
+    private final Object[] creationLocks = new Object[CREATION_LOCK_STRIPES];
+    private final RecordCache cachedRecords;
     private boolean useCache = true;
+    // records saved or destroyed by the current thread's transaction, to drop them from cache on rollback
+    private final ThreadLocal<List<StateRecord>> transactionRecords = new ThreadLocal<>();
+
+    private volatile WriteBehindQueue writeBehind;
+    // changes made by the current thread's transaction in write-behind mode
+    private final ThreadLocal<List<WriteBehindQueue.PendingWrite>> transactionWrites = new ThreadLocal<>();
+    // in write-behind mode record ids are assigned by the ledger
+    private final AtomicLong lastRecordId = new AtomicLong();
+
+    // null if disabled
+    private volatile CountingBloomFilter filter;
+    // ids destroyed by the current thread's transaction, to remove them from the filter on commit
+    private final ThreadLocal<List<HashId>> transactionRemovals = new ThreadLocal<>();
+
+    private final LedgerDigest digest = new LedgerDigest(this::scanBucket);
+
+    // null if disabled
+    private volatile ArchiveTier archive;
+    // notified of records deleted by the sweeper, null if not set
+    private volatile Consumer<HashId> expirationListener;
+    // archived ids the current thread's transaction has restored or destroyed, to hide them in the archive on commit
+    private final ThreadLocal<List<HashId>> transactionUnarchived = new ThreadLocal<>();
+
+    private final LedgerStats stats = new LedgerStats();
+    // state changes made by the current thread's transaction, to count them on commit
+    private final ThreadLocal<LedgerStats.Delta> transactionStats = new ThreadLocal<>();
 
     public SqlLedger(String connectionString) throws SQLException {
+        this(connectionString, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Create ledger with a given records cache capacity.
+     *
+     * @param connectionString jdbc connection string
+     * @param cacheSize        maximum number of cached {@link StateRecord} instances
+     * @throws SQLException
+     */
+    public SqlLedger(String connectionString, int cacheSize) throws SQLException {
+        this(stripProfile(connectionString), cacheSize, profileOf(connectionString));
+    }
+
+    /**
+     * Create ledger with a given records cache capacity and storage profile.
+     *
+     * @param connectionString jdbc connection string
+     * @param cacheSize        maximum number of cached {@link StateRecord} instances
+     * @param profile          SQLite storage profile, ignored for other databases
+     * @throws SQLException
+     */
+    public SqlLedger(String connectionString, int cacheSize, Profile profile) throws SQLException {
+        cachedRecords = new RecordCache(cacheSize);
+        for (int i = 0; i < CREATION_LOCK_STRIPES; i++)
+            creationLocks[i] = new Object();
         sqlite = connectionString.contains("jdbc");
-        if (sqlite) {
+        if (sqlite && profile == Profile.WAL) {
+            this.profile = profile;
             SQLiteConfig config = new SQLiteConfig();
-            config.setSharedCache(true);
-            dbtool = new Db(connectionString, config.toProperties(), "/migrations/migrate_");
+            config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            config.setCacheSize(WAL_CACHE_SIZE);
+            config.setBusyTimeout(WAL_BUSY_TIMEOUT);
+            // SQLite allows only one writer at a time, so more connections would only fail with SQLITE_BUSY
+            pool = new DbPool(connectionString, config.toProperties(), "/migrations/migrate_", 1,
+                              SqlLedger::mapMemory);
+            SQLiteConfig readerConfig = new SQLiteConfig();
+            readerConfig.setReadOnly(true);
+            readerConfig.setCacheSize(WAL_CACHE_SIZE);
+            readerConfig.setBusyTimeout(WAL_BUSY_TIMEOUT);
+            readers = new DbPool(connectionString, readerConfig.toProperties(), null, DEFAULT_READERS,
+                                 SqlLedger::mapMemory);
         } else {
-            dbtool = new Db(connectionString, null, "/migrations/migrate_");
+            this.profile = Profile.SHARED_CACHE;
+            if (sqlite) {
+                SQLiteConfig config = new SQLiteConfig();
+                config.setSharedCache(true);
+                pool = new DbPool(connectionString, config.toProperties(), "/migrations/migrate_", 1);
+            } else {
+                pool = new DbPool(connectionString, null, "/migrations/migrate_", DEFAULT_POOL_SIZE);
+            }
+            readers = pool;
+        }
+        rebuildFilter();
+        withConnection(db -> {
+            stats.setTotals(getLongVar(db, STATS_CREATED_VAR), getLongVar(db, STATS_EXPIRED_VAR));
+            return null;
+        });
+    }
+
+    private static Object mapMemory(Db db) throws SQLException {
+        // there is no SQLiteConfig setting for it, and the pragma returns the new value as a row
+        return db.queryOne("PRAGMA mmap_size=" + WAL_MMAP_SIZE);
+    }
+
+    /**
+     * Get the profile from the <code>profile=</code> parameter of the connection string.
+     *
+     * @return found profile or {@link Profile#SHARED_CACHE}
+     */
+    static Profile profileOf(String connectionString) {
+        int q = connectionString.indexOf('?');
+        if (q >= 0) {
+            for (String p : connectionString.substring(q + 1).split("&")) {
+                if (p.startsWith(PROFILE_PARAMETER))
+                    return Profile.byName(p.substring(PROFILE_PARAMETER.length()));
+            }
+        }
+        return Profile.SHARED_CACHE;
+    }
+
+    /**
+     * Remove the <code>profile=</code> parameter that the jdbc driver does not know about.
+     */
+    static String stripProfile(String connectionString) {
+        int q = connectionString.indexOf('?');
+        if (q < 0)
+            return connectionString;
+        StringBuilder sb = new StringBuilder(connectionString.substring(0, q));
+        char separator = '?';
+        for (String p : connectionString.substring(q + 1).split("&")) {
+            if (!p.isEmpty() && !p.startsWith(PROFILE_PARAMETER)) {
+                sb.append(separator).append(p);
+                separator = '&';
+            }
         }
+        return sb.toString();
+    }
+
+    /**
+     * Get the connections pool, e.g. to read its usage counters or to run own queries on the ledger database.
+     */
+    public final DbPool getPool() {
+        return pool;
     }
 
     /**
-     * Get the instance of the {@link Db} for a calling thread. Safe to call repeatedly (retuns the same instance
-     * per thread).
+     * Get the pool of read-only connections used for lookups. It is the same as {@link #getPool()} unless the profile
+     * is {@link Profile#WAL}.
      */
-    public final Db db() {
-        return dbtool.instance();
+    public final DbPool getReaderPool() {
+        return readers;
+    }
+
+    public Profile getProfile() {
+        return profile;
     }
 
 
     @Override
     public StateRecord getRecord(HashId itemId) {
-        StateRecord sr = protect(() -> {
-            StateRecord cached = getFromCache(itemId);
-            if (cached != null)
-                return cached;
-            try (ResultSet rs = dbtool.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", itemId.getDigest())) {
+        StateRecord sr;
+        WriteBehindQueue wb = writeBehind;
+        WriteBehindQueue.PendingWrite w = wb == null ? null : wb.getPending(itemId);
+        if (w != null)
+            sr = w.delete ? null : w.record;
+        else {
+            // the cache hit, which is the most common case, allocates nothing
+            sr = getFromCache(itemId);
+            if (sr == null)
+                sr = protect(() -> loadRecord(itemId));
+        }
+        if( sr != null && sr.isExpired() ) {
+            destroy(sr, true);
+            return null;
+        }
+        return sr;
+    }
+
+    /**
+     * Find the record that is not cached: check the filter, then the database and the archive.
+     */
+    private StateRecord loadRecord(HashId itemId) throws IOException {
+        CountingBloomFilter f = filter;
+        if (f != null && !f.mightContain(itemId))
+            return null;
+        StateRecord record = queryRecord(itemId);
+        if (record == null)
+            record = queryArchive(itemId);
+        if (record == null && f != null)
+            f.reportFalsePositive();
+        return record;
+    }
+
+    /**
+     * Read the record from the database and cache it.
+     *
+     * @return found record or null
+     */
+    private StateRecord queryRecord(HashId itemId) {
+        return withReader(db -> {
+            try (ResultSet rs = db.queryRow(FIND_SQL, hashKey(itemId), itemId.getDigest())) {
                 if (rs != null) {
                     StateRecord record = new StateRecord(this, rs);
                     putToCache(record);
@@ -76,53 +369,194 @@ public class SqlLedger implements Ledger {
             }
             return null;
         });
-        if( sr != null && sr.isExpired() ) {
-            sr.destroy();
+    }
+
+    /**
+     * Get the value of the hash_key column: the prefix of the id digest.
+     */
+    static byte[] hashKey(HashId id) {
+        byte[] digest = id.getDigest();
+        return Arrays.copyOf(digest, Math.min(HASH_KEY_SIZE, digest.length));
+    }
+
+    /**
+     * Find the record in the archive, if enabled, and cache it. Records restored or destroyed by the current thread's
+     * transaction are not there anymore, even if the transaction is not yet committed.
+     *
+     * @return archived record or null
+     */
+    private StateRecord queryArchive(HashId itemId) throws IOException {
+        LedgerSnapshot.Record r = findArchived(itemId);
+        if (r == null)
+            return null;
+        StateRecord record = new StateRecord(this, itemId, r.recordId, r.state, r.createdAt, r.expiresAt,
+                                             r.lockedByRecordId);
+        putToCache(record);
+        return record;
+    }
+
+    private LedgerSnapshot.Record findArchived(HashId itemId) throws IOException {
+        ArchiveTier a = archive;
+        if (a == null)
             return null;
+        List<HashId> unarchived = transactionUnarchived.get();
+        if (unarchived != null && unarchived.contains(itemId))
+            return null;
+        return a.get(itemId);
+    }
+
+    /**
+     * Hide the record in the archive as it is restored to the database or destroyed. In a transaction, it is done only
+     * on commit, otherwise the rolled back record would be lost.
+     *
+     * @return true if the record was in the archive
+     */
+    private boolean unarchive(HashId itemId) throws IOException {
+        if (findArchived(itemId) == null)
+            return false;
+        List<HashId> unarchived = transactionUnarchived.get();
+        if (unarchived != null)
+            unarchived.add(itemId);
+        else
+            archive.hide(itemId);
+        return true;
+    }
+
+    private void commitUnarchived(List<HashId> unarchived) {
+        ArchiveTier a = archive;
+        for (HashId id : unarchived) {
+            try {
+                a.hide(id);
+            } catch (IOException e) {
+                // the database copy is found first, so the archived one is only a stale duplicate
+                log.e("failed to hide archived record " + id + ": " + e);
+            }
+            digest.invalidate(id);
         }
-        return sr;
     }
 
-    private StateRecord getFromCache(HashId itemId) {
-        if( useCache ) {
-            synchronized (cachedRecords) {
-                WeakReference<StateRecord> ref = cachedRecords.get(itemId);
-                if (ref == null)
-                    return null;
-                StateRecord r = ref.get();
-                if (r == null) {
-                    cachedRecords.remove(itemId);
-                    return null;
+    /**
+     * Get many records with {@link #LOOKUP_CHUNK_SIZE} ids per query. Pending writes, cached records and the filter are
+     * checked first, so only unknown ids reach the database.
+     */
+    @Override
+    public Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> found = new HashMap<>();
+        List<HashId> toQuery = new ArrayList<>();
+        WriteBehindQueue wb = writeBehind;
+        CountingBloomFilter f = filter;
+        for (HashId id : new LinkedHashSet<>(ids)) {
+            if (wb != null) {
+                WriteBehindQueue.PendingWrite w = wb.getPending(id);
+                if (w != null) {
+                    if (!w.delete)
+                        found.put(id, w.record);
+                    continue;
                 }
-                return r;
             }
+            StateRecord cached = getFromCache(id);
+            if (cached != null)
+                found.put(id, cached);
+            else if (f == null || f.mightContain(id))
+                toQuery.add(id);
         }
-        else
+        withReader(db -> {
+            for (int from = 0; from < toQuery.size(); from += LOOKUP_CHUNK_SIZE) {
+                List<HashId> chunk = toQuery.subList(from, Math.min(toQuery.size(), from + LOOKUP_CHUNK_SIZE));
+                Object[] args = new Object[LOOKUP_CHUNK_SIZE];
+                for (int i = 0; i < LOOKUP_CHUNK_SIZE; i++)
+                    args[i] = hashKey(chunk.get(Math.min(i, chunk.size() - 1)));
+                Set<HashId> wanted = new HashSet<>(chunk);
+                int foundInChunk = 0;
+                try (ResultSet rs = db.statement(LOOKUP_CHUNK_SQL, args).executeQuery()) {
+                    while (rs.next()) {
+                        StateRecord record = new StateRecord(this, rs);
+                        // other records could have the same key
+                        if (!wanted.contains(record.getId()))
+                            continue;
+                        putToCache(record);
+                        found.put(record.getId(), record);
+                        foundInChunk++;
+                    }
+                }
+                if (archive != null) {
+                    for (HashId id : chunk) {
+                        if (!found.containsKey(id)) {
+                            StateRecord record = queryArchive(id);
+                            if (record != null) {
+                                found.put(id, record);
+                                foundInChunk++;
+                            }
+                        }
+                    }
+                }
+                if (f != null) {
+                    for (int i = foundInChunk; i < chunk.size(); i++)
+                        f.reportFalsePositive();
+                }
+            }
             return null;
+        });
+        Iterator<StateRecord> it = found.values().iterator();
+        while (it.hasNext()) {
+            StateRecord r = it.next();
+            if (r.isExpired()) {
+                r.destroy();
+                it.remove();
+            }
+        }
+        return found;
+    }
+
+    private StateRecord getFromCache(HashId itemId) {
+        return useCache ? cachedRecords.get(itemId) : null;
     }
 
     private void putToCache(StateRecord r) {
-        if( useCache ) {
-            synchronized (cachedRecords) {
-                cachedRecords.put(r.getId(), new WeakReference<StateRecord>(r));
-            }
+        if( useCache )
+            cachedRecords.put(r);
+    }
+
+    private void addToFilter(HashId id) {
+        CountingBloomFilter f = filter;
+        if (f != null)
+            f.add(id);
+    }
+
+    /**
+     * Remove destroyed id from the filter. In a transaction, it is done only on commit, otherwise the rolled back
+     * record would become invisible.
+     */
+    private void removeFromFilter(HashId id) {
+        CountingBloomFilter f = filter;
+        if (f != null) {
+            List<HashId> removals = transactionRemovals.get();
+            if (removals != null)
+                removals.add(id);
+            else
+                f.remove(id);
         }
     }
 
+    private void commitRemovals(List<HashId> removals) {
+        CountingBloomFilter f = filter;
+        if (f != null)
+            removals.forEach(f::remove);
+    }
+
 
     @Override
     public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
-        synchronized (creationLock) {
-            StateRecord r = new StateRecord(this);
-            r.setState(ItemState.LOCKED_FOR_CREATION);
-            r.setLockedByRecordId(creatorRecordId);
-            r.setId(newItemHashId);
-            try {
-                r.save();
-                return r;
-            } catch (Ledger.Failure e) {
-                return null;
-            }
+        // the insert fails if the hash is already there, so no lock is needed
+        StateRecord r = new StateRecord(this);
+        r.setState(ItemState.LOCKED_FOR_CREATION);
+        r.setLockedByRecordId(creatorRecordId);
+        r.setId(newItemHashId);
+        try {
+            r.save();
+            return r;
+        } catch (Ledger.Failure e) {
+            return null;
         }
     }
 
@@ -131,15 +565,24 @@ public class SqlLedger implements Ledger {
         // This simple version requires that database is used exclusively by one localnode - the normal way. As nodes
         // are multithreaded, there is absolutely no use to share database between nodes.
         return protect(() -> {
-            synchronized (creationLock) {
-                StateRecord r = getRecord(itemId);
-                if (r == null) {
-                    r = new StateRecord(this);
-                    r.setId(itemId);
-                    r.setState(ItemState.PENDING);
-                    r.save();
-                }
+            StateRecord r = getRecord(itemId);
+            if (r != null)
+                return r;
+            r = new StateRecord(this);
+            r.setId(itemId);
+            r.setState(ItemState.PENDING);
+            try {
+                r.save();
                 return r;
+            } catch (Ledger.Failure e) {
+                // someone has created it after we've checked, then we use it. We go to the database as it could be
+                // not yet in the filter
+                StateRecord existing = getFromCache(itemId);
+                if (existing == null)
+                    existing = queryRecord(itemId);
+                if (existing == null)
+                    throw e;
+                return existing;
             }
         });
     }
@@ -152,33 +595,205 @@ public class SqlLedger implements Ledger {
         }
     }
 
+    /**
+     * Perform the task with the connection checked out from the pool, see {@link #protect(Callable)}.
+     */
+    private <T> T withConnection(DbPool.Task<T> task) {
+        return protect(() -> pool.execute(task));
+    }
+
+    /**
+     * Perform the read-only task with the reader connection. The thread that holds the writer connection, e.g. in the
+     * transaction, keeps using it to see own uncommitted changes.
+     */
+    private <T> T withReader(DbPool.Task<T> task) {
+        DbPool p = readers == pool || pool.isHeldByCurrentThread() ? pool : readers;
+        return protect(() -> p.execute(task));
+    }
+
+    private Object creationLockFor(HashId id) {
+        int h = id.hashCode();
+        return creationLocks[(h ^ (h >>> 16)) & (CREATION_LOCK_STRIPES - 1)];
+    }
+
     @Override
     public void close() {
         System.out.println("CLOSE!");
-        db().close();
+        // lost write-behind changes are reported when everything is closed
+        Ledger.Failure failure = null;
+        try {
+            disableWriteBehind();
+        } catch (Ledger.Failure e) {
+            failure = e;
+        }
+        if (!pool.isClosed()) {
+            try {
+                checkpointStats();
+            } catch (Ledger.Failure e) {
+                log.e("failed to save ledger stats: " + e.getMessage());
+            }
+        }
+        ArchiveTier a = archive;
+        if (a != null) {
+            archive = null;
+            try {
+                a.close();
+            } catch (IOException e) {
+                log.e("failed to close the archive: " + e);
+            }
+        }
+        if (readers != pool)
+            readers.close();
+        pool.close();
+        if (failure != null)
+            throw failure;
     }
 
     @Override
     public <T> T transaction(Callable<T> callable) {
+        if (writeBehind != null)
+            return transactionBehind(callable);
         return protect(() -> {
             synchronized (transactionLock) {
+                // write-behind could be enabled while we were waiting
+                if (writeBehind != null)
+                    return transactionBehind(callable);
                 // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
                 // rethrow unchecked exceotions and return null on rollback.
-                return dbtool.transaction(() -> callable.call());
+                List<StateRecord> saved = new ArrayList<>();
+                List<HashId> removals = new ArrayList<>();
+                List<HashId> unarchived = new ArrayList<>();
+                LedgerStats.Delta delta = new LedgerStats.Delta();
+                transactionRecords.set(saved);
+                transactionRemovals.set(removals);
+                transactionUnarchived.set(unarchived);
+                transactionStats.set(delta);
+                boolean[] finished = new boolean[]{false};
+                boolean committed = false;
+                Db db = pool.checkout();
+                try {
+                    T result = db.transaction(() -> {
+                        T r = callable.call();
+                        finished[0] = true;
+                        return r;
+                    });
+                    // rolled back transaction returns normally too, so we check the callable has finished
+                    committed = finished[0];
+                    return result;
+                } finally {
+                    transactionRecords.remove();
+                    transactionRemovals.remove();
+                    transactionUnarchived.remove();
+                    transactionStats.remove();
+                    // cached instances now could hold the rolled back state
+                    if (!committed)
+                        saved.forEach(r -> cachedRecords.remove(r.getId()));
+                    else {
+                        commitRemovals(removals);
+                        commitUnarchived(unarchived);
+                        stats.apply(delta);
+                    }
+                    // the digest could be rescanned before the changes were committed or rolled back
+                    saved.forEach(r -> digest.invalidate(r.getId()));
+                    pool.checkin(db);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write-behind version of the transaction: changes are collected and queued as a group that will be written in
+     * one database transaction, or dropped on rollback.
+     */
+    private <T> T transactionBehind(Callable<T> callable) {
+        return protect(() -> {
+            synchronized (transactionLock) {
+                WriteBehindQueue wb = writeBehind;
+                List<StateRecord> saved = new ArrayList<>();
+                List<WriteBehindQueue.PendingWrite> writes = new ArrayList<>();
+                List<HashId> removals = new ArrayList<>();
+                LedgerStats.Delta delta = new LedgerStats.Delta();
+                transactionRecords.set(saved);
+                transactionWrites.set(writes);
+                transactionRemovals.set(removals);
+                transactionStats.set(delta);
+                boolean committed = false;
+                try {
+                    T result = callable.call();
+                    wb.enqueue(writes);
+                    committed = true;
+                    commitRemovals(removals);
+                    stats.apply(delta);
+                    return result;
+                } catch (Db.RollbackException e) {
+                    return null;
+                } finally {
+                    transactionWrites.remove();
+                    transactionRecords.remove();
+                    transactionRemovals.remove();
+                    transactionStats.remove();
+                    if (!committed) {
+                        wb.unpublish(writes);
+                        saved.forEach(r -> cachedRecords.remove(r.getId()));
+                    }
+                    saved.forEach(r -> digest.invalidate(r.getId()));
+                }
             }
         });
     }
 
+    private void queueWrite(WriteBehindQueue.PendingWrite w) {
+        List<WriteBehindQueue.PendingWrite> writes = transactionWrites.get();
+        if (writes != null) {
+            writes.add(w);
+            writeBehind.publish(w);
+        } else
+            writeBehind.enqueue(w);
+    }
+
     @Override
     public void destroy(StateRecord record) {
+        destroy(record, false);
+    }
+
+    /**
+     * @param expired true if the record is destroyed as expired, to count it so in {@link LedgerStats}
+     */
+    private void destroy(StateRecord record, boolean expired) {
         long recordId = record.getRecordId();
         if (recordId == 0) {
             throw new IllegalStateException("can't destroy record without recordId");
         }
-        protect(() -> {
-            dbtool.update("DELETE FROM ledger WHERE id = ?", recordId);
-            synchronized (cachedRecords) {
+        List<StateRecord> saved = transactionRecords.get();
+        if (saved != null)
+            saved.add(record);
+        if (writeBehind != null) {
+            synchronized (creationLockFor(record.getId())) {
+                WriteBehindQueue.PendingWrite prev = writeBehind.getPending(record.getId());
+                ItemState state = prev == null ? storedState(recordId) : prev.delete ? null : ItemState.values()[prev.state];
+                queueWrite(new WriteBehindQueue.PendingWrite(record, false, true));
                 cachedRecords.remove(record.getId());
+                // the same record could be destroyed twice, e.g. on expiration, but must be removed from the filter
+                // and counted once
+                if (prev == null || !prev.delete)
+                    removeFromFilter(record.getId());
+                countRemoval(state, expired);
+                digest.invalidate(record.getId());
+            }
+            return;
+        }
+        withConnection(db -> {
+            ItemState state = storedState(db, recordId);
+            int deleted = db.statement("DELETE FROM ledger WHERE id = ?", recordId).executeUpdate();
+            cachedRecords.remove(record.getId());
+            if (deleted == 0) {
+                LedgerSnapshot.Record archived = findArchived(record.getId());
+                state = archived == null ? null : archived.state;
+            }
+            if (deleted > 0 || unarchive(record.getId())) {
+                removeFromFilter(record.getId());
+                countRemoval(state, expired);
+                digest.invalidate(record.getId());
             }
             return null;
         });
@@ -192,14 +807,26 @@ public class SqlLedger implements Ledger {
         } else if (stateRecord.getLedger() != this)
             throw new IllegalStateException("can't save with  adifferent ledger (make a copy!)");
 
+        List<StateRecord> saved = transactionRecords.get();
+        if (saved != null)
+            saved.add(stateRecord);
+        if (writeBehind != null) {
+            saveBehind(stateRecord);
+            return;
+        }
+        Db db = null;
         try {
+            db = pool.checkout();
             if (stateRecord.getRecordId() == 0) {
-                statement = dbtool.statement("insert into ledger(hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?);");
-                statement.setBytes(1, stateRecord.getId().getDigest());
-                statement.setInt(2, stateRecord.getState().ordinal());
-                statement.setLong(3, StateRecord.unixTime(stateRecord.getCreatedAt()));
-                statement.setLong(4, StateRecord.unixTime(stateRecord.getExpiresAt()));
-                statement.setLong(5, stateRecord.getLockedByRecordId());
+                byte[] key = hashKey(stateRecord.getId());
+                byte[] hash = stateRecord.getId().getDigest();
+                statement = db.statement(INSERT_SQL);
+                statement.setBytes(1, key);
+                statement.setBytes(2, hash);
+                statement.setInt(3, stateRecord.getState().ordinal());
+                statement.setLong(4, stateRecord.getCreatedAtUnixTime());
+                statement.setLong(5, stateRecord.getExpiresAtUnixTime());
+                statement.setLong(6, stateRecord.getLockedByRecordId());
                 statement.executeUpdate();
                 try (ResultSet keys = statement.getGeneratedKeys()) {
                     if (!keys.next())
@@ -207,38 +834,758 @@ public class SqlLedger implements Ledger {
                     long id = keys.getLong(1);
                     stateRecord.setRecordId(id);
                 }
+                // ids of rolled back inserts stay in the filter, which costs only a false positive. We add it before
+                // releasing the connection so the one who fails to insert the same id will then find it
+                addToFilter(stateRecord.getId());
                 putToCache(stateRecord);
+                countChange(null, stateRecord.getState());
             } else {
-                dbtool.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
-                              stateRecord.getState().ordinal(),
-                              StateRecord.unixTime(stateRecord.getExpiresAt()),
-                              stateRecord.getLockedByRecordId(),
-                              stateRecord.getRecordId()
-                );
-            }
-        } catch (SQLException se) {
+                ItemState state = storedState(db, stateRecord.getRecordId());
+                int updated = db.statement(UPDATE_SQL,
+                                           stateRecord.getState().ordinal(),
+                                           stateRecord.getExpiresAtUnixTime(),
+                                           stateRecord.getLockedByRecordId(),
+                                           stateRecord.getRecordId()
+                ).executeUpdate();
+                if (updated == 0)
+                    restoreArchived(db, stateRecord);
+                else
+                    countChange(state, stateRecord.getState());
+            }
+            digest.invalidate(stateRecord.getId());
+        } catch (SQLException | IOException se) {
 //            se.printStackTrace();
+            // e.g. the hash is already there: the driver leaves the failed statement unusable
+            if (db != null && stateRecord.getRecordId() == 0)
+                db.dropStatement(INSERT_SQL);
             throw new Ledger.Failure("StateRecord save failed:" + se);
+        } finally {
+            if (db != null)
+                pool.checkin(db);
         }
     }
 
 
+    /**
+     * The archived record is changed: put it back to the database with the same record id, as other records could
+     * reference it, and hide the archived copy. Ids are never reused, so if the id is somehow occupied, the insert
+     * fails rather than overwrites the other record.
+     */
+    private void restoreArchived(Db db, StateRecord stateRecord) throws SQLException, IOException {
+        LedgerSnapshot.Record archived = findArchived(stateRecord.getId());
+        if (archived == null)
+            return;
+        db.update(IMPORT_SQL, stateRecord.getRecordId(), hashKey(stateRecord.getId()),
+                  stateRecord.getId().getDigest(), stateRecord.getState().ordinal(), stateRecord.getCreatedAtUnixTime(),
+                  stateRecord.getExpiresAtUnixTime(), stateRecord.getLockedByRecordId());
+        unarchive(stateRecord.getId());
+        putToCache(stateRecord);
+        countChange(archived.state, stateRecord.getState());
+    }
+
+    private void saveBehind(StateRecord stateRecord) {
+        boolean insert = stateRecord.getRecordId() == 0;
+        if (insert) {
+            // same as the insert does in the direct mode: check and publish the change atomically
+            synchronized (creationLockFor(stateRecord.getId())) {
+                if (getRecord(stateRecord.getId()) != null)
+                    throw new Ledger.Failure("StateRecord save failed: hash is already in the ledger");
+                stateRecord.setRecordId(lastRecordId.incrementAndGet());
+                addToFilter(stateRecord.getId());
+                putToCache(stateRecord);
+                queueWrite(new WriteBehindQueue.PendingWrite(stateRecord, true, false));
+                countChange(null, stateRecord.getState());
+            }
+        } else {
+            // the lock keeps the previous state until the change is published
+            synchronized (creationLockFor(stateRecord.getId())) {
+                WriteBehindQueue.PendingWrite prev = writeBehind.getPending(stateRecord.getId());
+                ItemState state = prev == null ? storedState(stateRecord.getRecordId()) :
+                        prev.delete ? null : ItemState.values()[prev.state];
+                queueWrite(new WriteBehindQueue.PendingWrite(stateRecord, false, false));
+                if (state != null)
+                    countChange(state, stateRecord.getState());
+            }
+        }
+        digest.invalidate(stateRecord.getId());
+    }
+
     @Override
     public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
-        try (ResultSet rs = dbtool.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1",
+        WriteBehindQueue wb = writeBehind;
+        if (wb != null) {
+            WriteBehindQueue.PendingWrite w = wb.getPending(stateRecord.getId());
+            if (w != null) {
+                if (w.delete)
+                    throw new StateRecord.NotFoundException("record not found");
+                stateRecord.initFrom(w.recordId, ItemState.values()[w.state], w.createdAt, w.expiresAt, w.lockedBy);
+                return;
+            }
+        }
+        DbPool p = readers == pool || pool.isHeldByCurrentThread() ? pool : readers;
+        Db db = null;
+        try {
+            db = p.checkout();
+            try (ResultSet rs = db.queryRow(FIND_SQL, hashKey(stateRecord.getId()),
                                             stateRecord.getId().getDigest())) {
-            if (rs == null)
+                if (rs != null) {
+                    stateRecord.initFrom(rs);
+                    return;
+                }
+            }
+            LedgerSnapshot.Record r = findArchived(stateRecord.getId());
+            if (r == null)
                 throw new StateRecord.NotFoundException("record not found");
-            stateRecord.initFrom(rs);
-        } catch (SQLException e) {
+            stateRecord.initFrom(r.recordId, r.state, r.createdAt, r.expiresAt, r.lockedByRecordId);
+        } catch (SQLException | IOException e) {
             throw new RuntimeException("Failed to reload RecordSet", e);
+        } finally {
+            if (db != null)
+                p.checkin(db);
+        }
+    }
+
+    /**
+     * Enable write-behind mode: {@link #save(StateRecord)} and {@link #destroy(StateRecord)} only queue the changes,
+     * and the single writer thread flushes them in one database transaction when maxBatch records are collected or
+     * the oldest change waits maxDelayMillis. {@link #getRecord(HashId)} sees pending changes, and changes made in
+     * {@link #transaction(Callable)} are written atomically. Use {@link #sync()} to wait until the changes are
+     * durable. Calling it again reconfigures the queue.
+     *
+     * @param maxBatch       number of pending records that triggers the flush
+     * @param maxDelayMillis maximum time the change could wait in the queue
+     */
+    public synchronized void enableWriteBehind(int maxBatch, long maxDelayMillis) {
+        if (archive != null)
+            throw new IllegalStateException("write-behind can't be used with the archive");
+        disableWriteBehind();
+        withConnection(db -> {
+            Number maxId = db.queryOne(LAST_ID_SQL);
+            lastRecordId.set(maxId == null ? 0 : maxId.longValue());
+            return null;
+        });
+        WriteBehindQueue wb = new WriteBehindQueue(pool, maxBatch, maxDelayMillis);
+        synchronized (transactionLock) {
+            writeBehind = wb;
+        }
+    }
+
+    /**
+     * Flush all pending changes and return to the direct write mode. Does nothing if write-behind is not enabled.
+     */
+    public synchronized void disableWriteBehind() {
+        WriteBehindQueue wb = writeBehind;
+        if (wb != null) {
+            // no more new changes to the queue, then flush what is there
+            synchronized (transactionLock) {
+                writeBehind = null;
+            }
+            wb.close();
+        }
+    }
+
+    /**
+     * Durability barrier: in write-behind mode, block until all changes made before the call are committed to the
+     * database. Returns immediately otherwise. Must not be called from inside the {@link #transaction(Callable)}.
+     */
+    public void sync() {
+        WriteBehindQueue wb = writeBehind;
+        if (wb != null) {
+            try {
+                wb.sync();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Ledger.Failure("interrupted while waiting for write-behind queue");
+            }
+        }
+    }
+
+    /**
+     * Delete up to maxRows records that have expired, oldest first, in one database transaction. Rows are selected with
+     * the range scan over the expires_at index. Records with pending write-behind changes are left to the next time.
+     * The expiration listener, if set, is called for each deleted record.
+     *
+     * @param maxRows maximum number of records to delete
+     * @return number of deleted records
+     * @see ExpirationSweeper
+     */
+    public int sweepExpired(int maxRows) {
+        long now = StateRecord.currentUnixTime();
+        List<HashId> deleted = new ArrayList<>();
+        withConnection(db -> {
+            List<Long> ids = new ArrayList<>();
+            List<HashId> hashes = new ArrayList<>();
+            List<ItemState> states = new ArrayList<>();
+            try (ResultSet rs = db.statement(
+                    "SELECT id, hash, state FROM ledger WHERE expires_at > 0 AND expires_at <= ? ORDER BY expires_at " +
+                            "LIMIT ?",
+                    now, maxRows).executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                    hashes.add(HashId.withDigest(rs.getBytes(2)));
+                    states.add(ItemState.values()[rs.getInt(3)]);
+                }
+            }
+            List<ItemState> deletedStates = new ArrayList<>();
+            WriteBehindQueue wb = writeBehind;
+            db.transaction(() -> {
+                for (int i = 0; i < ids.size(); i++) {
+                    HashId id = hashes.get(i);
+                    if (wb != null && wb.getPending(id) != null)
+                        continue;
+                    if (db.statement("DELETE FROM ledger WHERE id = ? AND expires_at > 0 AND expires_at <= ?",
+                                         ids.get(i), now).executeUpdate() > 0) {
+                        deleted.add(id);
+                        deletedStates.add(states.get(i));
+                    }
+                }
+                return null;
+            });
+            // filter and stats are updated only when the deletion is committed
+            for (HashId id : deleted) {
+                cachedRecords.remove(id);
+                removeFromFilter(id);
+                digest.invalidate(id);
+            }
+            deletedStates.forEach(stats::expired);
+            return null;
+        });
+        ArchiveTier a = archive;
+        if (a != null) {
+            for (LedgerSnapshot.Record r : protect(() -> a.dropExpired(now))) {
+                cachedRecords.remove(r.id);
+                removeFromFilter(r.id);
+                digest.invalidate(r.id);
+                stats.expired(r.state);
+                deleted.add(r.id);
+            }
+        }
+        Consumer<HashId> listener = expirationListener;
+        if (listener != null)
+            deleted.forEach(listener);
+        return deleted.size();
+    }
+
+    /**
+     * Set the listener called with the id of each record deleted by {@link #sweepExpired(int)}, e.g. to drop it from
+     * the cache of the ledger that uses this one as its shard.
+     *
+     * @param listener to call or null
+     */
+    public void setExpirationListener(Consumer<HashId> listener) {
+        expirationListener = listener;
+    }
+
+    /**
+     * Resolve records left by elections that were interrupted by the crash, with {@link #RECOVERY_BATCH_SIZE} records
+     * per transaction, see {@link Ledger#recoverOrphans()}. Records are found with the range scan over the partial
+     * ix_ledger_unsettled index, so the time depends on the number of orphans, not on the ledger size.
+     */
+    @Override
+    public int recoverOrphans() {
+        return recoverOrphans(this::storedState);
+    }
+
+    /**
+     * Resolve orphans as {@link #recoverOrphans()} does, reading the states of locking records with the given function,
+     * e.g. from other shards.
+     *
+     * @param lockerState returns the state of the record by its record id, or null if there is no such record
+     */
+    int recoverOrphans(LongFunction<ItemState> lockerState) {
+        int total = 0;
+        long lastId = 0;
+        while (true) {
+            long fromId = lastId;
+            List<StateRecord> batch = withConnection(db -> {
+                List<StateRecord> records = new ArrayList<>();
+                try (ResultSet rs = db.statement(UNSETTLED_SQL, fromId, RECOVERY_BATCH_SIZE).executeQuery()) {
+                    while (rs.next()) {
+                        StateRecord r = new StateRecord(this, rs);
+                        StateRecord cached = getFromCache(r.getId());
+                        records.add(cached != null ? cached : r);
+                    }
+                }
+                return records;
+            });
+            if (batch.isEmpty())
+                return total;
+            total += transaction(() -> {
+                int resolved = 0;
+                for (StateRecord r : batch)
+                    if (resolveOrphan(r, lockerState))
+                        resolved++;
+                return resolved;
+            });
+            lastId = batch.get(batch.size() - 1).getRecordId();
+        }
+    }
+
+    private static boolean resolveOrphan(StateRecord record, LongFunction<ItemState> lockerState) {
+        switch (record.getState()) {
+            case PENDING:
+                record.destroy();
+                return true;
+            case PENDING_POSITIVE:
+            case PENDING_NEGATIVE:
+                // this node's vote could be already counted by others, so it must not change
+                return false;
+            default:
+                ItemState locker = lockerState.apply(record.getLockedByRecordId());
+                if (locker == ItemState.PENDING_POSITIVE || locker == ItemState.PENDING_NEGATIVE)
+                    return false;
+                record.unlock().save();
+                return true;
+        }
+    }
+
+    /**
+     * Enable the archive tier in the directory, creating it if need: then {@link #archiveRecords(int, int)} moves
+     * revoked and declined records there, and lookups that miss the database look there too. Records already in the
+     * archive become visible and the filter is rebuilt. The archive can't be used with write-behind mode.
+     *
+     * @param directory where to keep archive segments, only this ledger should use it
+     * @see ArchiveTier
+     */
+    public synchronized void enableArchive(String directory) {
+        if (writeBehind != null)
+            throw new IllegalStateException("archive can't be used in write-behind mode");
+        if (archive != null)
+            throw new IllegalStateException("archive is already enabled");
+        archive = protect(() -> new ArchiveTier(directory));
+        cachedRecords.clear();
+        rebuildFilter();
+    }
+
+    /**
+     * Get the archive tier, e.g. to read its size.
+     *
+     * @return archive or null if it is not enabled
+     */
+    public ArchiveTier getArchive() {
+        return archive;
+    }
+
+    /**
+     * Move up to maxRecords not expired revoked and declined records, oldest first, from the database to the new
+     * archive segment, if there are at least minRecords of them, so the hot table and its indexes keep only records
+     * that could still change. Records are selected with the range scan over the partial ix_ledger_terminal index and
+     * deleted in one transaction, and the segment is written to the disk before it is committed. If the process dies
+     * in between, records stay in both tiers, which is harmless as the database is checked first.
+     * <p>
+     * Archived records keep their record ids and are still returned by {@link #getRecord(HashId)}; if one is changed
+     * later, it is moved back to the database. Record ids are never reused, so the id of the archived record is free
+     * when it comes back, and locked_by_id references to it could not point to some other record.
+     *
+     * @param minRecords do nothing if there are fewer records to archive, to not produce small segments
+     * @param maxRecords maximum number of records to move at once
+     * @return number of archived records
+     * @throws IllegalStateException if the archive is not enabled
+     */
+    public int archiveRecords(int minRecords, int maxRecords) {
+        ArchiveTier a = archive;
+        if (a == null)
+            throw new IllegalStateException("archive is not enabled");
+        long now = StateRecord.currentUnixTime();
+        return withConnection(db -> {
+            List<LedgerSnapshot.Record> records = new ArrayList<>();
+            int[] segment = new int[]{0};
+            try {
+                db.transaction(() -> {
+                    try (ResultSet rs = db.statement(ARCHIVE_SQL, now, maxRecords).executeQuery()) {
+                        while (rs.next())
+                            records.add(new LedgerSnapshot.Record(rs.getLong(1), HashId.withDigest(rs.getBytes(2)),
+                                                                  ItemState.values()[rs.getInt(3)], rs.getLong(4),
+                                                                  rs.getLong(5), rs.getLong(6)));
+                    }
+                    if (records.size() < Math.max(1, minRecords)) {
+                        records.clear();
+                        return null;
+                    }
+                    PreparedStatement statement = db.statement("DELETE FROM ledger WHERE id = ?");
+                    for (LedgerSnapshot.Record r : records) {
+                        statement.setLong(1, r.recordId);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    segment[0] = a.write(records);
+                    return null;
+                });
+            } catch (Exception e) {
+                if (segment[0] != 0)
+                    a.deleteSegment(segment[0]);
+                throw e;
+            }
+            // records are the same, so the filter, the digest and cached instances are still valid
+            if (!records.isEmpty())
+                log.d("archived " + records.size() + " records to segment " + segment[0]);
+            return records.size();
+        });
+    }
+
+    /**
+     * Export all not expired records as the {@link LedgerSnapshot} with default chunk size.
+     *
+     * @see #exportSnapshot(OutputStream, int, LedgerSnapshot.Progress)
+     */
+    public long exportSnapshot(OutputStream out, LedgerSnapshot.Progress progress) {
+        return exportSnapshot(out, LedgerSnapshot.DEFAULT_CHUNK_SIZE, progress);
+    }
+
+    /**
+     * Export all not expired records as the {@link LedgerSnapshot}, to bootstrap another node with {@link
+     * #importSnapshot(InputStream, LedgerSnapshot.Progress)}. Records are read by pages of chunkSize in the order of
+     * record ids, and the connection is released between pages, so the ledger keeps working while the snapshot is
+     * written. Archived records follow the database ones. Hence the snapshot is not a point-in-time copy: records changed during the export could be seen in
+     * either state, and it is up to the importing node to catch up with the network as it does after the restart.
+     * Pending write-behind changes made before the call are flushed first.
+     *
+     * @param out       where to write the snapshot, it is not closed
+     * @param chunkSize number of records per snapshot chunk and per database query
+     * @param progress  called after each chunk, could be null
+     * @return number of exported records
+     */
+    public long exportSnapshot(OutputStream out, int chunkSize, LedgerSnapshot.Progress progress) {
+        sync();
+        long now = StateRecord.currentUnixTime();
+        Number rows = withReader(db -> db.queryOne("SELECT count(*) FROM ledger"));
+        ArchiveTier archived = archive;
+        long estimatedTotal = (rows == null ? 0 : rows.longValue()) + (archived == null ? 0 : archived.size());
+        return protect(() -> {
+            LedgerSnapshot.Writer writer = new LedgerSnapshot.Writer(out, estimatedTotal, chunkSize);
+            long lastId = 0;
+            while (true) {
+                long fromId = lastId;
+                List<LedgerSnapshot.Record> page = withReader(db -> {
+                    List<LedgerSnapshot.Record> records = new ArrayList<>(chunkSize);
+                    try (ResultSet rs = db.statement(EXPORT_SQL, fromId, now, chunkSize).executeQuery()) {
+                        while (rs.next())
+                            records.add(new LedgerSnapshot.Record(rs.getLong(1), HashId.withDigest(rs.getBytes(2)),
+                                                                  ItemState.values()[rs.getInt(3)], rs.getLong(4),
+                                                                  rs.getLong(5), rs.getLong(6)));
+                    }
+                    return records;
+                });
+                // written with no connection held, as the stream could be slow
+                for (LedgerSnapshot.Record r : page)
+                    writer.write(r);
+                if (progress != null && !page.isEmpty())
+                    progress.onProgress(writer.getTotal(), estimatedTotal);
+                if (page.size() < chunkSize)
+                    break;
+                lastId = page.get(page.size() - 1).recordId;
+            }
+            if (archived != null) {
+                long[] written = new long[]{writer.getTotal()};
+                archived.forEach(r -> {
+                    if (r.expiresAt == 0 || r.expiresAt > now) {
+                        try {
+                            writer.write(r);
+                        } catch (IOException e) {
+                            throw new Ledger.Failure("failed to write snapshot: " + e.getMessage(), e);
+                        }
+                        if (progress != null && writer.getTotal() - written[0] >= chunkSize) {
+                            written[0] = writer.getTotal();
+                            progress.onProgress(written[0], estimatedTotal);
+                        }
+                    }
+                });
+            }
+            return writer.finish();
+        });
+    }
+
+    /**
+     * Import the {@link LedgerSnapshot} into this ledger, which must be empty and not in the write-behind mode. Record
+     * ids are preserved, as records reference each other with them. Indexes are dropped while records are inserted by
+     * chunks, one transaction per chunk, and built once at the end, then the filter is rebuilt. The connection is held
+     * all the time, so the ledger should not be used until it is done.
+     * <p>
+     * If the snapshot is corrupted or the import fails otherwise, all imported records are deleted and the ledger
+     * remains empty.
+     *
+     * @param in       snapshot to read
+     * @param progress called after each chunk, could be null
+     * @return number of imported records
+     * @throws IllegalStateException if the ledger is not empty or is in write-behind mode
+     */
+    public long importSnapshot(InputStream in, LedgerSnapshot.Progress progress) {
+        if (writeBehind != null)
+            throw new IllegalStateException("can't import snapshot in write-behind mode");
+        Number rows = withConnection(db -> db.queryOne("SELECT count(*) FROM ledger"));
+        if (rows != null && rows.longValue() > 0 || archive != null && archive.size() > 0)
+            throw new IllegalStateException("snapshot could be imported only into the empty ledger");
+        long total = withConnection(db -> {
+            LedgerSnapshot.Reader reader = new LedgerSnapshot.Reader(in);
+            boolean done = false;
+            try {
+                dropIndexes(db);
+                List<LedgerSnapshot.Record> chunk;
+                while ((chunk = reader.readChunk()) != null) {
+                    List<LedgerSnapshot.Record> records = chunk;
+                    db.transaction(() -> {
+                        PreparedStatement statement = db.statement(IMPORT_SQL);
+                        for (LedgerSnapshot.Record r : records) {
+                            statement.setLong(1, r.recordId);
+                            statement.setBytes(2, hashKey(r.id));
+                            statement.setBytes(3, r.id.getDigest());
+                            statement.setInt(4, r.state.ordinal());
+                            statement.setLong(5, r.createdAt);
+                            statement.setLong(6, r.expiresAt);
+                            statement.setLong(7, r.lockedByRecordId);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                        return null;
+                    });
+                    if (progress != null)
+                        progress.onProgress(reader.getTotal(), reader.getEstimatedTotal());
+                }
+                createIndexes(db);
+                done = true;
+                return reader.getTotal();
+            } finally {
+                if (!done) {
+                    db.dropStatement(IMPORT_SQL);
+                    db.update("DELETE FROM ledger");
+                    createIndexes(db);
+                }
+            }
+        });
+        cachedRecords.clear();
+        rebuildFilter();
+        return total;
+    }
+
+    private static void createIndexes(Db db) throws SQLException {
+        for (String sql : LEDGER_INDEXES)
+            db.update(sql);
+    }
+
+    private static void dropIndexes(Db db) throws SQLException {
+        for (String sql : LEDGER_INDEXES) {
+            // the name is the last word before " on "
+            String head = sql.substring(0, sql.indexOf(" on "));
+            db.update("DROP INDEX IF EXISTS " + head.substring(head.lastIndexOf(' ') + 1));
         }
     }
 
+    /**
+     * Build the new filter from all ids in the database and start using it, sized for twice the current number of
+     * records but not less than {@link #DEFAULT_FILTER_SIZE}. It is done on start, and could be done later if {@link
+     * CountingBloomFilter#getExpectedFalsePositiveRate()} grows too high. The same scan recomputes the {@link
+     * LedgerDigest} and record counts of the {@link LedgerStats}. Archived records are added too. The connection is held during the scan, so the ledger is blocked
+     * for a while.
+     * <p>
+     * The filter assumes the database is used exclusively by this ledger instance, which is the normal way: records
+     * inserted by others are not visible until the next rebuild.
+     */
+    public void rebuildFilter() {
+        sync();
+        withConnection(db -> {
+            Number rows = db.queryOne("SELECT count(*) FROM ledger");
+            long expected = Math.max(DEFAULT_FILTER_SIZE, rows == null ? 0 : rows.longValue() * 2);
+            CountingBloomFilter f = new CountingBloomFilter(expected, FILTER_FALSE_POSITIVE_RATE);
+            long[] buckets = new long[LedgerDigest.BUCKETS];
+            ItemState[] states = ItemState.values();
+            long[] counts = new long[states.length];
+            try (ResultSet rs = db.statement("SELECT hash, state FROM ledger").executeQuery()) {
+                while (rs.next()) {
+                    HashId id = HashId.withDigest(rs.getBytes(1));
+                    int state = rs.getInt(2);
+                    f.add(id);
+                    buckets[LedgerDigest.bucketOf(id)] ^= LedgerDigest.hashOf(id, states[state]);
+                    counts[state]++;
+                }
+            }
+            ArchiveTier a = archive;
+            if (a != null) {
+                a.forEach(r -> {
+                    // could be in the database too if the process died while archiving it
+                    if (f.mightContain(r.id) && isInDatabase(db, r.id))
+                        return;
+                    f.add(r.id);
+                    buckets[LedgerDigest.bucketOf(r.id)] ^= LedgerDigest.hashOf(r.id, r.state);
+                    counts[r.state.ordinal()]++;
+                });
+            }
+            filter = f;
+            digest.reset(buckets);
+            stats.reset(counts);
+            return null;
+        });
+    }
+
+    private static boolean isInDatabase(Db db, HashId id) {
+        try (ResultSet rs = db.queryRow("SELECT id FROM ledger WHERE hash_key = ? AND hash = ? limit 1", hashKey(id),
+                                        id.getDigest())) {
+            return rs != null;
+        } catch (SQLException e) {
+            throw new Ledger.Failure("failed to read ledger: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public LedgerDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * Get live statistics. Counts by state are recomputed by {@link #rebuildFilter()} and then updated with each
+     * change, totals of created and expired records are restored from the last {@link #checkpointStats()}.
+     */
+    @Override
+    public LedgerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Save totals of created and expired records to the vars table, so they survive the restart. It is done on {@link
+     * #close()} and periodically by the {@link ExpirationSweeper}.
+     */
+    public void checkpointStats() {
+        withConnection(db -> {
+            db.transaction(() -> {
+                setLongVar(db, STATS_CREATED_VAR, stats.getCreated());
+                setLongVar(db, STATS_EXPIRED_VAR, stats.getExpired());
+                return null;
+            });
+            return null;
+        });
+    }
+
+    private static long getLongVar(Db db, String name) throws SQLException {
+        Number value = db.queryOne("SELECT ivalue FROM vars WHERE name=?", name);
+        return value == null ? 0 : value.longValue();
+    }
+
+    private static void setLongVar(Db db, String name, long value) throws SQLException {
+        db.update("UPDATE vars SET ivalue=? WHERE name=?", value, name);
+        db.update("INSERT OR IGNORE INTO vars (name, ivalue) VALUES (?, ?)", name, value);
+    }
+
+    private void countChange(ItemState from, ItemState to) {
+        LedgerStats.Delta delta = transactionStats.get();
+        if (delta != null)
+            delta.change(from, to);
+        else
+            stats.change(from, to);
+    }
+
+    private void countRemoval(ItemState state, boolean expired) {
+        if (state == null)
+            return;
+        if (!expired)
+            countChange(state, null);
+        else {
+            LedgerStats.Delta delta = transactionStats.get();
+            if (delta != null)
+                delta.expired(state);
+            else
+                stats.expired(state);
+        }
+    }
+
+    /**
+     * Read the state of the record in the database, as the saved instance already has the new one.
+     *
+     * @return state or null if there is no such record
+     */
+    private static ItemState storedState(Db db, long recordId) throws SQLException {
+        Number state = db.queryOne("SELECT state FROM ledger WHERE id = ?", recordId);
+        return state == null ? null : ItemState.values()[state.intValue()];
+    }
+
+    /**
+     * @return state of the record in the database, or null if there is no record with such record id
+     */
+    ItemState storedState(long recordId) {
+        return withReader(db -> storedState(db, recordId));
+    }
+
+    /**
+     * Read the records of the {@link LedgerDigest} bucket by the range scan over the hash keys index, as the bucket is
+     * the prefix of the key.
+     */
+    private void scanBucket(int bucket, boolean expired, LedgerDigest.Consumer consumer) {
+        // pending changes were reported to the digest when queued, so they must be visible here
+        sync();
+        byte[] from = LedgerDigest.bucketStart(bucket);
+        byte[] to = LedgerDigest.bucketStart(bucket + 1);
+        StringBuilder sql = new StringBuilder("SELECT hash, state FROM ledger WHERE hash_key >= ?");
+        List<Object> args = new ArrayList<>();
+        args.add(from);
+        if (to != null) {
+            sql.append(" AND hash_key < ?");
+            args.add(to);
+        }
+        if (!expired) {
+            sql.append(" AND (expires_at IS NULL OR expires_at = 0 OR expires_at > ?)");
+            args.add(StateRecord.currentUnixTime());
+        }
+        ItemState[] states = ItemState.values();
+        ArchiveTier a = archive;
+        Set<HashId> found = a == null ? null : new HashSet<>();
+        withReader(db -> {
+            try (ResultSet rs = db.statement(sql.toString(), args.toArray()).executeQuery()) {
+                while (rs.next()) {
+                    HashId id = HashId.withDigest(rs.getBytes(1));
+                    if (found != null)
+                        found.add(id);
+                    consumer.accept(id, states[rs.getInt(2)]);
+                }
+            }
+            return null;
+        });
+        if (a != null) {
+            long now = StateRecord.currentUnixTime();
+            // the database copy wins, see archiveRecords()
+            protect(() -> {
+                a.scan(from, to, r -> {
+                    if (!found.contains(r.id) && (expired || r.expiresAt == 0 || r.expiresAt > now))
+                        consumer.accept(r.id, r.state);
+                });
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Enable or disable the filter that skips database lookups of missing ids. Enabling rebuilds it, see {@link
+     * #rebuildFilter()}. Disable it if the database is shared with other ledger instances.
+     *
+     * @param enable
+     */
+    public void enableFilter(boolean enable) {
+        if (enable)
+            rebuildFilter();
+        else
+            filter = null;
+    }
+
+    /**
+     * Get the filter, e.g. to read its false positive rate.
+     *
+     * @return filter instance or null if it is disabled
+     */
+    public CountingBloomFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Get the records cache, e.g. to read its hit/miss/eviction counters.
+     *
+     * @return cache instance used by this ledger
+     */
+    public RecordCache getRecordCache() {
+        return cachedRecords;
+    }
+
     /**
      * Enable or disable records caching. USe it in tests only, in production it should always be enabled
      * @param enable
      */
+    @Override
     public void enableCache(boolean enable) {
         if( enable ) {
             this.useCache = true;
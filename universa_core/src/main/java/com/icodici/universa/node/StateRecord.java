@@ -3,7 +3,6 @@ package com.icodici.universa.node;
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
 import com.icodici.universa.HashIdentifiable;
-import net.sergeych.tools.Do;
 import net.sergeych.utils.LogPrinter;
 
 import java.io.IOException;
@@ -22,12 +21,24 @@ import java.time.ZoneOffset;
  * <p>
  * See {@link ItemState} for states and state graph description.
  * <p>
+ * Times are kept as returned by {@link #unixTime(LocalDateTime)}, so reading and checking expiration allocate nothing;
+ * {@link LocalDateTime} getters and setters convert them.
+ * <p>
  * Created by sergeych on 16/07/2017.
  */
 public class StateRecord implements HashIdentifiable {
 
     private static LogPrinter log = new LogPrinter("StateRecord");
 
+    /**
+     * Columns of the ledger table in the order {@link #initFrom(ResultSet)} reads them.
+     */
+    public static final String COLUMNS = "id, hash, state, created_at, expires_at, locked_by_id";
+
+    private static final ItemState[] STATES = ItemState.values();
+    // the wall clock second and the current time in it, see currentUnixTime()
+    private static volatile long[] clock = new long[]{Long.MIN_VALUE, 0};
+
     private Ledger ledger;
     private boolean dirty;
     private long recordId;
@@ -38,25 +49,52 @@ public class StateRecord implements HashIdentifiable {
         initFrom(rs);
     }
 
+    /**
+     * Initialize from the current row, which must start with {@link #COLUMNS}: columns are read by position, as the
+     * lookup by name costs more than the rest of the row.
+     */
     public void initFrom(ResultSet rs) throws SQLException {
         // the processing mught be already fininshed by now:
         if( rs == null || rs.isClosed() )
             throw new SQLException("resultset or connection is closed");
-        recordId = rs.getLong("id");
-        try {
-            id = HashId.withDigest(Do.read(rs.getBinaryStream("hash")));
-        } catch (IOException e) {
-            throw new SQLException("failed to read hash from the recordset");
-        }
-        state = ItemState.values()[rs.getInt("state")];
-        createdAt = getTime(rs.getLong("created_at"));
-        expiresAt = getTime(rs.getLong("expires_at"));
-        lockedByRecordId = rs.getInt("locked_by_id");
+        recordId = rs.getLong(1);
+        id = HashId.withDigest(rs.getBytes(2));
+        state = STATES[rs.getInt(3)];
+        createdAt = rs.getLong(4);
+        expiresAt = rs.getLong(5);
+        lockedByRecordId = rs.getLong(6);
     }
 
     public StateRecord(Ledger ledger) {
         this.ledger = ledger;
-        createdAt = LocalDateTime.now();
+    }
+
+    /**
+     * Create clean (not dirty) instance from the stored values. For the {@link Ledger} implementations that do not use
+     * the {@link ResultSet}.
+     */
+    StateRecord(Ledger ledger, HashId id, long recordId, ItemState state, long createdAt, long expiresAt,
+                long lockedByRecordId) {
+        this.ledger = ledger;
+        this.id = id;
+        initFrom(recordId, state, createdAt, expiresAt, lockedByRecordId);
+    }
+
+    /**
+     * Initialize from stored values. For the {@link Ledger} implementations that do not use the {@link ResultSet}.
+     *
+     * @param recordId         record id in the ledger
+     * @param state            stored state
+     * @param createdAt        creation time as returned by {@link #unixTime(LocalDateTime)}
+     * @param expiresAt        expiration time as returned by {@link #unixTime(LocalDateTime)}, 0 if not set
+     * @param lockedByRecordId id of the locking record or 0
+     */
+    void initFrom(long recordId, ItemState state, long createdAt, long expiresAt, long lockedByRecordId) {
+        this.recordId = recordId;
+        this.state = state;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+        this.lockedByRecordId = lockedByRecordId;
     }
 
     static public LocalDateTime getTime(long unixTime) {
@@ -69,6 +107,20 @@ public class StateRecord implements HashIdentifiable {
         return time == null ? 0 : time.toEpochSecond(ZoneOffset.UTC);
     }
 
+    /**
+     * Get the current time as {@link #unixTime(LocalDateTime)} of {@link LocalDateTime#now()} does, which is computed
+     * once per second and shared, so it costs the same as {@link System#currentTimeMillis()}.
+     */
+    static public long currentUnixTime() {
+        long second = System.currentTimeMillis() / 1000;
+        long[] c = clock;
+        if (c[0] != second) {
+            c = new long[]{second, unixTime(LocalDateTime.now())};
+            clock = c;
+        }
+        return c[1];
+    }
+
     public boolean isDirty() {
         return dirty;
     }
@@ -79,8 +131,9 @@ public class StateRecord implements HashIdentifiable {
 
     private ItemState state = ItemState.UNDEFINED;
     private HashId id;
-    private LocalDateTime expiresAt = null;
-    private LocalDateTime createdAt = LocalDateTime.now();
+    // 0 if not set
+    private long expiresAt;
+    private long createdAt = currentUnixTime();
 
     public ItemState getState() {
         return state;
@@ -106,11 +159,25 @@ public class StateRecord implements HashIdentifiable {
     }
 
     public LocalDateTime getExpiresAt() {
-        return this.expiresAt;
+        return getTime(expiresAt);
     }
 
     public LocalDateTime getCreatedAt() {
-        return this.createdAt;
+        return getTime(createdAt);
+    }
+
+    /**
+     * @return expiration time as returned by {@link #unixTime(LocalDateTime)}, 0 if not set
+     */
+    public long getExpiresAtUnixTime() {
+        return expiresAt;
+    }
+
+    /**
+     * @return creation time as returned by {@link #unixTime(LocalDateTime)}
+     */
+    public long getCreatedAtUnixTime() {
+        return createdAt;
     }
 
     public void destroy() {
@@ -161,7 +228,7 @@ public class StateRecord implements HashIdentifiable {
         return ledger;
     }
 
-    public void setLedger(SqlLedger ledger) {
+    public void setLedger(Ledger ledger) {
         this.ledger = ledger;
     }
 
@@ -318,8 +385,23 @@ public class StateRecord implements HashIdentifiable {
             throw new IllegalStateException("the record must be created");
     }
 
+    /**
+     * Set expiration time, rounded up to the whole second, so the record never expires before it.
+     *
+     * @param expiresAt time or null to not expire
+     */
     public StateRecord setExpiresAt(LocalDateTime expiresAt) {
-        if( this.expiresAt == null || !this.expiresAt.equals(expiresAt) ) {
+        long time = unixTime(expiresAt);
+        return setExpiresAtUnixTime(expiresAt != null && expiresAt.getNano() > 0 ? time + 1 : time);
+    }
+
+    /**
+     * Set expiration time.
+     *
+     * @param expiresAt as returned by {@link #unixTime(LocalDateTime)}, 0 to not expire
+     */
+    public StateRecord setExpiresAtUnixTime(long expiresAt) {
+        if (this.expiresAt != expiresAt) {
             this.expiresAt = expiresAt;
             dirty = true;
         }
@@ -327,7 +409,7 @@ public class StateRecord implements HashIdentifiable {
     }
 
     public boolean isExpired() {
-        return expiresAt != null && expiresAt.isBefore(LocalDateTime.now());
+        return expiresAt != 0 && expiresAt <= currentUnixTime();
     }
 
     static public class NotFoundException extends IOException {
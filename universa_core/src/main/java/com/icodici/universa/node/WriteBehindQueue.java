@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.db.Db;
+import com.icodici.db.DbPool;
+import com.icodici.universa.HashId;
+import net.sergeych.utils.LogPrinter;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write-behind queue for the {@link SqlLedger}: collects record changes and lets the single writer thread to flush
+ * them in one database transaction, either when the batch is full or when the oldest queued change waits too long.
+ * <p>
+ * Changes of the same record are coalesced, so the record updated several times between flushes costs only one
+ * statement, and the record that was created and destroyed before flush never touches the database.
+ * <p>
+ * Pending changes are indexed by {@link HashId} so the ledger could serve reads from them, see {@link
+ * #getPending(HashId)}. Use {@link #sync()} as a durability barrier.
+ * <p>
+ * Changes that fail to be written stay queued and are retried after the flush delay. Changes queued together are
+ * written in one transaction, so if the batch fails they are retried by these groups. A group that still fails after
+ * {@link #MAX_ATTEMPTS} is dropped, and the loss is reported by the next {@link #sync()} or {@link #close()} with the
+ * {@link Ledger.Failure}.
+ */
+class WriteBehindQueue {
+
+    private static LogPrinter log = new LogPrinter("WBQ");
+
+    /**
+     * Number of times the change is tried to be written before it is dropped.
+     */
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final String DELETE_SQL = "DELETE FROM ledger WHERE id = ?";
+    private static final String INSERT_SQL =
+            "insert into ledger(id,hash_key,hash,state,created_at,expires_at,locked_by_id) values(?,?,?,?,?,?,?);";
+    private static final String UPDATE_SQL = "update ledger set state=?, expires_at=?, locked_by_id=? where id=?";
+
+    /**
+     * The snapshot of the record to write. Deletion is marked with the flag and works as a tombstone for readers until
+     * flushed.
+     */
+    static class PendingWrite {
+        final StateRecord record;
+        final HashId id;
+        final long recordId;
+        final int state;
+        final long createdAt;
+        final long expiresAt;
+        final long lockedBy;
+        final boolean delete;
+        boolean insert;
+        // changes queued with one enqueue() call are written in one transaction
+        long group;
+        int attempts;
+        Exception error;
+
+        PendingWrite(StateRecord record, boolean insert, boolean delete) {
+            this.record = record;
+            this.insert = insert;
+            this.delete = delete;
+            id = record.getId();
+            recordId = record.getRecordId();
+            state = record.getState().ordinal();
+            createdAt = record.getCreatedAtUnixTime();
+            expiresAt = record.getExpiresAtUnixTime();
+            lockedBy = record.getLockedByRecordId();
+        }
+    }
+
+    private final DbPool pool;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+
+    private final Object queueLock = new Object();
+    private LinkedHashMap<Long, PendingWrite> queued = new LinkedHashMap<>();
+    private final ConcurrentHashMap<HashId, PendingWrite> pendingByHash = new ConcurrentHashMap<>();
+    private long firstQueuedAt;
+    private long enqueuedCount;
+    private long flushedCount;
+    private boolean flushRequested;
+    private boolean stop;
+    // don't retry failed changes until then
+    private long retryAt;
+    // lost changes not yet reported by sync() or close()
+    private Ledger.Failure failure;
+    private final Thread writer;
+
+    /**
+     * Create the queue and start its writer thread.
+     *
+     * @param pool           connections to the database to write to
+     * @param maxBatch       number of queued changes that triggers the flush
+     * @param maxDelayMillis maximum time the change could wait in the queue
+     */
+    WriteBehindQueue(DbPool pool, int maxBatch, long maxDelayMillis) {
+        if (maxBatch < 1 || maxDelayMillis < 1)
+            throw new IllegalArgumentException("batch size and delay must be positive");
+        this.pool = pool;
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+        writer = new Thread(this::writerLoop, "ledger-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Get pending change of the record.
+     *
+     * @param id of the record
+     * @return pending change, which is a tombstone if {@link PendingWrite#delete} is set, or null
+     */
+    PendingWrite getPending(HashId id) {
+        return pendingByHash.get(id);
+    }
+
+    /**
+     * Make the change visible to readers immediately. Used for changes that will be queued later as a group, see
+     * {@link #enqueue(Collection)}.
+     */
+    void publish(PendingWrite w) {
+        pendingByHash.put(w.id, w);
+    }
+
+    /**
+     * Forget published but not queued changes, e.g. when the transaction is rolled back.
+     */
+    void unpublish(Collection<PendingWrite> writes) {
+        for (PendingWrite w : writes)
+            pendingByHash.remove(w.id, w);
+    }
+
+    /**
+     * Queue all changes atomically: they will be flushed in the same database transaction.
+     */
+    void enqueue(Collection<PendingWrite> writes) {
+        synchronized (queueLock) {
+            if (stop)
+                throw new IllegalStateException("write-behind queue is closed");
+            if (queued.isEmpty())
+                firstQueuedAt = System.currentTimeMillis();
+            long group = enqueuedCount + 1;
+            for (PendingWrite w : writes) {
+                w.group = group;
+                pendingByHash.put(w.id, w);
+                PendingWrite prev = queued.remove(w.recordId);
+                if (prev != null && prev.insert) {
+                    // the record is not yet in the database, so deleting it cancels both changes
+                    if (w.delete) {
+                        pendingByHash.remove(w.id, w);
+                        continue;
+                    }
+                    w.insert = true;
+                }
+                queued.put(w.recordId, w);
+            }
+            enqueuedCount++;
+            if (queued.size() >= maxBatch)
+                queueLock.notifyAll();
+        }
+    }
+
+    void enqueue(PendingWrite w) {
+        List<PendingWrite> single = new ArrayList<>(1);
+        single.add(w);
+        enqueue(single);
+    }
+
+    /**
+     * Durability barrier: block until all changes queued before the call are committed to the database or dropped
+     * after failed attempts.
+     *
+     * @throws Ledger.Failure if some changes have been dropped since the last report
+     */
+    void sync() throws InterruptedException {
+        synchronized (queueLock) {
+            long target = enqueuedCount;
+            flushRequested = true;
+            queueLock.notifyAll();
+            while (flushedCount < target && writer.isAlive())
+                queueLock.wait(maxDelayMillis);
+            reportFailure();
+        }
+    }
+
+    /**
+     * Flush all pending changes and stop the writer thread.
+     *
+     * @throws Ledger.Failure if some changes have been dropped since the last report
+     */
+    void close() {
+        synchronized (queueLock) {
+            stop = true;
+            queueLock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (queueLock) {
+            reportFailure();
+        }
+    }
+
+    private void reportFailure() {
+        Ledger.Failure f = failure;
+        if (f != null) {
+            failure = null;
+            throw f;
+        }
+    }
+
+    private void writerLoop() {
+        while (true) {
+            LinkedHashMap<Long, PendingWrite> batch;
+            long batchCount;
+            synchronized (queueLock) {
+                try {
+                    long pause;
+                    while ((pause = retryAt - System.currentTimeMillis()) > 0)
+                        queueLock.wait(pause);
+                    while (!stop && !flushRequested && queued.size() < maxBatch) {
+                        if (queued.isEmpty())
+                            queueLock.wait();
+                        else {
+                            long left = firstQueuedAt + maxDelayMillis - System.currentTimeMillis();
+                            if (left <= 0)
+                                break;
+                            queueLock.wait(left);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    stop = true;
+                }
+                if (stop && queued.isEmpty()) {
+                    flushedCount = enqueuedCount;
+                    queueLock.notifyAll();
+                    return;
+                }
+                batch = queued;
+                batchCount = enqueuedCount;
+                queued = new LinkedHashMap<>();
+                flushRequested = false;
+            }
+            List<PendingWrite> failed = flush(batch.values());
+            Set<PendingWrite> notWritten = Collections.newSetFromMap(new IdentityHashMap<>());
+            notWritten.addAll(failed);
+            for (PendingWrite w : batch.values()) {
+                if (!notWritten.contains(w))
+                    pendingByHash.remove(w.id, w);
+            }
+            synchronized (queueLock) {
+                // the barrier is passed only when nothing queued before is waiting for the retry
+                if (requeue(failed))
+                    retryAt = System.currentTimeMillis() + maxDelayMillis;
+                else {
+                    flushedCount = batchCount;
+                    retryAt = 0;
+                }
+                queueLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Put failed changes back to the head of the queue, unless newer changes of the same records are queued meanwhile,
+     * or drop them if they have failed too many times. Must be called with queueLock held.
+     *
+     * @return true if some changes are queued again
+     */
+    private boolean requeue(List<PendingWrite> failed) {
+        LinkedHashMap<Long, PendingWrite> head = new LinkedHashMap<>();
+        int lost = 0;
+        Exception lastError = null;
+        for (PendingWrite w : failed) {
+            if (w.attempts >= MAX_ATTEMPTS) {
+                log.e("write-behind failed to save " + w.id + " " + w.attempts + " times, dropping: " + w.error);
+                pendingByHash.remove(w.id, w);
+                lost++;
+                lastError = w.error;
+                continue;
+            }
+            PendingWrite newer = queued.get(w.recordId);
+            if (newer == null)
+                head.put(w.recordId, w);
+            else if (w.insert) {
+                // the newer change is applied to the record that is not yet in the database
+                if (newer.delete) {
+                    queued.remove(w.recordId);
+                    pendingByHash.remove(newer.id, newer);
+                } else
+                    newer.insert = true;
+            }
+        }
+        if (lost > 0) {
+            String message = "write-behind lost " + lost + " changes: " + lastError;
+            failure = failure == null ? new Ledger.Failure(message, lastError) :
+                    new Ledger.Failure(failure.getMessage() + "; " + message, lastError);
+        }
+        if (head.isEmpty())
+            return false;
+        if (queued.isEmpty())
+            firstQueuedAt = System.currentTimeMillis();
+        head.putAll(queued);
+        queued = head;
+        return true;
+    }
+
+    /**
+     * Write the batch in one transaction, or if it fails, by the groups of changes queued together.
+     *
+     * @return changes that are not written, with {@link PendingWrite#attempts} and {@link PendingWrite#error} updated
+     */
+    private List<PendingWrite> flush(Collection<PendingWrite> batch) {
+        List<PendingWrite> failed = new ArrayList<>();
+        if (batch.isEmpty())
+            return failed;
+        Db db = null;
+        try {
+            db = pool.checkout();
+            flush(db, batch, failed);
+        } catch (SQLException e) {
+            log.e("write-behind can't get the connection, " + batch.size() + " changes will be retried: " + e);
+            for (PendingWrite w : batch)
+                fail(w, e, failed);
+        } finally {
+            if (db != null)
+                pool.checkin(db);
+        }
+        return failed;
+    }
+
+    private void flush(Db db, Collection<PendingWrite> batch, List<PendingWrite> failed) {
+        try {
+            write(db, batch);
+        } catch (Exception e) {
+            // some change breaks constraints, so we save what we can group by group
+            log.e("write-behind batch failed, retrying by groups: " + e);
+            LinkedHashMap<Long, List<PendingWrite>> groups = new LinkedHashMap<>();
+            for (PendingWrite w : batch)
+                groups.computeIfAbsent(w.group, g -> new ArrayList<>()).add(w);
+            for (List<PendingWrite> group : groups.values()) {
+                try {
+                    write(db, group);
+                } catch (Exception ge) {
+                    for (PendingWrite w : group)
+                        fail(w, ge, failed);
+                }
+            }
+        }
+    }
+
+    private void write(Db db, Collection<PendingWrite> writes) throws Exception {
+        db.transaction(() -> {
+            for (PendingWrite w : writes)
+                apply(db, w);
+            return null;
+        });
+    }
+
+    private static void fail(PendingWrite w, Exception e, List<PendingWrite> failed) {
+        w.attempts++;
+        w.error = e;
+        failed.add(w);
+    }
+
+    private void apply(Db db, PendingWrite w) throws SQLException {
+        String sql = w.delete ? DELETE_SQL : (w.insert ? INSERT_SQL : UPDATE_SQL);
+        try {
+            if (w.delete)
+                db.update(sql, w.recordId);
+            else if (w.insert)
+                db.update(sql, w.recordId, SqlLedger.hashKey(w.id), w.id.getDigest(), w.state, w.createdAt,
+                          w.expiresAt, w.lockedBy);
+            else
+                db.update(sql, w.state, w.expiresAt, w.lockedBy, w.recordId);
+        } catch (SQLException e) {
+            // the driver could leave the failed statement unusable
+            db.dropStatement(sql);
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of changes waiting to be written
+     */
+    int size() {
+        synchronized (queueLock) {
+            return queued.size();
+        }
+    }
+}
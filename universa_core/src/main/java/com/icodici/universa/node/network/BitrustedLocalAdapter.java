@@ -10,20 +10,27 @@ package com.icodici.universa.node.network;
 import com.icodici.crypto.PrivateKey;
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemQuery;
+import com.icodici.universa.node.ItemResult;
 import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.LedgerDigest;
 import com.icodici.universa.node.LocalNode;
 import com.icodici.universa.node.Node;
 import net.sergeych.farcall.Command;
 import net.sergeych.farcall.Farcall;
 import net.sergeych.tools.Binder;
+import net.sergeych.utils.Bytes;
 import net.sergeych.utils.LogPrinter;
 
 import java.io.IOException;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class that exports {@link com.icodici.universa.node.LocalNode} to the ourside world using {@link
@@ -39,6 +46,8 @@ public class BitrustedLocalAdapter {
     private Map<HashId, Node> knownNodes;
     private final ServerSocket serverSocket;
     private boolean stop;
+    // received commands by name
+    private final Map<String, AtomicLong> commands = new ConcurrentHashMap<>();
 
     public BitrustedLocalAdapter(LocalNode localNode,
                                  PrivateKey privateKey,
@@ -64,11 +73,21 @@ public class BitrustedLocalAdapter {
     private Object serveIncomingConnections() throws Exception {
         while (!stop) {
             Socket s = serverSocket.accept();
+            // commands are small and we wait for answers, so Nagle's delays only add latency
+            s.setTcpNoDelay(true);
             pool.submit(() -> new Connection(s));
         }
         return null;
     }
 
+    /**
+     * @return number of commands with the given name received from all remote nodes
+     */
+    public long getCommandCount(String name) {
+        AtomicLong count = commands.get(name);
+        return count == null ? 0 : count.get();
+    }
+
     public void shutdown() {
         try {
             localNode.shutdown();
@@ -87,11 +106,20 @@ public class BitrustedLocalAdapter {
         @Override
         public Object onCommand(Command command) throws Exception {
             Binder params = Binder.from(command.getKeyParams());
+            commands.computeIfAbsent(command.getName(), k -> new AtomicLong()).incrementAndGet();
             switch (command.getName()) {
                 case "getItem":
                     return doGetItem(params);
                 case "checkItem":
                     return doCheckItem(params);
+                case "checkItems":
+                    return doCheckItems(params);
+                case "voteItem":
+                    return doVoteItem(params);
+                case "getLedgerDigests":
+                    return doGetLedgerDigests(params);
+                case "getLedgerBucket":
+                    return doGetLedgerBucket(params);
                 default:
                     throw new IllegalArgumentException("unknown command");
 
@@ -115,6 +143,52 @@ public class BitrustedLocalAdapter {
             return localNode.checkItem(remoteNode, id, state, haveCopy);
         }
 
+        private Object doCheckItems(Binder params) throws IOException, InterruptedException {
+            List<Object> ids = params.getListOrThrow("itemIds");
+            List<String> states = params.getListOrThrow("states");
+            List<Boolean> copies = params.getListOrThrow("haveCopies");
+            if (states.size() != ids.size() || copies.size() != ids.size())
+                throw new IllegalArgumentException("checkItems: lists sizes differ");
+            // each item is checked at once, so the caller should not make us do too much in one call
+            if (ids.size() > BitrustedRemoteAdapter.MAX_CHECK_BATCH)
+                throw new IllegalArgumentException("checkItems: too many items, at most " +
+                                                           BitrustedRemoteAdapter.MAX_CHECK_BATCH + " allowed");
+            List<ItemQuery> queries = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                Object id = ids.get(i);
+                byte[] digest = id instanceof Bytes ? ((Bytes) id).toArray() : (byte[]) id;
+                queries.add(new ItemQuery(HashId.withDigest(digest), ItemState.valueOf(states.get(i)), copies.get(i)));
+            }
+            // ItemResult adapter is not applied to list items, so we pack them explicitly
+            List<Binder> results = new ArrayList<>(ids.size());
+            for (ItemResult r : localNode.checkItems(remoteNode, queries))
+                results.add(r.toBinder());
+            return results;
+        }
+
+        private Object doVoteItem(Binder params) throws IOException {
+            HashId id = HashId.withDigest(params.getBinaryOrThrow("itemId"));
+            ItemState state = ItemState.valueOf(params.getStringOrThrow("state"));
+            localNode.voteItem(remoteNode, id, state);
+            return null;
+        }
+
+        private Object doGetLedgerDigests(Binder params) throws IOException {
+            int level = params.getIntOrThrow("level");
+            List<Number> list = params.getList("parents", null);
+            int[] parents = null;
+            if (list != null) {
+                parents = new int[list.size()];
+                for (int i = 0; i < parents.length; i++)
+                    parents[i] = list.get(i).intValue();
+            }
+            return LedgerDigest.packDigests(localNode.getLedgerDigests(level, parents));
+        }
+
+        private Object doGetLedgerBucket(Binder params) throws IOException {
+            return LedgerDigest.packBucket(localNode.getLedgerBucket(params.getIntOrThrow("bucket")));
+        }
+
         Connection(Socket socket) throws IOException, TimeoutException, InterruptedException {
             BitrustedConnector connector = new BitrustedConnector(privateKey,
                                                                   socket.getInputStream(),
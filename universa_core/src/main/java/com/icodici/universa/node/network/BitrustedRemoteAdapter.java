@@ -11,24 +11,60 @@ import com.icodici.crypto.PrivateKey;
 import com.icodici.crypto.PublicKey;
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemQuery;
 import com.icodici.universa.node.ItemResult;
 import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.LedgerDigest;
 import com.icodici.universa.node.Node;
 import net.sergeych.farcall.Farcall;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
+import net.sergeych.utils.Bytes;
 import net.sergeych.utils.LogPrinter;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Arrays;
-import java.util.concurrent.TimeoutException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 /**
  * Interface to the remote Node instance using bitrusted protocol.
+ * <p>
+ * Concurrent {@link #checkItem(Node, HashId, ItemState, boolean)} calls, e.g. of all elections polling this node, are
+ * collected for {@link #getCheckBatchDelay()} and sent as one "checkItems" command, see {@link #checkItems(Node,
+ * List)}.
  */
 public class BitrustedRemoteAdapter extends Node {
 
+    /**
+     * Default time to collect concurrent checkItem calls into one command.
+     */
+    public static final Duration DEFAULT_CHECK_BATCH_DELAY = Duration.ofMillis(2);
+    /**
+     * Maximum number of items checked with one command.
+     */
+    public static final int MAX_CHECK_BATCH = 256;
+
     private static LogPrinter log = new LogPrinter("BTRA");
+    // counts the batch delays and only hands the batches over to the senders, so no caller thread sleeps for them
+    private static final ScheduledExecutorService batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "check-batch-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ExecutorService batchSenders = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "check-batch-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
     private final PrivateKey localKey;
     private final PublicKey remoteKey;
     private final int port;
@@ -36,6 +72,15 @@ public class BitrustedRemoteAdapter extends Node {
     private Farcall farcall;
     private Socket socket;
     private Object stateLock = new Object();
+    private volatile Duration checkBatchDelay = DEFAULT_CHECK_BATCH_DELAY;
+    private final Object batchLock = new Object();
+    // the batch being collected, guarded by batchLock
+    private CheckBatch collecting;
+
+    private static class CheckBatch {
+        final List<ItemQuery> queries = new ArrayList<>();
+        final CompletableFuture<List<ItemResult>> results = new CompletableFuture<>();
+    }
 
     public BitrustedRemoteAdapter(String remoteId, PrivateKey localKey, PublicKey remoteKey, String host, int port) throws IOException, TimeoutException, InterruptedException {
         super(remoteId);
@@ -46,8 +91,90 @@ public class BitrustedRemoteAdapter extends Node {
     }
 
 
+    /**
+     * Check the item along with other concurrent calls. The batch is sent with {@link #checkItems(Node, List)} by the
+     * background task {@link #getCheckBatchDelay()} after its first call, and each caller waits for its result.
+     */
     @Override
     public ItemResult checkItem(Node caller, HashId itemId, ItemState state, boolean haveCopy) throws IOException, InterruptedException {
+        ItemQuery query = new ItemQuery(itemId, state, haveCopy);
+        long delay = checkBatchDelay.toMillis();
+        if (delay <= 0)
+            return checkItems(caller, Collections.singletonList(query)).get(0);
+        CheckBatch batch;
+        int index;
+        synchronized (batchLock) {
+            if (collecting == null) {
+                CheckBatch created = new CheckBatch();
+                batchTimer.schedule(() -> batchSenders.execute(() -> sendBatch(caller, created)),
+                                    delay, TimeUnit.MILLISECONDS);
+                collecting = created;
+            }
+            batch = collecting;
+            index = batch.queries.size();
+            batch.queries.add(query);
+            if (batch.queries.size() >= MAX_CHECK_BATCH)
+                collecting = null;
+        }
+        try {
+            return batch.results.get().get(index);
+        } catch (ExecutionException e) {
+            throw new IOException("checkItems failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void sendBatch(Node caller, CheckBatch batch) {
+        // no more queries are added to the batch that is not collecting
+        synchronized (batchLock) {
+            if (collecting == batch)
+                collecting = null;
+        }
+        try {
+            batch.results.complete(checkItems(caller, batch.queries));
+        } catch (Exception e) {
+            batch.results.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Check all items with "checkItems" commands of at most {@link #MAX_CHECK_BATCH} items each, or with "checkItem"
+     * if there is only one.
+     */
+    @Override
+    public List<ItemResult> checkItems(Node caller, List<ItemQuery> queries) throws IOException, InterruptedException {
+        if (queries.size() == 1) {
+            ItemQuery q = queries.get(0);
+            return Collections.singletonList(checkOne(q.itemId, q.state, q.haveCopy));
+        }
+        if (queries.size() > MAX_CHECK_BATCH) {
+            List<ItemResult> results = new ArrayList<>(queries.size());
+            for (int i = 0; i < queries.size(); i += MAX_CHECK_BATCH)
+                results.addAll(checkItems(caller, queries.subList(i, Math.min(i + MAX_CHECK_BATCH, queries.size()))));
+            return results;
+        }
+        List<byte[]> ids = new ArrayList<>(queries.size());
+        List<String> states = new ArrayList<>(queries.size());
+        List<Boolean> copies = new ArrayList<>(queries.size());
+        for (ItemQuery q : queries) {
+            ids.add(q.itemId.getDigest());
+            states.add(q.state.name());
+            copies.add(q.haveCopy);
+        }
+        Object result = inConnection(farcall -> farcall.sendKeyParams("checkItems",
+                                                                       "itemIds", ids,
+                                                                       "states", states,
+                                                                       "haveCopies", copies)
+                .waitSuccess());
+        List<Object> packed = result == null ? null : Do.list(result);
+        if (packed == null || packed.size() != queries.size())
+            throw new IOException("bad checkItems result: " + result);
+        List<ItemResult> results = new ArrayList<>(packed.size());
+        for (Object x : packed)
+            results.add(new ItemResult(Binder.from(x)));
+        return results;
+    }
+
+    private ItemResult checkOne(HashId itemId, ItemState state, boolean haveCopy) throws IOException, InterruptedException {
         return inConnection(farcall-> {
 //            log.d(getId()+" calling checkItem " + itemId + ":" + state + ":" + haveCopy);
             return farcall.sendKeyParams("checkItem",
@@ -58,6 +185,17 @@ public class BitrustedRemoteAdapter extends Node {
         });
     }
 
+    /**
+     * Send the vote without waiting for the answer: the voter does not need it, and the remote node polls it anyway if
+     * the vote is lost.
+     */
+    @Override
+    public void voteItem(Node voter, HashId itemId, ItemState state) throws IOException, InterruptedException {
+        inConnection(farcall -> farcall.sendKeyParams("voteItem",
+                "itemId", itemId.getDigest(),
+                "state", state.name()));
+    }
+
     @Override
     public Approvable getItem(HashId itemId) throws IOException, InterruptedException {
 //        log.d(getId()+ ": calling getItem: " + itemId);
@@ -69,6 +207,29 @@ public class BitrustedRemoteAdapter extends Node {
         });
     }
 
+    @Override
+    public long[] getLedgerDigests(int level, int[] parents) throws IOException, InterruptedException {
+        List<Integer> list = null;
+        if (parents != null) {
+            list = new ArrayList<>(parents.length);
+            for (int p : parents)
+                list.add(p);
+        }
+        Object[] params = list == null ? new Object[]{"level", level} : new Object[]{"level", level, "parents", list};
+        return LedgerDigest.unpackDigests(inConnection(farcall -> binaryResult(
+                farcall.sendKeyParams("getLedgerDigests", params).waitSuccess())));
+    }
+
+    @Override
+    public Map<HashId, ItemState> getLedgerBucket(int bucket) throws IOException, InterruptedException {
+        return LedgerDigest.unpackBucket(inConnection(farcall -> binaryResult(
+                farcall.sendKeyParams("getLedgerBucket", "bucket", bucket).waitSuccess())));
+    }
+
+    private static byte[] binaryResult(Object result) {
+        return result instanceof Bytes ? ((Bytes) result).toArray() : (byte[]) result;
+    }
+
     @Override
     public void shutdown() {
         try {
@@ -85,6 +246,7 @@ public class BitrustedRemoteAdapter extends Node {
                 if (socket == null) {
 //                    log.i("connecting >>>"+getId());
                     socket = new Socket(host, port);
+                    socket.setTcpNoDelay(true);
                     BitrustedConnector connector = new BitrustedConnector(localKey, socket.getInputStream(), socket.getOutputStream());
                     try {
                         connector.connect(packedKey -> Arrays.equals(packedKey, remoteKey.pack()));
@@ -134,6 +296,18 @@ public class BitrustedRemoteAdapter extends Node {
 //        }
     }
 
+    /**
+     * Time to collect concurrent {@link #checkItem(Node, HashId, ItemState, boolean)} calls before sending them in one
+     * command, zero to send each call at once.
+     */
+    public Duration getCheckBatchDelay() {
+        return checkBatchDelay;
+    }
+
+    public void setCheckBatchDelay(Duration checkBatchDelay) {
+        this.checkBatchDelay = checkBatchDelay;
+    }
+
     @Override
     public String toString() {
         return "RN<"+getId()+">";
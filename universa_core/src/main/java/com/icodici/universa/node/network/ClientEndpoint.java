@@ -10,6 +10,7 @@ package com.icodici.universa.node.network;
 import com.icodici.crypto.*;
 import com.icodici.universa.ErrorRecord;
 import com.icodici.universa.Errors;
+import com.icodici.universa.node.LedgerStats;
 import com.icodici.universa.node.LocalNode;
 import fi.iki.elonen.NanoHTTPD;
 import net.sergeych.boss.Boss;
@@ -336,6 +337,9 @@ public class ClientEndpoint {
 
                     case "test_error":
                         throw new IllegalAccessException("sample error");
+
+                    case "ledger_stats":
+                        return ledgerStats();
                 }
 //            } catch (ClientError e) {
 //                throw e;
@@ -345,6 +349,16 @@ public class ClientEndpoint {
             }
             throw new ClientError(Errors.UNKNOWN_COMMAND, "command", "unknown: " + cmd);
         }
+
+        /**
+         * Live counters kept by the ledger, see {@link LedgerStats#toBinder()}: no ledger queries are made.
+         */
+        private Binder ledgerStats() {
+            LedgerStats stats = localNode == null ? null : localNode.getLedger().getStats();
+            if (stats == null)
+                throw new IllegalStateException("ledger statistics are not available");
+            return stats.toBinder();
+        }
     }
 
     ConcurrentHashMap<PublicKey, Session> sessionsByKey = new ConcurrentHashMap<>();
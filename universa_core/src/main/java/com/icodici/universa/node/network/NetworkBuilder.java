@@ -12,9 +12,12 @@ import com.icodici.crypto.EncryptionError;
 import com.icodici.crypto.PrivateKey;
 import com.icodici.crypto.PublicKey;
 import com.icodici.universa.HashId;
+import com.icodici.universa.node.ExpirationSweeper;
+import com.icodici.universa.node.Ledger;
 import com.icodici.universa.node.LocalNode;
 import com.icodici.universa.node.Network;
 import com.icodici.universa.node.Node;
+import com.icodici.universa.node.ShardedLedger;
 import com.icodici.universa.node.SqlLedger;
 import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
@@ -40,6 +43,7 @@ public class NetworkBuilder implements AutoCloseable{
     private String rootPath;
     private List<BitrustedLocalAdapter> adapters = new ArrayList<>();
     private ClientEndpoint clientEndpoint;
+    private final List<ExpirationSweeper> sweepers = new ArrayList<>();
     private AtomicBoolean closed = new AtomicBoolean(false);
 
     @Override
@@ -55,6 +59,9 @@ public class NetworkBuilder implements AutoCloseable{
         private PublicKey publicKey;
         private byte[] packedPublicKey;
         private HashId publicKeyId;
+        private SqlLedger.Profile ledgerProfile = SqlLedger.Profile.SHARED_CACHE;
+        private int ledgerShards = 1;
+        private boolean ledgerArchive = false;
 
         public String getNodeId() {
             return nodeId;
@@ -94,6 +101,11 @@ public class NetworkBuilder implements AutoCloseable{
             host = fields.getStringOrThrow("ip");
             port = fields.getIntOrThrow("port");
             clientPort = fields.getInt("client_port", -1);
+            String profile = fields.getString("ledger_profile", null);
+            if (profile != null)
+                ledgerProfile = SqlLedger.Profile.byName(profile);
+            ledgerShards = fields.getInt("ledger_shards", 1);
+            ledgerArchive = fields.getBoolean("ledger_archive", false);
             this.packedPublicKey = packedPublicKey;
             setupKey();
         }
@@ -150,8 +162,29 @@ public class NetworkBuilder implements AutoCloseable{
          * @throws SQLException
          */
         private void createLocalServer(Network network, PrivateKey privateKey, int overrideClientPort) throws SQLException, IOException {
-            SqlLedger ledger = new SqlLedger("jdbc:sqlite:" + rootPath + "/system/" + nodeId + ".sqlite.db");
+            Ledger ledger;
+            if (ledgerShards > 1) {
+                ShardedLedger sharded = ShardedLedger.sqlite(rootPath + "/system/" + nodeId, ledgerShards,
+                                                             ledgerProfile);
+                for (int i = 0; i < ledgerShards; i++) {
+                    SqlLedger shard = (SqlLedger) sharded.getShard(i);
+                    if (ledgerArchive)
+                        shard.enableArchive(rootPath + "/system/" + nodeId + "." + i + ".archive");
+                    sweepers.add(new ExpirationSweeper(shard));
+                }
+                ledger = sharded;
+            } else {
+                SqlLedger sqlLedger = new SqlLedger("jdbc:sqlite:" + rootPath + "/system/" + nodeId + ".sqlite.db",
+                                                    SqlLedger.DEFAULT_CACHE_SIZE, ledgerProfile);
+                if (ledgerArchive)
+                    sqlLedger.enableArchive(rootPath + "/system/" + nodeId + ".archive");
+                sweepers.add(new ExpirationSweeper(sqlLedger));
+                ledger = sqlLedger;
+            }
             LocalNode localNode = new LocalNode(nodeId, network, ledger);
+            // the sweeper must not see orphans as ordinary records
+            localNode.recoverLedger();
+            sweepers.forEach(ExpirationSweeper::start);
             network.registerLocalNode(localNode);
             Map<HashId, Node> keysNodes = new HashMap<>();
             for (NodeInfo ni : roster.values()) {
@@ -166,6 +199,43 @@ public class NetworkBuilder implements AutoCloseable{
         public int getClientPort() {
             return clientPort;
         }
+
+        /**
+         * Storage profile of the local node ledger, set with the optional <code>ledger_profile</code> key of the node
+         * configuration, e.g. <code>ledger_profile: wal</code>.
+         */
+        public SqlLedger.Profile getLedgerProfile() {
+            return ledgerProfile;
+        }
+
+        public void setLedgerProfile(SqlLedger.Profile ledgerProfile) {
+            this.ledgerProfile = ledgerProfile;
+        }
+
+        /**
+         * Number of database files the local node ledger is split into, set with the optional
+         * <code>ledger_shards</code> key of the node configuration. With more than one, {@link ShardedLedger} is used.
+         */
+        public int getLedgerShards() {
+            return ledgerShards;
+        }
+
+        public void setLedgerShards(int ledgerShards) {
+            this.ledgerShards = ledgerShards;
+        }
+
+        /**
+         * Whether the local node ledger moves revoked and declined records to the {@link
+         * com.icodici.universa.node.ArchiveTier}, set with the optional <code>ledger_archive</code> key of the node
+         * configuration, e.g. <code>ledger_archive: true</code>.
+         */
+        public boolean isLedgerArchive() {
+            return ledgerArchive;
+        }
+
+        public void setLedgerArchive(boolean ledgerArchive) {
+            this.ledgerArchive = ledgerArchive;
+        }
     }
 
     Map<String, NodeInfo> roster = new ConcurrentHashMap<>();
@@ -241,6 +311,7 @@ public class NetworkBuilder implements AutoCloseable{
         if( closed.compareAndSet(false, true) ) {
             adapters.forEach(a -> a.shutdown());
             clientEndpoint.shutdown();
+            sweepers.forEach(ExpirationSweeper::stop);
         }
     }
 
@@ -0,0 +1,106 @@
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncLedgerTest {
+
+    /**
+     * Counts lookups and blocks them until released.
+     */
+    private static class SlowLedger extends MemoryLedger {
+        final AtomicInteger lookups = new AtomicInteger();
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        @Override
+        public StateRecord getRecord(HashId id) {
+            lookups.incrementAndGet();
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.getRecord(id);
+        }
+    }
+
+    @Test
+    public void coalesceLookups() throws Exception {
+        SlowLedger ledger = new SlowLedger();
+        AsyncLedger async = new AsyncLedger(ledger, 2, 100);
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        ledger.lookups.set(0);
+        ledger.gate = new CountDownLatch(1);
+        List<CompletableFuture<StateRecord>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            futures.add(async.getRecord(r.getId()));
+        CompletableFuture<StateRecord> other = async.getRecord(HashId.createRandom());
+        ledger.gate.countDown();
+        for (CompletableFuture<StateRecord> f : futures)
+            assertSame(r, f.get());
+        assertNull(other.get());
+        assertEquals(2, ledger.lookups.get());
+        assertEquals(9, async.getCoalesced());
+
+        // the finished lookup is not reused
+        assertSame(r, async.getRecord(r.getId()).get());
+        assertEquals(3, ledger.lookups.get());
+        async.close();
+    }
+
+    @Test
+    public void chainChanges() throws Exception {
+        MemoryLedger ledger = new MemoryLedger();
+        AsyncLedger async = new AsyncLedger(ledger);
+        HashId id = HashId.createRandom();
+        StateRecord r = async.findOrCreate(id).thenCompose(x -> {
+            x.setState(ItemState.APPROVED);
+            return async.save(x);
+        }).thenCompose(x -> async.getRecord(id)).get();
+        assertEquals(ItemState.APPROVED, r.getState());
+        assertEquals(ItemState.APPROVED, ledger.getRecord(id).getState());
+
+        assertEquals("done", async.transaction(() -> {
+            ledger.findOrCreate(HashId.createRandom());
+            ledger.findOrCreate(HashId.createRandom());
+            return "done";
+        }).get());
+        assertEquals(3, ledger.size());
+
+        async.destroy(r).get();
+        assertNull(async.getRecord(id).get());
+        async.close();
+    }
+
+    @Test
+    public void rejectWhenFull() throws Exception {
+        SlowLedger ledger = new SlowLedger();
+        ledger.gate = new CountDownLatch(1);
+        AsyncLedger async = new AsyncLedger(ledger, 1, 2);
+        List<CompletableFuture<StateRecord>> futures = new ArrayList<>();
+        // one is running, two are queued, the rest fail at once
+        for (int i = 0; i < 5; i++)
+            futures.add(async.getRecord(HashId.createRandom()));
+        assertEquals(2, async.getRejected());
+        try {
+            futures.get(4).get();
+            fail("must be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Ledger.Failure);
+        }
+        ledger.gate.countDown();
+        for (int i = 0; i < 3; i++)
+            assertNull(futures.get(i).get());
+        async.close();
+    }
+}
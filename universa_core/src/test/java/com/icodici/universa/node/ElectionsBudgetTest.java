@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ElectionsBudgetTest {
+
+    @Test
+    public void rejectClients() throws Exception {
+        Network network = new Network();
+        network.setMaxClientElections(2);
+        network.setMaxPeerElections(1);
+        ElectionsBudget budget = new ElectionsBudget(network);
+        budget.acquireClient();
+        budget.acquireClient();
+        try {
+            budget.acquireClient();
+            fail("must be rejected");
+        } catch (ElectionsBudget.Overloaded e) {
+            assertTrue(e.getRetryAfter().toMillis() > 0);
+        }
+        // peers have own quota
+        assertTrue(budget.tryAcquirePeer());
+        assertFalse(budget.tryAcquirePeer());
+        assertEquals(2, budget.getClientElections());
+        assertEquals(1, budget.getPeerElections());
+        assertEquals(2, budget.getRejected());
+
+        budget.release(true, System.currentTimeMillis() - 300);
+        assertEquals(300, budget.getRetryAfter().toMillis(), 50);
+        budget.acquireClient();
+        budget.cancel(false);
+        assertTrue(budget.tryAcquirePeer());
+
+        // no limits
+        network.setMaxClientElections(0);
+        network.setMaxPeerElections(0);
+        for (int i = 0; i < 100; i++) {
+            budget.acquireClient();
+            assertTrue(budget.tryAcquirePeer());
+        }
+    }
+
+    @Test
+    public void blockClients() throws Exception {
+        Network network = new Network();
+        network.setMaxClientElections(1);
+        network.setAdmissionPolicy(ElectionsBudget.Policy.BLOCK);
+        network.setAdmissionTimeout(Duration.ofMillis(100));
+        ElectionsBudget budget = new ElectionsBudget(network);
+        budget.acquireClient();
+        long t = System.currentTimeMillis();
+        try {
+            budget.acquireClient();
+            fail("must be rejected");
+        } catch (ElectionsBudget.Overloaded e) {
+            assertTrue(System.currentTimeMillis() - t >= 100);
+        }
+
+        network.setAdmissionTimeout(Duration.ofSeconds(5));
+        CompletableFuture<Void> waiter = CompletableFuture.runAsync(() -> {
+            try {
+                budget.acquireClient();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(waiter.isDone());
+        // only as many callers as the quota could wait
+        try {
+            budget.acquireClient();
+            fail("must be rejected");
+        } catch (ElectionsBudget.Overloaded e) {
+        }
+        budget.release(true, System.currentTimeMillis());
+        waiter.get(1, TimeUnit.SECONDS);
+        assertEquals(1, budget.getClientElections());
+    }
+}
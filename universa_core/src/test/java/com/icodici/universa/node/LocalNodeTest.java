@@ -17,6 +17,7 @@ import java.sql.DriverManager;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
@@ -60,6 +61,42 @@ public class LocalNodeTest extends NodeTestCase {
         assertEquals(ItemState.DECLINED, r.getState());
     }
 
+    @Test
+    public void memoryLedgerNode() throws Exception {
+        Network network = new Network();
+        LocalNode n = createTempNode(network, new MemoryLedger());
+        network.setNegativeConsensus(1);
+        network.setPositiveConsensus(1);
+        TestItem item = new TestItem(false);
+        ItemResult itemResult = n.registerItemAndWait(item);
+        assertEquals(ItemState.DECLINED, itemResult.state);
+        assertEquals(ItemState.DECLINED, n.getLedger().getRecord(item.getId()).getState());
+    }
+
+    @Test
+    public void checkItemsFailsOnlyBrokenItem() throws Exception {
+        HashId broken = HashId.createRandom();
+        Network network = new Network();
+        LocalNode n = createTempNode(network, new MemoryLedger() {
+            @Override
+            public StateRecord getRecord(HashId id) {
+                if (id.equals(broken))
+                    throw new Ledger.Failure("broken record");
+                return super.getRecord(id);
+            }
+        });
+        HashId approved = HashId.createRandom();
+        n.getLedger().findOrCreate(approved).approve();
+        List<ItemResult> results = n.checkItems(null, Arrays.asList(
+                new ItemQuery(approved, ItemState.PENDING, false),
+                new ItemQuery(broken, ItemState.PENDING, false),
+                new ItemQuery(approved, ItemState.PENDING, false)));
+        assertEquals(ItemState.APPROVED, results.get(0).state);
+        // the caller polls it again
+        assertEquals(ItemState.UNDEFINED, results.get(1).state);
+        assertEquals(ItemState.APPROVED, results.get(2).state);
+    }
+
     @Test
     public void noQourumError() throws Exception {
         Network network = new Network();
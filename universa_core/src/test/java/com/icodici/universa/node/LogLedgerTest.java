@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogLedgerTest extends LedgerTestCase {
+
+    private static final String DIRECTORY = "testledger.log";
+    // small segments to test rolling and compaction
+    private static final long SEGMENT_SIZE = 16 * 1024;
+
+    @Override
+    protected Ledger createLedger() throws Exception {
+        deleteFiles();
+        return new LogLedger(DIRECTORY, SEGMENT_SIZE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        File[] files = new File(DIRECTORY).listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        new File(DIRECTORY).delete();
+    }
+
+    private LogLedger logLedger() {
+        return (LogLedger) ledger;
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        r1.approve();
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        r2.destroy();
+        StateRecord r3 = ledger.findOrCreate(HashId.createRandom());
+        ledger.close();
+
+        ledger = new LogLedger(DIRECTORY, SEGMENT_SIZE);
+        assertEquals(2, logLedger().size());
+        assertSameRecords(r1, ledger.getRecord(r1.getId()));
+        assertSameRecords(r3, ledger.getRecord(r3.getId()));
+        assertNull(ledger.getRecord(r2.getId()));
+        // record ids are not reused
+        assertTrue(ledger.findOrCreate(HashId.createRandom()).getRecordId() > r3.getRecordId());
+    }
+
+    @Test
+    public void cutsOffTornWrite() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        ledger.close();
+
+        File segment = new File(DIRECTORY).listFiles()[0];
+        long size = segment.length();
+        try (RandomAccessFile f = new RandomAccessFile(segment, "rw")) {
+            // the last frame is written partially
+            f.setLength(size - 10);
+        }
+        ledger = new LogLedger(DIRECTORY, SEGMENT_SIZE);
+        assertSameRecords(r1, ledger.getRecord(r1.getId()));
+        assertNull(ledger.getRecord(r2.getId()));
+        assertNotNull(ledger.findOrCreate(r2.getId()));
+        ledger.close();
+        ledger = new LogLedger(DIRECTORY, SEGMENT_SIZE);
+        assertNotNull(ledger.getRecord(r2.getId()));
+    }
+
+    @Test
+    public void transactionIsOneFrame() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        List<HashId> created = new ArrayList<>();
+        ledger.transaction(() -> {
+            r1.approve();
+            for (int i = 0; i < 10; i++)
+                created.add(ledger.findOrCreate(HashId.createRandom()).getId());
+            return null;
+        });
+        ledger.close();
+
+        // cutting a byte off the transaction frame drops the whole transaction
+        File segment = new File(DIRECTORY).listFiles()[0];
+        try (RandomAccessFile f = new RandomAccessFile(segment, "rw")) {
+            f.setLength(segment.length() - 1);
+        }
+        ledger = new LogLedger(DIRECTORY, SEGMENT_SIZE);
+        assertEquals(ItemState.PENDING, ledger.getRecord(r1.getId()).getState());
+        for (HashId id : created)
+            assertNull(ledger.getRecord(id));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        StateRecord expired = records.get(0);
+        expired.setExpiresAt(LocalDateTime.now().minusSeconds(1));
+        expired.save();
+        // lots of updates make old segments garbage
+        for (int round = 0; round < 5; round++)
+            for (StateRecord r : records.subList(1, records.size()))
+                r.setState(round % 2 == 0 ? ItemState.PENDING_POSITIVE : ItemState.PENDING).save();
+        StateRecord destroyed = records.get(1);
+        destroyed.destroy();
+
+        int segments = logLedger().getSegmentCount();
+        assertTrue(segments > 3);
+        assertTrue(logLedger().compact() > 0);
+        assertTrue(logLedger().getSegmentCount() < segments);
+        assertTrue(logLedger().getReclaimedBytes() > 0);
+        // expired record is dropped by the compaction
+        assertEquals(98, logLedger().size());
+
+        ledger.close();
+        ledger = new LogLedger(DIRECTORY, SEGMENT_SIZE);
+        assertEquals(98, logLedger().size());
+        assertNull(ledger.getRecord(expired.getId()));
+        assertNull(ledger.getRecord(destroyed.getId()));
+        for (StateRecord r : records.subList(2, records.size()))
+            assertSameRecords(r, ledger.getRecord(r.getId()));
+    }
+}
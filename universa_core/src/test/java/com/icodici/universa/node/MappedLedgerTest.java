@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.*;
+
+public class MappedLedgerTest extends LedgerTestCase {
+
+    private static final String FILE_NAME = "testledger.map";
+    private static final String CRASHED = "testledger-crashed.map";
+
+    @Override
+    protected Ledger createLedger() throws Exception {
+        new File(FILE_NAME).delete();
+        return new MappedLedger(FILE_NAME, 1024);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        new File(FILE_NAME).delete();
+        new File(FILE_NAME + "-journal").delete();
+        new File(CRASHED + "-journal").delete();
+        new File(CRASHED).delete();
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        r1.approve();
+        r1.save();
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        r2.destroy();
+        ledger.close();
+
+        ledger = new MappedLedger(FILE_NAME);
+        assertEquals(1024, ((MappedLedger) ledger).getCapacity());
+        assertEquals(1, ((MappedLedger) ledger).size());
+        assertSameRecords(r1, ledger.getRecord(r1.getId()));
+        assertNull(ledger.getRecord(r2.getId()));
+    }
+
+    @Test
+    public void rollbackInterruptedTransaction() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        ((MappedLedger) ledger).flush();
+        HashId newId = HashId.createRandom();
+        ledger.transaction(() -> {
+            r1.approve();
+            r1.save();
+            r2.destroy();
+            ledger.findOrCreate(newId);
+            // the state of the disk if the node crashes now
+            Files.copy(Paths.get(FILE_NAME), Paths.get(CRASHED), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(Paths.get(FILE_NAME + "-journal"), Paths.get(CRASHED + "-journal"),
+                       StandardCopyOption.REPLACE_EXISTING);
+            return null;
+        });
+        assertEquals(0, new File(FILE_NAME + "-journal").length());
+
+        MappedLedger crashed = new MappedLedger(CRASHED);
+        assertEquals(2, crashed.size());
+        assertEquals(ItemState.PENDING, crashed.getRecord(r1.getId()).getState());
+        assertNotNull(crashed.getRecord(r2.getId()));
+        assertNull(crashed.getRecord(newId));
+        assertEquals(0, new File(CRASHED + "-journal").length());
+        crashed.close();
+    }
+
+    @Test
+    public void refusesToOverfill() throws Exception {
+        MappedLedger ml = (MappedLedger) ledger;
+        for (int i = 0; i < 768; i++)
+            ml.findOrCreate(HashId.createRandom());
+        assertThrows(Ledger.Failure.class, () -> ml.findOrCreate(HashId.createRandom()));
+        assertEquals(768, ml.size());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class MemoryLedgerTest extends LedgerTestCase {
+
+    @Override
+    protected Ledger createLedger() throws Exception {
+        return new MemoryLedger();
+    }
+
+    @Test
+    public void transactionChangesAreInvisibleToOthers() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        HashId newId = HashId.createRandom();
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            ledger.transaction(() -> {
+                r1.approve();
+                ledger.findOrCreate(newId);
+                assertEquals(ItemState.APPROVED, ledger.getRecord(r1.getId()).getState());
+                assertEquals(ItemState.PENDING, es.submit(() -> ledger.getRecord(r1.getId()).getState()).get());
+                assertNull(es.submit(() -> ledger.getRecord(newId)).get());
+                return null;
+            });
+            assertEquals(ItemState.APPROVED, es.submit(() -> ledger.getRecord(r1.getId()).getState()).get());
+            assertNotNull(es.submit(() -> ledger.getRecord(newId)).get());
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentCreation() throws Exception {
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            ids.add(HashId.createRandom());
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<HashId, Long>>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(es.submit(() -> {
+                    Map<HashId, Long> result = new HashMap<>();
+                    for (HashId id : ids)
+                        result.put(id, ledger.findOrCreate(id).getRecordId());
+                    return result;
+                }));
+            }
+            Map<HashId, Long> first = futures.get(0).get();
+            for (Future<Map<HashId, Long>> f : futures)
+                assertEquals(first, f.get());
+        } finally {
+            es.shutdown();
+        }
+        assertEquals(200, ((MemoryLedger) ledger).size());
+    }
+}
@@ -8,6 +8,8 @@
 package com.icodici.universa.node;
 
 import com.icodici.universa.Approvable;
+import com.icodici.universa.HashId;
+import net.sergeych.tools.AsyncEvent;
 import net.sergeych.tools.Do;
 import net.sergeych.tools.StopWatch;
 import org.junit.Test;
@@ -69,6 +71,124 @@ public class NetworkTest extends NodeTestCase {
         }
     }
 
+    @Test
+    public void pushedVotes() throws Exception {
+        LocalNode node = createLocalConsensus();
+        // nodes are polled only once, so the consensus is found with the pushed votes
+        network.setVotePollingPause(Duration.ofMinutes(10));
+        for (int i = 0; i < 10; i++) {
+            TestItem good = new TestItem(true);
+            long t = StopWatch.measure(() -> {
+                assertEquals(ItemState.APPROVED, node.registerItemAndWait(good).state);
+            });
+            assertThat(t, is(lessThan(network.getMaxElectionsTime().toMillis())));
+            for (LocalNode n : allNodes)
+                assertEquals(ItemState.APPROVED, n.waitForItem(good.getId()).state);
+        }
+        TestItem bad = new TestItem(false);
+        assertEquals(ItemState.DECLINED, node.registerItemAndWait(bad).state);
+    }
+
+    @Test
+    public void blockElections() throws Exception {
+        LocalNode node = createLocalConsensus();
+        network.setBlockSize(20);
+        List<TestItem> items = new ArrayList<>();
+        List<AsyncEvent<ItemResult>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            TestItem item = new TestItem(i % 5 != 0);
+            AsyncEvent<ItemResult> done = new AsyncEvent<>();
+            items.add(item);
+            results.add(done);
+            node.registerItem(item, done::fire);
+        }
+        for (int i = 0; i < items.size(); i++) {
+            ItemState expected = i % 5 != 0 ? ItemState.APPROVED : ItemState.DECLINED;
+            assertEquals(expected, results.get(i).await(network.getMaxElectionsTime().toMillis()).state);
+            for (LocalNode n : allNodes)
+                assertEquals(expected, n.waitForItem(items.get(i).getId()).state);
+        }
+    }
+
+    @Test
+    public void smallFixedScheduler() throws Exception {
+        // far less threads than voting nodes and items, and approvals wait for the late download
+        checkScheduler(new FixedElectionsScheduler(2));
+    }
+
+    @Test
+    public void elasticScheduler() throws Exception {
+        checkScheduler(new ElasticElectionsScheduler());
+    }
+
+    private void checkScheduler(ElectionsScheduler scheduler) throws Exception {
+        LocalNode node = createLocalConsensus();
+        network.setScheduler(scheduler);
+        try {
+            specialNode.emulateLateDownload();
+            List<TestItem> items = new ArrayList<>();
+            List<AsyncEvent<ItemResult>> results = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                TestItem item = new TestItem(true);
+                item.addNewItems(new TestItem(true));
+                AsyncEvent<ItemResult> done = new AsyncEvent<>();
+                items.add(item);
+                results.add(done);
+                node.registerItem(item, done::fire);
+            }
+            for (int i = 0; i < items.size(); i++) {
+                assertEquals(ItemState.APPROVED, results.get(i).await(network.getMaxElectionsTime().toMillis()).state);
+                for (LocalNode n : allNodes) {
+                    assertEquals(ItemState.APPROVED, n.waitForItem(items.get(i).getId()).state);
+                    HashId newId = items.get(i).getNewItems().iterator().next().getId();
+                    assertEquals(ItemState.APPROVED, n.getLedger().getRecord(newId).getState());
+                }
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void admissionControl() throws Exception {
+        LocalNode node = createLocalConsensus();
+        network.setMaxClientElections(3);
+        network.setMaxPeerElections(5);
+        List<AsyncEvent<ItemResult>> results = new ArrayList<>();
+        int rejected = 0;
+        for (int i = 0; i < 30; i++) {
+            AsyncEvent<ItemResult> done = new AsyncEvent<>();
+            try {
+                node.registerItem(new TestItem(true), done::fire);
+                results.add(done);
+            } catch (ElectionsBudget.Overloaded e) {
+                rejected++;
+            }
+        }
+        // the burst is far faster than elections
+        assertThat(rejected, is(greaterThan(0)));
+        assertEquals(rejected, node.getBudget().getRejected());
+        assertEquals(0, node.getBudget().getWaited());
+        // waiting clients get slots as elections are done
+        network.setAdmissionPolicy(ElectionsBudget.Policy.BLOCK);
+        for (int i = 0; i < 30; i++) {
+            AsyncEvent<ItemResult> done = new AsyncEvent<>();
+            node.registerItem(new TestItem(true), done::fire);
+            results.add(done);
+        }
+        assertThat(node.getBudget().getWaited(), is(greaterThan(0L)));
+        assertEquals(rejected, node.getBudget().getRejected());
+        // admitted items are not slowed down by the burst
+        for (AsyncEvent<ItemResult> done : results)
+            assertEquals(ItemState.APPROVED, done.await(network.getMaxElectionsTime().toMillis()).state);
+        Thread.sleep(100);
+        for (LocalNode n : allNodes) {
+            assertEquals(0, n.getBudget().getClientElections());
+            assertEquals(0, n.getBudget().getPeerElections());
+        }
+        assertEquals(0, node.getBudget().getClientElections());
+    }
+
     @Test
     public void testNotCreatingOnReject() throws Exception {
         LocalNode n = createLocalConsensus();
@@ -22,11 +22,17 @@ public class NodeTestCase extends TestCase {
     int nodesCount = 1;
 
     protected LocalNode createTempNode(Network network) throws IOException, SQLException {
-        String nodeId = "temp_node_" + nodesCount++;
 //        File tempFile = new File("nodedb_"+nodeId+ ".db");
         File tempFile = File.createTempFile("nodedb", "db");
 //        LogPrinter.showDebug(true);
-        SqlLedger ledger = new SqlLedger("jdbc:sqlite:" + tempFile);
+        return createTempNode(network, new SqlLedger("jdbc:sqlite:" + tempFile));
+    }
+
+    /**
+     * Create node with a given ledger, e.g. {@link MemoryLedger} to test it without the storage.
+     */
+    protected LocalNode createTempNode(Network network, Ledger ledger) {
+        String nodeId = "temp_node_" + nodesCount++;
         assertNotNull(ledger.findOrCreate(HashId.createRandom()));
         assertNull(ledger.getRecord(HashId.createRandom()));
         LocalNode n = new LocalNode(nodeId, network, ledger);
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ShardedLedgerTest extends LedgerTestCase {
+
+    private static final String PREFIX = "testledger_sharded";
+    private static final int SHARDS = 3;
+
+    @Override
+    protected Ledger createLedger() throws Exception {
+        deleteFiles();
+        return ShardedLedger.sqlite(PREFIX, SHARDS, SqlLedger.Profile.SHARED_CACHE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        for (int i = 0; i < SHARDS; i++)
+            new File(PREFIX + "." + i + ".sqlite.db").delete();
+    }
+
+    private ShardedLedger shardedLedger() {
+        return (ShardedLedger) ledger;
+    }
+
+    /**
+     * Get the id that goes to the given shard.
+     */
+    private HashId idInShard(int shard) {
+        while (true) {
+            HashId id = HashId.createRandom();
+            if (shardedLedger().shardOf(id) == shard)
+                return id;
+        }
+    }
+
+    @Test
+    public void spreadsRecords() throws Exception {
+        Set<Long> recordIds = new HashSet<>();
+        int[] counts = new int[SHARDS];
+        for (int i = 0; i < 300; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            assertTrue(recordIds.add(r.getRecordId()));
+            counts[shardedLedger().shardOf(r.getId())]++;
+            // the record is in its shard only
+            for (int s = 0; s < SHARDS; s++) {
+                StateRecord sr = shardedLedger().getShard(s).getRecord(r.getId());
+                assertEquals(s == shardedLedger().shardOf(r.getId()), sr != null);
+            }
+        }
+        for (int c : counts)
+            assertTrue(c > 50);
+    }
+
+    @Test
+    public void crossShardRollback() throws Exception {
+        StateRecord owner = ledger.findOrCreate(idInShard(0));
+        StateRecord revoked = ledger.findOrCreate(idInShard(1));
+        revoked.approve();
+        StateRecord destroyed = ledger.findOrCreate(idInShard(2));
+        HashId newId = idInShard(2);
+
+        ledger.transaction(() -> {
+            assertNotNull(owner.lockToRevoke(revoked.getId()));
+            assertNotNull(owner.createOutputLockRecord(newId));
+            destroyed.destroy();
+            assertNull(ledger.getRecord(destroyed.getId()));
+            throw new Ledger.Rollback();
+        });
+
+        assertEquals(ItemState.APPROVED, ledger.getRecord(revoked.getId()).getState());
+        assertEquals(0, ledger.getRecord(revoked.getId()).getLockedByRecordId());
+        assertNull(ledger.getRecord(newId));
+        assertNotNull(ledger.getRecord(destroyed.getId()));
+
+        ledger.transaction(() -> {
+            assertNotNull(owner.lockToRevoke(revoked.getId()));
+            assertNotNull(owner.createOutputLockRecord(newId));
+            destroyed.destroy();
+            return null;
+        });
+        StateRecord locked = ledger.getRecord(revoked.getId());
+        assertEquals(ItemState.LOCKED, locked.getState());
+        assertEquals(owner.getRecordId(), locked.getLockedByRecordId());
+        assertEquals(owner.getRecordId(), ledger.getRecord(newId).getLockedByRecordId());
+        assertNull(ledger.getRecord(destroyed.getId()));
+    }
+
+    @Test
+    public void outOfOrderLocking() throws Exception {
+        StateRecord low = ledger.findOrCreate(idInShard(0));
+        StateRecord high = ledger.findOrCreate(idInShard(2));
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (StateRecord[] order : new StateRecord[][]{{low, high}, {high, low}}) {
+                results.add(es.submit(() -> {
+                    try {
+                        ledger.transaction(() -> {
+                            ledger.getRecord(order[0].getId()).setState(ItemState.PENDING_POSITIVE).save();
+                            bothLocked.countDown();
+                            bothLocked.await();
+                            ledger.getRecord(order[1].getId()).setState(ItemState.PENDING_NEGATIVE).save();
+                            return null;
+                        });
+                        return true;
+                    } catch (Ledger.Failure e) {
+                        return false;
+                    }
+                }));
+            }
+            // the transaction that locks out of order gives up, the other one completes
+            assertTrue(results.get(0).get());
+            assertFalse(results.get(1).get());
+        } finally {
+            es.shutdown();
+        }
+        assertEquals(ItemState.PENDING_POSITIVE, low.reload().getState());
+        assertEquals(ItemState.PENDING_NEGATIVE, high.reload().getState());
+    }
+
+    @Test
+    public void shardSweeperDropsCachedRecords() throws Exception {
+        ledger.enableCache(true);
+        StateRecord swept = ledger.findOrCreate(idInShard(1));
+        assertSame(swept, ledger.getRecord(swept.getId()));
+        // the row expires in the shard only, so this ledger's cache is the only thing that could keep it
+        SqlLedger shard = (SqlLedger) shardedLedger().getShard(1);
+        shard.getPool().execute(db -> {
+            db.update("UPDATE ledger SET expires_at = ? WHERE hash = ?",
+                      StateRecord.currentUnixTime() - 60, swept.getId().getDigest());
+            return null;
+        });
+        assertEquals(1, new ExpirationSweeper(shard).sweep());
+        assertNull(ledger.getRecord(swept.getId()));
+    }
+
+    @Test
+    public void recoverOrphansAcrossShards() throws Exception {
+        StateRecord voted = ledger.findOrCreate(idInShard(0));
+        voted.setState(ItemState.PENDING_POSITIVE);
+        voted.save();
+        StateRecord votedInput = ledger.findOrCreate(idInShard(1));
+        votedInput.setState(ItemState.LOCKED);
+        votedInput.setLockedByRecordId(voted.getRecordId());
+        votedInput.save();
+        StateRecord pending = ledger.findOrCreate(idInShard(2));
+        StateRecord input = ledger.findOrCreate(idInShard(0));
+        input.setState(ItemState.LOCKED);
+        input.setLockedByRecordId(pending.getRecordId());
+        input.save();
+
+        assertEquals(2, ledger.recoverOrphans());
+        assertEquals(ItemState.PENDING_POSITIVE, ledger.getRecord(voted.getId()).getState());
+        assertEquals(ItemState.LOCKED, ledger.getRecord(votedInput.getId()).getState());
+        assertNull(ledger.getRecord(pending.getId()));
+        assertEquals(ItemState.APPROVED, ledger.getRecord(input.getId()).getState());
+    }
+}
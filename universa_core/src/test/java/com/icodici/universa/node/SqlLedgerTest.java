@@ -1,218 +1,688 @@
 package com.icodici.universa.node;
 
 import com.icodici.universa.HashId;
-import net.sergeych.tools.Do;
-import org.junit.Before;
+import net.sergeych.tools.Binder;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDateTime;
-
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
-public class SqlLedgerTest extends TestCase {
-    private SqlLedger ledger;
+public class SqlLedgerTest extends LedgerTestCase {
 
-    @Before
-    public void setUp() throws Exception {
+    @Override
+    protected Ledger createLedger() throws Exception {
         new File("testledger").delete();
-        ledger = new SqlLedger("jdbc:sqlite:testledger");
-        ledger.enableCache(false);
+        return new SqlLedger("jdbc:sqlite:testledger");
     }
 
-    @Test
-    public void checkNegatoveBytesInId() throws Exception {
-        HashId id = HashId.withDigest(Do.randomNegativeBytes(64));
-        StateRecord r1 = ledger.findOrCreate(id);
-        r1.setState(ItemState.DECLINED);
-        r1.save();
-        StateRecord r2 = ledger.getRecord(id);
-        assertNotNull(r2);
-        assertNotSame(r1, r2);
-        assertEquals(r1.getState(), r2.getState());
-
-        ledger.enableCache(true);
-        StateRecord r3 = ledger.getRecord(id);
-        StateRecord r4 = ledger.getRecord(id);
-        assertEquals(r3.toString(), r4.toString());
-        // why?
-        assertSame(r3, r4);
+    private SqlLedger sqlLedger() {
+        return (SqlLedger) ledger;
     }
 
     @Test
-    public void createOutputLockRecord() throws Exception {
-        ledger.enableCache(true);
-        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
-        StateRecord other = ledger.findOrCreate(HashId.createRandom());
-
-        HashId id = HashId.createRandom();
-        StateRecord r1 = owner.createOutputLockRecord(id);
-        r1.reload();
-        assertEquals(id, r1.getId());
-        assertEquals(ItemState.LOCKED_FOR_CREATION, r1.getState());
-        assertEquals(owner.getRecordId(), r1.getLockedByRecordId());
-        StateRecord r2 = owner.createOutputLockRecord(id);
-        assertSame (r2, r1);
-        assertNull(owner.createOutputLockRecord(other.getId()));
-        // And hacked low level operation must fail too
-        assertNull(ledger.createOutputLockRecord(owner.getRecordId(), other.getId()));
-    }
-
-    @Test
-    public void findOrCreateAndGet() throws Exception {
-        // Atomic new record creation
-        HashId id = HashId.createRandom();
-        StateRecord r = ledger.findOrCreate(id);
+    public void boundedCache() throws Exception {
+        SqlLedger ledger = new SqlLedger("jdbc:sqlite:testledger", 32);
+        RecordCache cache = ledger.getRecordCache();
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        assertThat(cache.size(), is(lessThanOrEqualTo(32 + 16)));
+        assertThat(cache.getEvictions(), is(greaterThan(0L)));
+
+        StateRecord last = records.get(records.size() - 1);
+        long hits = cache.getHits();
+        assertSame(last, ledger.getRecord(last.getId()));
+        assertEquals(hits + 1, cache.getHits());
+
+        // evicted record that is still in use is the same instance
+        StateRecord first = records.get(0);
+        assertSame(first, ledger.getRecord(first.getId()));
+
+        // and it is read from the database again once nobody holds it
+        HashId firstId = first.getId();
+        WeakReference<StateRecord> ref = new WeakReference<>(first);
+        first = null;
+        records.clear();
+        for (int i = 0; i < 100; i++)
+            ledger.findOrCreate(HashId.createRandom());
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        long misses = cache.getMisses();
+        StateRecord r = ledger.getRecord(firstId);
         assertNotNull(r);
-        assertEquals(id, r.getId());
-        assertEquals(ItemState.PENDING, r.getState());
-        assertAlmostSame(LocalDateTime.now(), r.getCreatedAt());
-
-        // returning existing record
-        StateRecord r1 = ledger.findOrCreate(id);
-        assertSameRecords(r, r1);
-
-        StateRecord r2 = ledger.getRecord(id);
-        assertSameRecords(r, r2);
-
-        StateRecord r3 = ledger.getRecord(HashId.createRandom());
-        assert (r3 == null);
+        assertEquals(firstId, r.getId());
+        assertEquals(misses + 1, cache.getMisses());
+        ledger.close();
     }
 
-
     @Test
-    public void saveAndTransaction() throws Exception {
+    public void writeBehind() throws Exception {
+        sqlLedger().enableWriteBehind(1000, 60000);
+        SqlLedger other = new SqlLedger("jdbc:sqlite:testledger");
+        other.enableCache(false);
+        other.enableFilter(false);
+
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
         StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
-        int x = ledger.transaction(() -> {
-            r1.setState(ItemState.APPROVED);
-            r2.setState(ItemState.DECLINED);
+        assertNotEquals(0, r1.getRecordId());
+        assertNotEquals(r1.getRecordId(), r2.getRecordId());
+        r1.approve();
+        // pending changes are visible through this ledger only
+        assertEquals(ItemState.APPROVED, ledger.getRecord(r1.getId()).getState());
+        assertEquals(ItemState.APPROVED, r1.reload().getState());
+        assertNull(other.getRecord(r1.getId()));
+        // and unique hash is still enforced
+        assertNull(ledger.createOutputLockRecord(r1.getRecordId(), r2.getId()));
+
+        sqlLedger().sync();
+        assertSameRecords(r1, other.getRecord(r1.getId()));
+        assertSameRecords(r2, other.getRecord(r2.getId()));
+
+        r2.destroy();
+        assertNull(ledger.getRecord(r2.getId()));
+        Object x = ledger.transaction(() -> {
+            r1.setState(ItemState.LOCKED);
             r1.save();
-            r2.save();
-            return 5;
+            throw new Ledger.Rollback();
         });
-        assertEquals(5, x);
-        r1.reload();
-        StateRecord r3 = ledger.getRecord(r1.getId());
-        assertEquals(ItemState.APPROVED, r1.getState());
-        assertEquals(ItemState.APPROVED, r3.getState());
-        r2.reload();
-        assertEquals(ItemState.DECLINED, r2.getState());
-        Object y = ledger.transaction(() -> {
+        assertNull(x);
+        assertEquals(ItemState.APPROVED, r1.reload().getState());
+        ledger.transaction(() -> {
             r1.setState(ItemState.REVOKED);
-            r2.setState(ItemState.DISCARDED);
             r1.save();
-            r2.save();
-            throw new Ledger.Rollback();
+            return null;
         });
-        assert (y == null);
-        r1.reload();
-        assertEquals(ItemState.APPROVED, r1.getState());
-        r2.reload();
-        assertEquals(ItemState.DECLINED, r2.getState());
+        sqlLedger().disableWriteBehind();
+        assertNull(other.getRecord(r2.getId()));
+        assertEquals(ItemState.REVOKED, other.getRecord(r1.getId()).getState());
+        other.close();
+    }
+
+    @Test
+    public void writeBehindFlushesBatches() throws Exception {
+        sqlLedger().enableWriteBehind(10, 20);
+        SqlLedger other = new SqlLedger("jdbc:sqlite:testledger");
+        other.enableCache(false);
+        other.enableFilter(false);
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 25; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        StateRecord last = records.get(records.size() - 1);
+        // the tail is flushed by timeout
+        long started = System.currentTimeMillis();
+        while (other.getRecord(last.getId()) == null && System.currentTimeMillis() - started < 2000)
+            Thread.sleep(5);
+        for (StateRecord r : records)
+            assertSameRecords(r, other.getRecord(r.getId()));
+        other.close();
     }
 
     @Test
-    public void approve() throws Exception {
+    public void filterSkipsMissingRecords() throws Exception {
+        CountingBloomFilter filter = sqlLedger().getFilter();
+        assertNotNull(filter);
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        assertFalse(r1.isApproved());
-        r1.approve();
-        assertEquals(ItemState.APPROVED, r1.getState());
-        assert (r1.isApproved());
-        r1.reload();
-        assert (r1.isApproved());
-        assertThrows(IllegalStateException.class, () -> {
-            r1.approve();
-            return null;
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        assertEquals(2, filter.size());
+
+        long negatives = filter.getNegatives();
+        for (int i = 0; i < 100; i++)
+            assertNull(ledger.getRecord(HashId.createRandom()));
+        assertThat(filter.getNegatives() - negatives, is(greaterThan(90L)));
+        assertSameRecords(r1, ledger.getRecord(r1.getId()));
+
+        // rolled back destroy keeps the record visible
+        ledger.transaction(() -> {
+            r2.destroy();
+            throw new Ledger.Rollback();
         });
+        assertSameRecords(r2, ledger.getRecord(r2.getId()));
+        r2.destroy();
+        assertEquals(1, filter.size());
+        assertNull(ledger.getRecord(r2.getId()));
+
+        // the filter is rebuilt from the database on start
+        SqlLedger other = new SqlLedger("jdbc:sqlite:testledger");
+        assertEquals(1, other.getFilter().size());
+        assertSameRecords(r1, other.getRecord(r1.getId()));
+        assertNull(other.getRecord(r2.getId()));
+        assertThat(other.getFilter().getExpectedFalsePositiveRate(), is(lessThan(0.01)));
+        other.close();
     }
 
     @Test
-    public void lockForRevoking() throws Exception {
-        ledger.enableCache(true);
-        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
-        existing.approve();
+    public void writeBehindReportsLostChanges() throws Exception {
+        sqlLedger().enableWriteBehind(1000, 10);
+        SqlLedger other = new SqlLedger("jdbc:sqlite:testledger");
+        other.enableCache(false);
+        other.enableFilter(false);
+        // takes the id the write-behind will assign next
+        other.findOrCreate(HashId.createRandom());
+        StateRecord conflicting = ledger.findOrCreate(HashId.createRandom());
+        StateRecord good = ledger.findOrCreate(HashId.createRandom());
+        try {
+            sqlLedger().sync();
+            fail("lost change must be reported");
+        } catch (Ledger.Failure e) {
+            assertThat(e.getMessage(), containsString("lost 1 changes"));
+        }
+        assertNull(other.getRecord(conflicting.getId()));
+        assertSameRecords(good, other.getRecord(good.getId()));
+        // reported once, further changes are saved
+        good.approve();
+        sqlLedger().sync();
+        assertEquals(ItemState.APPROVED, other.getRecord(good.getId()).getState());
+        other.close();
+    }
 
-        StateRecord existing2 = ledger.findOrCreate(HashId.createRandom());
-        existing2.approve();
+    @Test
+    public void concurrentCreation() throws Exception {
+        checkConcurrentCreation();
+        sqlLedger().enableWriteBehind(100, 10);
+        checkConcurrentCreation();
+    }
 
-        StateRecord r = ledger.findOrCreate(HashId.createRandom());
-        StateRecord r1 = r.lockToRevoke(existing.getId());
+    private void checkConcurrentCreation() throws Exception {
+        ledger.enableCache(true);
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            ids.add(HashId.createRandom());
+        ExecutorService es = Executors.newFixedThreadPool(16);
+        List<Future<Map<HashId, Long>>> futures = new ArrayList<>();
+        for (int n = 0; n < 16; n++) {
+            futures.add(es.submit(() -> {
+                List<HashId> mine = new ArrayList<>(ids);
+                Collections.shuffle(mine);
+                Map<HashId, Long> created = new HashMap<>();
+                for (HashId id : mine) {
+                    created.put(id, ledger.findOrCreate(id).getRecordId());
+                    // unrelated records are created in parallel
+                    assertNotNull(ledger.createOutputLockRecord(1, HashId.createRandom()));
+                }
+                return created;
+            }));
+        }
+        for (Future<?> f : futures)
+            f.get();
+        es.shutdown();
+        Map<HashId, Long> first = futures.get(0).get();
+        for (Future<Map<HashId, Long>> f : futures)
+            assertEquals(first, f.get());
+        assertEquals(200, new HashSet<>(first.values()).size());
+        ledger.enableCache(false);
+        Map<HashId, StateRecord> records = ledger.getRecords(ids);
+        assertEquals(200, records.size());
+        for (HashId id : ids)
+            assertEquals((long) first.get(id), records.get(id).getRecordId());
+    }
 
-        existing.reload();
-        r.reload();
+    @Test
+    public void sweepExpired() throws Exception {
+        List<StateRecord> expired = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setExpiresAt(LocalDateTime.now().minusMinutes(25 - i));
+            r.save();
+            expired.add(r);
+        }
+        StateRecord alive = ledger.findOrCreate(HashId.createRandom());
+        alive.setExpiresAt(LocalDateTime.now().plusMinutes(1));
+        alive.save();
+        StateRecord eternal = ledger.findOrCreate(HashId.createRandom());
+
+        ExpirationSweeper sweeper = new ExpirationSweeper(sqlLedger(), 10, Duration.ofMillis(10));
+        assertEquals(10, sweeper.sweep());
+        // the oldest are deleted first
+        Number oldest = sqlLedger().getPool().execute(
+                db -> db.queryOne("SELECT min(expires_at) FROM ledger WHERE expires_at > 0"));
+        assertEquals(StateRecord.unixTime(expired.get(10).getExpiresAt()), oldest.longValue());
+        sweeper.start();
+        long started = System.currentTimeMillis();
+        while (sweeper.getRowsReclaimed() < 25 && System.currentTimeMillis() - started < 2000)
+            Thread.sleep(5);
+        sweeper.stop();
+        assertEquals(25, sweeper.getRowsReclaimed());
+        assertThat(sweeper.getBatches(), is(greaterThanOrEqualTo(3L)));
+        assertEquals(0, sqlLedger().sweepExpired(10));
+        assertEquals(2, sqlLedger().getFilter().size());
+        assertNotNull(ledger.getRecord(alive.getId()));
+        assertNotNull(ledger.getRecord(eternal.getId()));
+    }
 
-        assertSameRecords(existing, r1);
-        assertEquals(ItemState.LOCKED, existing.getState());
-        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
+    @Test
+    public void snapshot() throws Exception {
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 250; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        records.get(2).approve();
+        StateRecord owner = records.get(0);
+        StateRecord locked = owner.createOutputLockRecord(HashId.createRandom());
+        StateRecord expired = records.get(1);
+        expired.setExpiresAt(LocalDateTime.now().minusMinutes(1));
+        expired.save();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Long> progress = new ArrayList<>();
+        assertEquals(250, sqlLedger().exportSnapshot(out, 100, (done, total) -> progress.add(done)));
+        assertEquals(Arrays.asList(100L, 200L, 250L), progress);
+
+        new File("testledger2").delete();
+        SqlLedger other = new SqlLedger("jdbc:sqlite:testledger2");
+        try {
+            progress.clear();
+            assertEquals(250, other.importSnapshot(new ByteArrayInputStream(out.toByteArray()),
+                                                   (done, total) -> progress.add(total)));
+            assertEquals(Arrays.asList(251L, 251L, 251L), progress);
+            assertNull(other.getRecord(expired.getId()));
+            for (StateRecord r : records.subList(2, records.size()))
+                assertSameRecords(r, other.getRecord(r.getId()));
+            StateRecord r = other.getRecord(locked.getId());
+            assertSameRecords(locked, r);
+            assertEquals(owner.getRecordId(), r.getLockedByRecordId());
+            Number indexes = other.getPool().execute(db -> db.queryOne(
+                    "SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name IN ('ix_ledger_hashes', " +
+                            "'ix_ledger_locks', 'ix_ledger_expires_at', 'ix_ledger_terminal', 'ix_ledger_unsettled')"));
+            assertEquals(5, indexes.intValue());
+            // indexes are back, so the same hash can't be inserted twice
+            assertNull(other.createOutputLockRecord(owner.getRecordId(), locked.getId()));
+            assertNotEquals(0, other.findOrCreate(HashId.createRandom()).getRecordId());
+            try {
+                other.importSnapshot(new ByteArrayInputStream(out.toByteArray()), null);
+                fail("must not import into the non-empty ledger");
+            } catch (IllegalStateException e) {
+            }
+        } finally {
+            other.close();
+            new File("testledger2").delete();
+        }
+    }
 
-        StateRecord r2 = r.lockToRevoke(existing.getId());
+    @Test
+    public void corruptedSnapshot() throws Exception {
+        for (int i = 0; i < 50; i++)
+            ledger.findOrCreate(HashId.createRandom());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sqlLedger().exportSnapshot(out, 20, null);
+        byte[] data = out.toByteArray();
+        // damage the record in the last chunk
+        data[data.length - 40] ^= 1;
+
+        new File("testledger2").delete();
+        SqlLedger other = new SqlLedger("jdbc:sqlite:testledger2");
+        try {
+            try {
+                other.importSnapshot(new ByteArrayInputStream(data), null);
+                fail("corrupted snapshot must not be imported");
+            } catch (Ledger.Failure e) {
+            }
+            // nothing is left from the chunks imported before the damaged one
+            Number rows = other.getPool().execute(db -> db.queryOne("SELECT count(*) FROM ledger"));
+            assertEquals(0, rows.intValue());
+            assertEquals(50, other.importSnapshot(new ByteArrayInputStream(out.toByteArray()), null));
+        } finally {
+            other.close();
+            new File("testledger2").delete();
+        }
+    }
+
+    @Test
+    public void digest() throws Exception {
+        LedgerDigest digest = ledger.getDigest();
+        long[] empty = digest.getDigests(0, null);
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        long[] top = digest.getDigests(0, null);
+        assertFalse(Arrays.equals(empty, top));
+
+        // rolled back changes leave the digest as it was
+        StateRecord r = records.get(0);
+        ledger.transaction(() -> {
+            r.approve();
+            records.get(1).destroy();
+            assertFalse(Arrays.equals(top, digest.getDigests(0, null)));
+            throw new Ledger.Rollback();
+        });
+        assertArrayEquals(top, digest.getDigests(0, null));
 
-        existing.reload();
         r.reload();
+        r.approve();
+        int bucket = LedgerDigest.bucketOf(r.getId());
+        int[] path = new int[LedgerDigest.LEVELS];
+        for (int level = LedgerDigest.LEVELS - 1, n = bucket; level >= 0; level--, n /= LedgerDigest.FANOUT)
+            path[level] = n;
+        long[] changed = digest.getDigests(0, null);
+        // only the subtree of the changed record differs
+        for (int i = 0; i < LedgerDigest.FANOUT; i++)
+            assertEquals(i != path[0], top[i] == changed[i]);
+        assertEquals(ItemState.APPROVED, digest.getBucket(bucket).get(r.getId()));
+        long[] leaves = digest.getDigests(LedgerDigest.LEVELS - 1, new int[]{path[LedgerDigest.LEVELS - 2]});
+        assertEquals(digest.getDigests(LedgerDigest.LEVELS - 2, new int[]{path[LedgerDigest.LEVELS - 3]})
+                             [path[LedgerDigest.LEVELS - 2] % LedgerDigest.FANOUT],
+                     Arrays.stream(leaves).reduce(0, (a, b) -> a ^ b));
+
+        // requests out of the tree are rejected before any work
+        int lastLevelParents = LedgerDigest.BUCKETS / LedgerDigest.FANOUT;
+        for (int[] parents : new int[][]{null, {-1}, {lastLevelParents}, new int[lastLevelParents + 1]}) {
+            try {
+                digest.getDigests(LedgerDigest.LEVELS - 1, parents);
+                fail("bad parents must be rejected");
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        assertEquals(LedgerDigest.FANOUT, digest.getDigests(1, new int[]{LedgerDigest.FANOUT - 1}).length);
+        try {
+            digest.getDigests(1, new int[]{LedgerDigest.FANOUT});
+            fail("bad parent must be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+
+        // the same as computed by the full scan on start
+        ledger.close();
+        ledger = new SqlLedger("jdbc:sqlite:testledger");
+        assertArrayEquals(changed, ledger.getDigest().getDigests(0, null));
+        assertEquals(0, ledger.getDigest().getRescans());
+    }
 
-        assertSameRecords(existing, r1);
-        assertSameRecords(existing, r2);
-        assertSame(r1,r2);
-        assertEquals(ItemState.LOCKED, existing.getState());
-        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
+    @Test
+    public void hashKeyCollisions() throws Exception {
+        // ids that differ only after the hash key prefix
+        byte[] digest = HashId.createRandom().getDigest();
+        byte[] other = digest.clone();
+        other[other.length - 1] ^= 1;
+        HashId a = HashId.withDigest(digest), b = HashId.withDigest(other);
+        assertArrayEquals(SqlLedger.hashKey(a), SqlLedger.hashKey(b));
+        StateRecord ra = ledger.findOrCreate(a);
+        StateRecord rb = ledger.findOrCreate(b);
+        assertNotEquals(ra.getRecordId(), rb.getRecordId());
+        rb.approve();
 
-        StateRecord r3 = r.lockToRevoke(existing2.getId());
-        existing2.reload();
-        assertSameRecords(existing2, r3);
-        assertEquals(ItemState.LOCKED, existing2.getState());
-        assertEquals(r.getRecordId(), existing2.getLockedByRecordId());
+        ledger.enableCache(false);
+        assertEquals(ItemState.PENDING, ledger.getRecord(a).getState());
+        assertEquals(ItemState.APPROVED, ledger.getRecord(b).getState());
+        Map<HashId, StateRecord> found = ledger.getRecords(Arrays.asList(a, HashId.createRandom()));
+        assertEquals(1, found.size());
+        assertEquals(ra.getRecordId(), found.get(a).getRecordId());
+        // the same hash still can't be inserted twice
+        assertNull(ledger.createOutputLockRecord(ra.getRecordId(), b));
+        Number rows = sqlLedger().getPool().execute(db -> db.queryOne("SELECT count(*) FROM ledger"));
+        assertEquals(2, rows.intValue());
     }
 
     @Test
-    public void revoke() throws Exception {
-        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        assertFalse(r1.isApproved());
-        assertTrue(r1.isPending());
-        assertFalse(r1.isArchived());
-        r1.approve();
-        r1.reload();
-        assertTrue(r1.isApproved());
-        assertFalse(r1.isPending());
-        assertFalse(r1.isArchived());
-        r1.setState(ItemState.LOCKED);
-        r1.revoke();
-        assertFalse(r1.isPending());
-        assertFalse(r1.isApproved());
-        assertTrue(r1.isArchived());
+    public void uniqueHashes() throws Exception {
+        // the other ledger does not know the record, so it tries to insert it and then finds it
+        SqlLedger other = new SqlLedger("jdbc:sqlite:testledger");
+        other.enableCache(false);
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        assertEquals(r.getRecordId(), other.findOrCreate(r.getId()).getRecordId());
+        other.close();
+        // the database itself rejects the duplicate
+        try {
+            sqlLedger().getPool().execute(db -> {
+                db.update("INSERT INTO ledger(hash_key, hash, state, created_at) VALUES(?, ?, 0, 0)",
+                          SqlLedger.hashKey(r.getId()), r.getId().getDigest());
+                return null;
+            });
+            fail("duplicate hash must be rejected");
+        } catch (SQLException e) {
+        }
+        Number rows = sqlLedger().getPool().execute(db -> db.queryOne("SELECT count(*) FROM ledger"));
+        assertEquals(1, rows.intValue());
     }
 
     @Test
-    public void destroy() throws Exception {
-        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        r1.destroy();
-        assertNull(ledger.getRecord(r1.getId()));
+    public void stats() throws Exception {
+        LedgerStats stats = ledger.getStats();
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        records.get(0).approve();
+        records.get(1).approve();
+        records.get(2).destroy();
+        // rolled back changes are not counted
+        ledger.transaction(() -> {
+            records.get(3).approve();
+            ledger.findOrCreate(HashId.createRandom());
+            throw new Ledger.Rollback();
+        });
+        ledger.transaction(() -> {
+            records.get(4).approve();
+            ledger.findOrCreate(HashId.createRandom());
+            return null;
+        });
+        StateRecord expired = records.get(5);
+        expired.setExpiresAt(LocalDateTime.now().minusMinutes(1));
+        expired.save();
+        assertEquals(1, sqlLedger().sweepExpired(10));
+
+        assertEquals(3, stats.getCount(ItemState.APPROVED));
+        assertEquals(6, stats.getCount(ItemState.PENDING));
+        assertEquals(9, stats.getTotal());
+        assertEquals(11, stats.getCreated());
+        assertEquals(1, stats.getExpired());
+        assertEquals(11, stats.getCreatedPerInterval()[0]);
+        assertEquals(1, stats.getExpiredPerInterval()[0]);
+
+        // the same in write-behind mode
+        sqlLedger().enableWriteBehind(1000, 60000);
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        r.approve();
+        records.get(6).approve();
+        records.get(7).destroy();
+        records.get(7).destroy();
+        assertEquals(5, stats.getCount(ItemState.APPROVED));
+        assertEquals(4, stats.getCount(ItemState.PENDING));
+        sqlLedger().disableWriteBehind();
+
+        // counts are recomputed on start and totals are restored from the checkpoint
+        ledger.close();
+        ledger = new SqlLedger("jdbc:sqlite:testledger");
+        stats = ledger.getStats();
+        assertEquals(5, stats.getCount(ItemState.APPROVED));
+        assertEquals(4, stats.getCount(ItemState.PENDING));
+        assertEquals(12, stats.getCreated());
+        assertEquals(1, stats.getExpired());
+        Binder b = stats.toBinder();
+        assertEquals(5, b.getBinderOrThrow("counts").getLongOrThrow("APPROVED"));
+        assertEquals(9, b.getLongOrThrow("total"));
     }
 
     @Test
-    public void recordExpiration() throws Exception {
-        // todo: expired can't be get - it should be dropped by the database
-        HashId hashId = HashId.createRandom();
-        StateRecord r = ledger.findOrCreate(hashId);
-        long recordId = r.getRecordId();
-
-        LocalDateTime inFuture = LocalDateTime.now().plusHours(2);
-        r.setExpiresAt(inFuture);
-
-        StateRecord r1 = ledger.getRecord(hashId);
-        assertNotEquals(r1.getExpiresAt(), inFuture);
-
-        r.save();
-        r1 = ledger.getRecord(hashId);
-        assertAlmostSame(r.getExpiresAt(), r1.getExpiresAt());
+    public void recoverOrphans() throws Exception {
+        StateRecord approved = ledger.findOrCreate(HashId.createRandom());
+        approved.approve();
+        StateRecord declined = ledger.findOrCreate(HashId.createRandom());
+        declined.setState(ItemState.DECLINED);
+        declined.save();
+        // elections interrupted while checking the item
+        StateRecord pending = ledger.findOrCreate(HashId.createRandom());
+        StateRecord input = ledger.findOrCreate(HashId.createRandom());
+        input.approve();
+        input.setState(ItemState.LOCKED);
+        input.setLockedByRecordId(pending.getRecordId());
+        input.save();
+        StateRecord output = ledger.createOutputLockRecord(pending.getRecordId(), HashId.createRandom());
+        // and after this node has voted
+        StateRecord voted = ledger.findOrCreate(HashId.createRandom());
+        voted.setState(ItemState.PENDING_POSITIVE);
+        voted.save();
+        StateRecord votedInput = ledger.findOrCreate(HashId.createRandom());
+        votedInput.setState(ItemState.LOCKED);
+        votedInput.setLockedByRecordId(voted.getRecordId());
+        votedInput.save();
+        StateRecord votedOutput = ledger.createOutputLockRecord(voted.getRecordId(), HashId.createRandom());
+        // more than one batch
+        List<HashId> others = new ArrayList<>();
+        ledger.transaction(() -> {
+            for (int i = 0; i < SqlLedger.RECOVERY_BATCH_SIZE + 10; i++)
+                others.add(ledger.findOrCreate(HashId.createRandom()).getId());
+            return null;
+        });
 
-        r.setExpiresAt(LocalDateTime.now().minusHours(1));
-        r.save();
+        ledger.close();
+        ledger = new SqlLedger("jdbc:sqlite:testledger");
+        assertEquals(SqlLedger.RECOVERY_BATCH_SIZE + 13, ledger.recoverOrphans());
+        assertNull(ledger.getRecord(pending.getId()));
+        assertNull(ledger.getRecord(output.getId()));
+        StateRecord r = ledger.getRecord(input.getId());
+        assertEquals(ItemState.APPROVED, r.getState());
+        assertEquals(0, r.getLockedByRecordId());
+        assertEquals(ItemState.APPROVED, ledger.getRecord(approved.getId()).getState());
+        assertEquals(ItemState.DECLINED, ledger.getRecord(declined.getId()).getState());
+        for (HashId id : others)
+            assertNull(ledger.getRecord(id));
+        // the vote and its locks are kept
+        assertSameRecords(voted, ledger.getRecord(voted.getId()));
+        assertSameRecords(votedInput, ledger.getRecord(votedInput.getId()));
+        assertSameRecords(votedOutput, ledger.getRecord(votedOutput.getId()));
+        assertEquals(0, ledger.recoverOrphans());
+        // the item could be elected again
+        assertEquals(ItemState.PENDING, ledger.findOrCreate(pending.getId()).getState());
+        assertEquals(7, ledger.getStats().getTotal());
+    }
 
-        r1 = ledger.getRecord(hashId);
-        assertNull(r1);
+    @Test
+    public void recordIdsAreNotReused() throws Exception {
+        deleteArchive();
+        sqlLedger().enableArchive("testarchive");
+        try {
+            StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+            StateRecord revoked = ledger.findOrCreate(HashId.createRandom());
+            revoked.setState(ItemState.REVOKED);
+            revoked.save();
+            // the last record goes to the archive, yet its id is still taken
+            assertEquals(1, sqlLedger().archiveRecords(1, 10));
+            StateRecord next = ledger.findOrCreate(HashId.createRandom());
+            assertThat(next.getRecordId(), is(greaterThan(revoked.getRecordId())));
+            StateRecord archived = ledger.getRecord(revoked.getId());
+            archived.setState(ItemState.APPROVED);
+            archived.save();
+            assertEquals(revoked.getRecordId(), ledger.getRecord(revoked.getId()).getRecordId());
+            assertSameRecords(next, ledger.getRecord(next.getId()));
+
+            // the same for the swept one, also in the write-behind mode that assigns ids itself
+            next.setExpiresAt(LocalDateTime.now().minusMinutes(1));
+            next.save();
+            assertEquals(1, sqlLedger().sweepExpired(10));
+            ledger.close();
+            ledger = new SqlLedger("jdbc:sqlite:testledger");
+            sqlLedger().enableWriteBehind(10, 10);
+            assertThat(ledger.findOrCreate(HashId.createRandom()).getRecordId(),
+                       is(greaterThan(next.getRecordId())));
+            assertNotNull(ledger.getRecord(owner.getId()));
+        } finally {
+            ledger.close();
+            deleteArchive();
+        }
+    }
 
+    @Test
+    public void archive() throws Exception {
+        deleteArchive();
+        sqlLedger().enableArchive("testarchive");
+        List<StateRecord> terminal = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            if (i % 3 != 0) {
+                r.setState(i % 2 == 0 ? ItemState.REVOKED : ItemState.DECLINED);
+                r.setExpiresAt(LocalDateTime.now().plusDays(30));
+                r.save();
+                terminal.add(r);
+            }
+        }
+        StateRecord pending = ledger.findOrCreate(HashId.createRandom());
+        long[] top = ledger.getDigest().getDigests(0, null);
+
+        assertEquals(0, sqlLedger().archiveRecords(50, 1000));
+        assertEquals(30, sqlLedger().archiveRecords(10, 30));
+        assertEquals(10, sqlLedger().archiveRecords(1, 1000));
+        assertEquals(2, sqlLedger().getArchive().getSegmentCount());
+        Number rows = sqlLedger().getPool().execute(db -> db.queryOne("SELECT count(*) FROM ledger"));
+        assertEquals(21, rows.intValue());
+        assertArrayEquals(top, ledger.getDigest().getDigests(0, null));
+
+        // archived records are found as before
+        ledger.enableCache(false);
+        for (StateRecord r : terminal)
+            assertSameRecords(r, ledger.getRecord(r.getId()));
+        Map<HashId, StateRecord> found = ledger.getRecords(
+                terminal.stream().map(StateRecord::getId).collect(Collectors.toList()));
+        assertEquals(40, found.size());
+        assertSameRecords(pending, ledger.getRecord(pending.getId()));
+        assertNull(ledger.getRecord(HashId.createRandom()));
+
+        // changed record goes back to the database with the same record id
+        StateRecord changed = ledger.getRecord(terminal.get(0).getId());
+        changed.setState(ItemState.APPROVED);
+        changed.save();
+        rows = sqlLedger().getPool().execute(db -> db.queryOne("SELECT count(*) FROM ledger"));
+        assertEquals(22, rows.intValue());
+        StateRecord r = ledger.getRecord(changed.getId());
+        assertEquals(ItemState.APPROVED, r.getState());
+        assertEquals(terminal.get(0).getRecordId(), r.getRecordId());
+
+        // rolled back destruction leaves the record in the archive
+        StateRecord destroyed = ledger.getRecord(terminal.get(1).getId());
+        ledger.transaction(() -> {
+            destroyed.destroy();
+            assertNull(ledger.getRecord(destroyed.getId()));
+            throw new Ledger.Rollback();
+        });
+        assertNotNull(ledger.getRecord(destroyed.getId()));
+        destroyed.destroy();
+        assertNull(ledger.getRecord(destroyed.getId()));
+        long[] after = ledger.getDigest().getDigests(0, null);
 
+        // tombstones survive the restart, and the digest is the same as computed by the full scan
+        ledger.close();
+        ledger = new SqlLedger("jdbc:sqlite:testledger");
+        sqlLedger().enableArchive("testarchive");
+        assertNull(ledger.getRecord(destroyed.getId()));
+        assertEquals(ItemState.APPROVED, ledger.getRecord(changed.getId()).getState());
+        assertSameRecords(terminal.get(2), ledger.getRecord(terminal.get(2).getId()));
+        assertArrayEquals(after, ledger.getDigest().getDigests(0, null));
+        assertEquals(60, sqlLedger().getFilter().size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(60, sqlLedger().exportSnapshot(out, 100, null));
+
+        // the segment is dropped as a whole once all its records expire
+        long now = StateRecord.unixTime(LocalDateTime.now());
+        sqlLedger().getArchive().write(Arrays.asList(
+                new LedgerSnapshot.Record(1000, HashId.createRandom(), ItemState.DECLINED, now - 100, now - 10, 0)));
+        assertEquals(1, sqlLedger().sweepExpired(10));
+        assertEquals(2, sqlLedger().getArchive().getSegmentCount());
+        ledger.close();
+        deleteArchive();
     }
 
+    private static void deleteArchive() throws Exception {
+        Path dir = Paths.get("testarchive");
+        if (Files.exists(dir)) {
+            for (Path p : Files.list(dir).collect(Collectors.toList()))
+                Files.delete(p);
+            Files.delete(dir);
+        }
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>, August 2017.
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SqlLedgerWalTest extends LedgerTestCase {
+
+    private static final String FILE_NAME = "testledger_wal";
+
+    @Override
+    protected Ledger createLedger() throws Exception {
+        deleteFiles();
+        return new SqlLedger("jdbc:sqlite:" + FILE_NAME + "?profile=wal");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        for (String suffix : new String[]{"", "-wal", "-shm"})
+            new File(FILE_NAME + suffix).delete();
+    }
+
+    private SqlLedger sqlLedger() {
+        return (SqlLedger) ledger;
+    }
+
+    @Test
+    public void profile() throws Exception {
+        assertEquals(SqlLedger.Profile.WAL, sqlLedger().getProfile());
+        assertNotSame(sqlLedger().getPool(), sqlLedger().getReaderPool());
+        String mode = sqlLedger().getPool().execute(db -> db.queryOne("PRAGMA journal_mode"));
+        assertEquals("wal", mode.toLowerCase());
+
+        assertEquals(SqlLedger.Profile.SHARED_CACHE, SqlLedger.profileOf("jdbc:sqlite:foo"));
+        assertEquals(SqlLedger.Profile.WAL, SqlLedger.profileOf("jdbc:sqlite:foo?a=1&profile=WAL"));
+        assertEquals("jdbc:sqlite:foo?a=1", SqlLedger.stripProfile("jdbc:sqlite:foo?profile=wal&a=1"));
+        assertEquals("jdbc:sqlite:foo", SqlLedger.stripProfile("jdbc:sqlite:foo?profile=wal"));
+    }
+
+    @Test
+    public void readsDuringTransaction() throws Exception {
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        HashId newId = HashId.createRandom();
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            ledger.transaction(() -> {
+                StateRecord r = ledger.findOrCreate(newId);
+                // the transaction sees own changes
+                assertNotNull(ledger.getRecord(newId));
+                // others read committed data without waiting for the writer
+                Future<StateRecord> f1 = es.submit(() -> ledger.getRecord(existing.getId()));
+                Future<StateRecord> f2 = es.submit(() -> ledger.getRecord(newId));
+                assertSameRecords(existing, f1.get());
+                assertNull(f2.get());
+                return r;
+            });
+            assertNotNull(es.submit(() -> ledger.getRecord(newId)).get());
+        } finally {
+            es.shutdown();
+        }
+        assertTrue(sqlLedger().getReaderPool().getCheckouts() > 0);
+    }
+
+    @Test
+    public void concurrentReadersAndWriter() throws Exception {
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        ExecutorService es = Executors.newFixedThreadPool(SqlLedger.DEFAULT_READERS + 1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            futures.add(es.submit(() -> {
+                for (int i = 0; i < 200; i++)
+                    ledger.findOrCreate(HashId.createRandom()).approve();
+                return null;
+            }));
+            for (int t = 0; t < SqlLedger.DEFAULT_READERS; t++) {
+                futures.add(es.submit(() -> {
+                    for (int i = 0; i < 10; i++)
+                        for (StateRecord r : records)
+                            assertSameRecords(r, ledger.getRecord(r.getId()));
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        } finally {
+            es.shutdown();
+        }
+    }
+}
@@ -14,10 +14,11 @@ import org.junit.Test;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.time.Duration;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
@@ -26,10 +27,17 @@ public class BitrustedRemoteAdapterTest extends NodeTestCase {
 
     protected List<LocalNode> allNodes = new ArrayList<>();
     private LocalNode localNode;
+    private LocalNode remoteNode;
+    private Node remoteNodeInterface;
+    private BitrustedLocalAdapter localAdapter;
 
     protected void createConsensus() throws IOException, SQLException, TimeoutException, InterruptedException {
+        createConsensus(17722);
+    }
+
+    protected void createConsensus(int port) throws IOException, SQLException, TimeoutException, InterruptedException {
         network = new Network();
-        LocalNode remoteNode = createTempNode(network);
+        remoteNode = createTempNode(network);
         localNode = createTempNode(network);
 
         Map<HashId, Node> knownNodes = new HashMap<>();
@@ -37,14 +45,14 @@ public class BitrustedRemoteAdapterTest extends NodeTestCase {
         knownNodes.put(HashId.of(TestKeys.publicKey(1).pack()), localNode);
 
 
-        BitrustedLocalAdapter localAdapter =
-                new BitrustedLocalAdapter(remoteNode, TestKeys.privateKey(0), knownNodes, 17722);
+        localAdapter =
+                new BitrustedLocalAdapter(remoteNode, TestKeys.privateKey(0), knownNodes, port);
 
-        Node remoteNodeInterface = new BitrustedRemoteAdapter(remoteNode.getId(),
+        remoteNodeInterface = new BitrustedRemoteAdapter(remoteNode.getId(),
                                                         TestKeys.privateKey(1),
                                                         TestKeys.publicKey(0),
                                                         "localhost",
-                                                        17722);
+                                                        port);
         network.registerNode(localNode);
         network.registerNode(remoteNodeInterface);
 
@@ -65,6 +73,75 @@ public class BitrustedRemoteAdapterTest extends NodeTestCase {
         assertEquals(ItemState.APPROVED, itemResult.state);
     }
 
+    @Test
+    public void reconcile() throws Exception {
+        createConsensus(17723);
+        Ledger localLedger = localNode.getLedger();
+        Ledger remoteLedger = remoteNode.getLedger();
+        // createTempNode leaves a record in each ledger
+        Set<HashId> expected = new HashSet<>(localNode.reconcile(remoteNodeInterface));
+        assertEquals(2, expected.size());
+        for (int i = 0; i < 200; i++) {
+            HashId id = HashId.createRandom();
+            localLedger.findOrCreate(id).approve();
+            remoteLedger.findOrCreate(id).approve();
+        }
+        HashId declined = HashId.createRandom();
+        localLedger.findOrCreate(declined).setState(ItemState.PENDING_NEGATIVE).save();
+        remoteLedger.findOrCreate(declined).setState(ItemState.DECLINED).save();
+        expected.add(declined);
+        HashId missing = HashId.createRandom();
+        remoteLedger.findOrCreate(missing);
+        expected.add(missing);
+
+        assertEquals(expected, localNode.reconcile(remoteNodeInterface));
+        assertEquals(expected, remoteNode.reconcile(localNode));
+    }
+
+    @Test
+    public void checkItems() throws Exception {
+        createConsensus(17724);
+        Ledger remoteLedger = remoteNode.getLedger();
+        List<ItemQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            HashId id = HashId.createRandom();
+            remoteLedger.findOrCreate(id).setState(i % 2 == 0 ? ItemState.APPROVED : ItemState.DECLINED).save();
+            queries.add(new ItemQuery(id, ItemState.PENDING, false));
+        }
+        List<ItemResult> results = remoteNodeInterface.checkItems(localNode, queries);
+        assertEquals(queries.size(), results.size());
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(i % 2 == 0 ? ItemState.APPROVED : ItemState.DECLINED, results.get(i).state);
+        assertEquals(1, localAdapter.getCommandCount("checkItems"));
+
+        // concurrent calls are sent together, but each gets its own result
+        ((BitrustedRemoteAdapter) remoteNodeInterface).setCheckBatchDelay(Duration.ofMillis(500));
+        List<ItemQuery> concurrent = queries.subList(0, 16);
+        ExecutorService es = Executors.newFixedThreadPool(concurrent.size());
+        CountDownLatch ready = new CountDownLatch(concurrent.size());
+        List<Future<ItemResult>> futures = new ArrayList<>();
+        for (ItemQuery q : concurrent)
+            futures.add(es.submit(() -> {
+                ready.countDown();
+                ready.await();
+                return remoteNodeInterface.checkItem(localNode, q.itemId, q.state, q.haveCopy);
+            }));
+        for (int i = 0; i < futures.size(); i++)
+            assertEquals(results.get(i).state, futures.get(i).get().state);
+        es.shutdown();
+        assertEquals(2, localAdapter.getCommandCount("checkItems"));
+        assertEquals(0, localAdapter.getCommandCount("checkItem"));
+
+        // big lists are split to the batches the remote accepts
+        List<ItemQuery> many = new ArrayList<>();
+        for (int i = 0; i < BitrustedRemoteAdapter.MAX_CHECK_BATCH + 10; i++)
+            many.add(queries.get(i % queries.size()));
+        results = remoteNodeInterface.checkItems(localNode, many);
+        assertEquals(many.size(), results.size());
+        assertEquals(ItemState.DECLINED, results.get(results.size() - 1).state);
+        assertEquals(4, localAdapter.getCommandCount("checkItems"));
+    }
+
     @Test
     public void getItem() throws Exception {
     }
@@ -10,9 +10,15 @@ package com.icodici.universa.node.network;
 import com.icodici.crypto.PrivateKey;
 import com.icodici.crypto.PublicKey;
 import com.icodici.universa.Errors;
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.LocalNode;
+import com.icodici.universa.node.SqlLedger;
 import com.icodici.universa.node.TestCase;
+import net.sergeych.tools.Binder;
 import org.junit.Test;
 
+import java.io.File;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
@@ -57,4 +63,21 @@ public class ClientEndpointTest extends TestCase {
         }
         ep.shutdown();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void ledgerStats() throws Exception {
+        new File("testledger").delete();
+        SqlLedger ledger = new SqlLedger("jdbc:sqlite:testledger");
+        ledger.findOrCreate(HashId.createRandom()).approve();
+        ledger.findOrCreate(HashId.createRandom());
+        ep = new ClientEndpoint(TestKeys.privateKey(0), 17172, new LocalNode("node1", null, ledger), null);
+        client = new HttpClient("testnode1", "http://localhost:17172");
+        client.start(TestKeys.privateKey(1), TestKeys.publicKey(0));
+        Binder stats = client.command("ledger_stats");
+        assertEquals(2, stats.getLongOrThrow("total"));
+        assertEquals(1, stats.getBinderOrThrow("counts").getLongOrThrow("APPROVED"));
+        assertEquals(2, stats.getLongOrThrow("created"));
+        ep.shutdown();
+        ledger.close();
+    }
+}
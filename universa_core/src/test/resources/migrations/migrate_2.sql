@@ -0,0 +1,20 @@
+-- record ids are referenced by locked_by_id and by archived records, so they must never be reused once the record is
+-- deleted or archived: autoincrement keeps the highest id ever used, see SqlLedger.archiveRecords()
+create table ledger_ids(
+    id integer primary key autoincrement,
+    hash blob,
+    state integer,
+    locked_by_id integer,
+    created_at integer not null,
+    expires_at integer
+);
+insert into ledger_ids(id, hash, state, locked_by_id, created_at, expires_at)
+    select id, hash, state, locked_by_id, created_at, expires_at from ledger;
+drop table ledger;
+alter table ledger_ids rename to ledger;
+create unique index ix_ledger_hashes on ledger(hash);
+create index ix_ledger_locks on ledger(locked_by_id);
+create index ix_ledger_expires_at on ledger(expires_at);
+
+-- terminal records to move to the archive, see SqlLedger.archiveRecords()
+create index ix_ledger_terminal on ledger(id) where state in (6, 7);
@@ -0,0 +1,6 @@
+-- records are looked up by the 8-byte hash prefix, and the full hash is only compared, see SqlLedger.HASH_KEY_SIZE.
+-- The unique index over both keeps hashes unique whatever connection inserts them
+alter table ledger add column hash_key blob;
+update ledger set hash_key = substr(hash, 1, 8);
+drop index ix_ledger_hashes;
+create unique index ix_ledger_hashes on ledger(hash_key, hash);
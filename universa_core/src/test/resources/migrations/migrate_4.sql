@@ -0,0 +1,2 @@
+-- records of elections that are not finished, left by the crash, see SqlLedger.recoverOrphans()
+create index ix_ledger_unsettled on ledger(id) where state in (1, 2, 3, 5, 9);